@@ -0,0 +1,158 @@
+package ninja.smirking.economy.benchmark;
+
+import ninja.smirking.economy.EconomyPlugin;
+import ninja.smirking.economy.storage.AsyncEconomyDataDao;
+import ninja.smirking.economy.storage.FileEconomyDataDao;
+import ninja.smirking.economy.storage.Ledger;
+import ninja.smirking.economy.storage.MemoryEconomyDataDao;
+import ninja.smirking.economy.storage.SqlEconomyDataDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.Server;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * The plugin running without a server. Bukkit is handed a server whose scheduler accepts tasks and never runs them,
+ * so the DAOs' periodic flushes only happen when a benchmark asks for them. Every instance gets its own data folder
+ * and, for SQL, its own in-memory H2 database.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class BenchmarkPlugin extends EconomyPlugin {
+    private static final Logger LOGGER = Logger.getLogger("Economy Benchmark");
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+        if (Bukkit.getServer() == null) {
+            Bukkit.setServer(proxy(Server.class));
+        }
+    }
+
+    private AsyncEconomyDataDao dao;
+    private Ledger ledger;
+
+    private BenchmarkPlugin(File dataFolder) {
+        super(new JavaPluginLoader(Bukkit.getServer()), new PluginDescriptionFile("Economy", "benchmark", EconomyPlugin.class.getName()), dataFolder, new File(dataFolder, "Economy.jar"));
+    }
+
+    /**
+     * @param storage   {@code memory}, {@code file} or {@code h2}
+     * @param ledger    whether transactions are recorded
+     */
+    public static BenchmarkPlugin open(String storage, boolean ledger) throws Exception {
+        BenchmarkPlugin plugin = new BenchmarkPlugin(Files.createTempDirectory("economy-benchmark").toFile());
+        plugin.getConfig().set("jdbc-url", "jdbc:h2:mem:economy" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+        plugin.getConfig().set("strict", false);
+        if ("memory".equals(storage)) {
+            plugin.dao = new MemoryEconomyDataDao();
+        } else if ("file".equals(storage)) {
+            plugin.dao = new FileEconomyDataDao(plugin);
+        } else if ("h2".equals(storage)) {
+            plugin.dao = new SqlEconomyDataDao(plugin);
+        } else {
+            throw new IllegalArgumentException("Unknown storage " + storage);
+        }
+
+        if (ledger) {
+            plugin.ledger = new Ledger(new File(plugin.getDataFolder(), "ledger"), plugin.getName(), 65536, 100L, TimeUnit.MILLISECONDS, LOGGER);
+        }
+        return plugin;
+    }
+
+    public static OfflinePlayer player(UUID uniqueId) {
+        return (OfflinePlayer) Proxy.newProxyInstance(BenchmarkPlugin.class.getClassLoader(), new Class<?>[]{OfflinePlayer.class}, (proxy, method, args) -> {
+            if ("getUniqueId".equals(method.getName())) {
+                return uniqueId;
+            }
+            return object(proxy, method, args);
+        });
+    }
+
+    public void close() throws IOException {
+        dao.close();
+        if (ledger != null) {
+            ledger.close();
+        }
+    }
+
+    @Override
+    public AsyncEconomyDataDao getDataManager() {
+        return dao;
+    }
+
+    @Override
+    public Ledger getLedger() {
+        return ledger;
+    }
+
+    /**
+     * Anything that isn't the scheduler, a task or a logger gets the zero value of its return type.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type) {
+        return (T) Proxy.newProxyInstance(BenchmarkPlugin.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Class<?> returns = method.getReturnType();
+            if (returns == BukkitScheduler.class || returns == BukkitTask.class) {
+                return proxy(returns);
+            }
+            if (returns == Logger.class) {
+                return LOGGER;
+            }
+            return object(proxy, method, args);
+        });
+    }
+
+    private static Object object(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return method.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+
+        Class<?> returns = method.getReturnType();
+        if (returns == boolean.class) {
+            return false;
+        }
+        if (returns == int.class) {
+            return 0;
+        }
+        if (returns == long.class) {
+            return 0L;
+        }
+        if (returns == double.class) {
+            return 0.0D;
+        }
+        if (returns == float.class) {
+            return 0.0F;
+        }
+        if (returns == short.class) {
+            return (short) 0;
+        }
+        if (returns == byte.class) {
+            return (byte) 0;
+        }
+        if (returns == char.class) {
+            return (char) 0;
+        }
+        return null;
+    }
+}
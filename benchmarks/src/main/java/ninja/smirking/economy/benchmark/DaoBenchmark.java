@@ -0,0 +1,69 @@
+package ninja.smirking.economy.benchmark;
+
+import ninja.smirking.economy.EconomyData;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code EconomyDataDao.get} for every backend. A hit finds the account already cached, a miss asks for an account
+ * that has never been seen so that the backend has to go to storage and create it.
+ *
+ * @author Connor Spencer Harries
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DaoBenchmark {
+    private static final int ACCOUNTS = 100000;
+
+    @Param({"memory", "file", "h2"})
+    public String storage;
+
+    private BenchmarkPlugin plugin;
+    private UUID[] cached;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        plugin = BenchmarkPlugin.open(storage, false);
+        cached = new UUID[ACCOUNTS];
+        for (int i = 0; i < cached.length; i++) {
+            cached[i] = UUID.randomUUID();
+            plugin.getDataManager().get(cached[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        plugin.close();
+    }
+
+    @Benchmark
+    public EconomyData hit() {
+        return plugin.getDataManager().get(cached[ThreadLocalRandom.current().nextInt(cached.length)]);
+    }
+
+    @Benchmark
+    public EconomyData miss() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return plugin.getDataManager().get(new UUID(random.nextLong(), random.nextLong()));
+    }
+}
@@ -0,0 +1,54 @@
+package ninja.smirking.economy.benchmark;
+
+import ninja.smirking.economy.vault.EconomyImpl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code EconomyImpl.format} for a small, a typical and a very large amount.
+ *
+ * @author Connor Spencer Harries
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+    @Param({"0.5", "1234.56", "98765432109.87"})
+    public double amount;
+
+    private BenchmarkPlugin plugin;
+    private EconomyImpl economy;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        plugin = BenchmarkPlugin.open("memory", false);
+        economy = new EconomyImpl(plugin);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        plugin.close();
+    }
+
+    @Benchmark
+    public String format() {
+        return economy.format(amount);
+    }
+}
@@ -0,0 +1,84 @@
+package ninja.smirking.economy.benchmark;
+
+import ninja.smirking.economy.storage.Ledger;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code Ledger.record} when the source is worked out from the calling class and when the caller passes it in.
+ *
+ * @author Connor Spencer Harries
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LedgerBenchmark {
+    private static final UUID PAYER = UUID.randomUUID();
+    private static final UUID PAYEE = UUID.randomUUID();
+
+    @Param({"caller", "explicit"})
+    public String source;
+
+    private File directory;
+    private Ledger ledger;
+    private boolean explicit;
+    private int plugin;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Files.createTempDir();
+        ledger = new Ledger(directory, "Economy", 1 << 20, 50L, TimeUnit.MILLISECONDS, Logger.getLogger("LedgerBenchmark"));
+        explicit = "explicit".equals(source);
+        plugin = ledger.source("Benchmark");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        ledger.close();
+        new File(directory, "ledger.dat").delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void record1() {
+        record();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void record4() {
+        record();
+    }
+
+    private void record() {
+        if (explicit) {
+            ledger.record(PAYER, PAYEE, 1L, plugin);
+        } else {
+            ledger.record(PAYER, PAYEE, 1L);
+        }
+    }
+}
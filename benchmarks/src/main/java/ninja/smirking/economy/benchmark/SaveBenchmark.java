@@ -0,0 +1,67 @@
+package ninja.smirking.economy.benchmark;
+
+import ninja.smirking.economy.EconomyData;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A SQL flush, which goes through {@code saveBatch}, with a varying number of dirty accounts. The database is an
+ * in-memory H2 instance, so this measures the DAO and the driver rather than the network.
+ *
+ * @author Connor Spencer Harries
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SaveBenchmark {
+    @Param({"1", "100", "1000", "10000"})
+    public int dirty;
+
+    private BenchmarkPlugin plugin;
+    private EconomyData[] accounts;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        plugin = BenchmarkPlugin.open("h2", false);
+        accounts = new EconomyData[dirty];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = plugin.getDataManager().get(UUID.randomUUID());
+        }
+        plugin.getDataManager().saveAll();
+    }
+
+    @Setup(Level.Invocation)
+    public void dirty() {
+        for (EconomyData data : accounts) {
+            data.deposit(1L);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        plugin.close();
+    }
+
+    @Benchmark
+    public void saveAll() {
+        plugin.getDataManager().saveAll();
+    }
+}
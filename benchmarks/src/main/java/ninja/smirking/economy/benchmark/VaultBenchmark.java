@@ -0,0 +1,128 @@
+package ninja.smirking.economy.benchmark;
+
+import ninja.smirking.economy.Money;
+import ninja.smirking.economy.vault.EconomyImpl;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.milkbowl.vault.economy.EconomyResponse;
+import org.bukkit.OfflinePlayer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Vault deposits and withdrawals with 1 to 64 threads contending. On a {@code hot} account every thread hits the same
+ * account, on {@code cold} accounts each call picks one of a large pool at random.
+ *
+ * @author Connor Spencer Harries
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VaultBenchmark {
+    private static final int ACCOUNTS = 100000;
+
+    @Param({"hot", "cold"})
+    public String accounts;
+
+    @Param({"false", "true"})
+    public boolean ledger;
+
+    private BenchmarkPlugin plugin;
+    private EconomyImpl economy;
+    private OfflinePlayer[] players;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        plugin = BenchmarkPlugin.open("memory", ledger);
+        economy = new EconomyImpl(plugin);
+        players = new OfflinePlayer["hot".equals(accounts) ? 1 : ACCOUNTS];
+        for (int i = 0; i < players.length; i++) {
+            UUID uniqueId = UUID.randomUUID();
+            players[i] = BenchmarkPlugin.player(uniqueId);
+            plugin.getDataManager().get(uniqueId).setBalance(Long.MAX_VALUE / 4);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        plugin.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public EconomyResponse deposit1() {
+        return deposit();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public EconomyResponse deposit4() {
+        return deposit();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public EconomyResponse deposit16() {
+        return deposit();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public EconomyResponse deposit64() {
+        return deposit();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public EconomyResponse withdraw1() {
+        return withdraw();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public EconomyResponse withdraw4() {
+        return withdraw();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public EconomyResponse withdraw16() {
+        return withdraw();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public EconomyResponse withdraw64() {
+        return withdraw();
+    }
+
+    private EconomyResponse deposit() {
+        return economy.depositPlayer(player(), Money.toMajor(1L));
+    }
+
+    private EconomyResponse withdraw() {
+        return economy.withdrawPlayer(player(), Money.toMajor(1L));
+    }
+
+    private OfflinePlayer player() {
+        return players.length == 1 ? players[0] : players[ThreadLocalRandom.current().nextInt(players.length)];
+    }
+}
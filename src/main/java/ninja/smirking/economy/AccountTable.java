@@ -0,0 +1,1015 @@
+package ninja.smirking.economy;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Concurrent open-addressing table of accounts keyed by the two halves of their UUID.
+ * <p>
+ * Nothing is stored per account as an object: keys, balances, versions and state words live in parallel primitive
+ * arrays that are allocated a chunk at a time, so an account costs roughly 64 bytes and a million of them are a few
+ * hundred arrays as far as the garbage collector is concerned. {@link EconomyData} is a small view holding a handle to
+ * a slot, views are created on demand and can be thrown away freely.
+ * <p>
+ * The table is split into segments. Lookups are optimistic reads that never block, inserts and evictions take the
+ * segment's write lock. Slots never move once allocated, the index that maps hashes to slots is the only thing that
+ * gets rebuilt as the table grows.
+ * <p>
+ * Each slot's state word holds a dirty bit, a retired bit, a count of in-flight mutations and a generation that is
+ * bumped whenever the slot is reused. A mutation pins the slot before touching the balance and a slot is only retired
+ * once it is clean and unpinned, so a change can never land in an account after it has been evicted. A view whose
+ * generation no longer matches its slot re-binds itself through the loader.
+ * <p>
+ * A table created for more than one currency holds every balance of an account side by side in the same chunk, so all
+ * of them are found with a single lookup and pinned, retired and marked dirty together.
+ * <p>
+ * A table created with an expected size also tracks how recently and, through a {@link FrequencySketch}, how often
+ * each account is looked up so that {@link #evict(int, long, long, TimeUnit, Predicate)} can keep the accounts that
+ * are used the most.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class AccountTable {
+    static final long ABSENT = -1L;
+
+    private static final int SEGMENT_BITS = 4;
+    private static final int CHUNK_BITS = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int INITIAL_INDEX = 16;
+
+    private static final int DIRTY = 1;
+    private static final int RETIRED = 2;
+    private static final int PIN = 4;
+    private static final int PINS = 0xFF * PIN;
+    private static final int GENERATION_SHIFT = 10;
+    private static final int GENERATION_MASK = (1 << (32 - GENERATION_SHIFT)) - 1;
+
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+
+    private final Function<UUID, EconomyData> loader;
+    private final List<BalanceListener> observers;
+    private final BalanceListener listener;
+    private final FrequencySketch sketch;
+    private final Segment[] segments;
+    private final int currencies;
+    private final long origin;
+
+    /**
+     * @param listener notified of every change, may be {@code null}
+     * @param loader   used to re-bind views to accounts that have been evicted and must be able to block until the
+     *                 account has been loaded again
+     */
+    public AccountTable(BalanceListener listener, Function<UUID, EconomyData> loader) {
+        this(listener, loader, 0);
+    }
+
+    /**
+     * @param expected how many accounts the table is expected to hold, or {@code 0} if accounts are never evicted and
+     *                 usage need not be tracked
+     * @see #AccountTable(BalanceListener, Function)
+     */
+    public AccountTable(BalanceListener listener, Function<UUID, EconomyData> loader, int expected) {
+        this(listener, loader, expected, 1);
+    }
+
+    /**
+     * @param currencies how many balances each account holds
+     * @see #AccountTable(BalanceListener, Function, int)
+     */
+    public AccountTable(BalanceListener listener, Function<UUID, EconomyData> loader, int expected, int currencies) {
+        Preconditions.checkArgument(currencies > 0, "currencies should be positive");
+        this.currencies = currencies;
+        this.sketch = expected > 0 ? new FrequencySketch(expected) : null;
+        this.origin = System.nanoTime();
+        this.segments = new Segment[1 << SEGMENT_BITS];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(i);
+        }
+        this.observers = new CopyOnWriteArrayList<>();
+        this.listener = listener;
+        this.loader = Preconditions.checkNotNull(loader, "loader should not be null");
+    }
+
+    public boolean contains(UUID uniqueId) {
+        return find(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits()) != ABSENT;
+    }
+
+    /**
+     * @return a view of the account or {@code null} if it isn't resident
+     */
+    public EconomyData get(UUID uniqueId) {
+        long most = uniqueId.getMostSignificantBits();
+        long least = uniqueId.getLeastSignificantBits();
+        long handle = find(most, least);
+        if (handle == ABSENT) {
+            return null;
+        }
+
+        touch(hash(most, least), handle);
+        return new EconomyData(this, uniqueId, handle);
+    }
+
+    /**
+     * Insert an account unless it is already resident. A new account inserted as dirty is reported to the listener
+     * exactly as if it had just been changed.
+     *
+     * @return a view of whichever account is resident afterwards
+     */
+    public EconomyData putIfAbsent(UUID uniqueId, long balance, boolean dirty) {
+        return putIfAbsent(uniqueId, balance, -1L, dirty);
+    }
+
+    /**
+     * @param persistedVersion the version of the stored row {@code balance} was read from, or {@code -1} if unknown
+     * @see #putIfAbsent(UUID, long, boolean)
+     * @see EconomyData#getPersistedBalance()
+     */
+    public EconomyData putIfAbsent(UUID uniqueId, long balance, long persistedVersion, boolean dirty) {
+        long[] balances = new long[currencies];
+        balances[Currency.DEFAULT] = balance;
+        return putIfAbsent(uniqueId, balances, persistedVersion, dirty);
+    }
+
+    /**
+     * @param balances the balance in each currency by id, any missing from the end are zero and any beyond the number
+     *                 of currencies are ignored
+     * @see #putIfAbsent(UUID, long, long, boolean)
+     */
+    public EconomyData putIfAbsent(UUID uniqueId, long[] balances, long persistedVersion, boolean dirty) {
+        return putIfAbsent(uniqueId, balances, balances, persistedVersion, dirty);
+    }
+
+    /**
+     * @param persisted the balance in each currency as of {@code persistedVersion}, which may differ from {@code
+     *                  balances} if the account has changed since it was stored
+     * @see #putIfAbsent(UUID, long[], long, boolean)
+     */
+    public EconomyData putIfAbsent(UUID uniqueId, long[] balances, long[] persisted, long persistedVersion, boolean dirty) {
+        long most = uniqueId.getMostSignificantBits();
+        long least = uniqueId.getLeastSignificantBits();
+        int hash = hash(most, least);
+        Segment segment = segments[hash >>> (32 - SEGMENT_BITS)];
+
+        long handle;
+        boolean created;
+        long stamp = segment.lock.writeLock();
+        try {
+            handle = segment.find(most, least, hash);
+            created = handle == ABSENT;
+            if (created) {
+                handle = segment.insert(most, least, hash, balances, persisted, persistedVersion, dirty);
+            }
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+
+        touch(hash, handle);
+        EconomyData data = new EconomyData(this, uniqueId, handle);
+        if (created && dirty && listener != null) {
+            listener.onDirty(data);
+        }
+        return data;
+    }
+
+    /**
+     * Evict every clean account that {@code predicate} accepts. The predicate is called whilst the segment is locked
+     * for reading and must not modify the table.
+     *
+     * @return the number of accounts evicted
+     */
+    public int evictIf(Predicate<EconomyData> predicate) {
+        int evicted = 0;
+        for (Segment segment : segments) {
+            evicted += segment.evictIf(predicate);
+        }
+        return evicted;
+    }
+
+    /**
+     * Evict clean accounts that {@code keep} does not accept and that have not been looked up within {@code window}.
+     * Those that haven't been looked up for {@code idle} go first, then if more than {@code maximum} accounts are still
+     * resident the least frequently used of the rest go until there are no more than {@code maximum}, the least
+     * recently used going first amongst equals. Accounts used within the window are never evicted, that is what gives
+     * a new account time to prove itself before it has to compete on frequency.
+     * <p>
+     * Only works for a table created with an expected size. {@code keep} is called whilst a segment is locked for
+     * reading and must not modify the table.
+     *
+     * @return the number of accounts evicted
+     */
+    public int evict(int maximum, long idle, long window, TimeUnit unit, Predicate<UUID> keep) {
+        Preconditions.checkState(sketch != null, "usage is not being tracked");
+        int now = now();
+        int idleBefore = now - (int) Math.min(Integer.MAX_VALUE, unit.toSeconds(idle));
+        int windowStart = now - (int) Math.min(Integer.MAX_VALUE, unit.toSeconds(window));
+
+        int evicted = 0;
+        Candidates candidates = new Candidates();
+        for (Segment segment : segments) {
+            evicted += segment.evictIdle(idleBefore, windowStart, keep, candidates);
+        }
+
+        int excess = size() - maximum;
+        if (excess <= 0 || candidates.count == 0) {
+            return evicted;
+        }
+
+        /*
+         * Anything scoring below the threshold goes, ties at the threshold go until the excess is covered. Scores that
+         * changed since they were collected don't matter much, it is only a heuristic.
+         */
+        long[] sorted = Arrays.copyOf(candidates.scores, candidates.count);
+        Arrays.sort(sorted);
+        long threshold = sorted[Math.min(excess, sorted.length) - 1];
+        int ties = 0;
+        for (int i = 0; i < Math.min(excess, sorted.length); i++) {
+            if (sorted[i] == threshold) {
+                ties++;
+            }
+        }
+
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                for (int i = 0; i < candidates.count; i++) {
+                    if (segments[(int) (candidates.handles[i] >>> 32) & 0xFF] != segment) {
+                        continue;
+                    }
+
+                    long score = candidates.scores[i];
+                    if (score > threshold || (score == threshold && ties-- <= 0)) {
+                        continue;
+                    }
+
+                    if (segment.retire(candidates.handles[i], candidates.hashes[i])) {
+                        evicted++;
+                    }
+                }
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Evict the account if it is resident, clean and not in the middle of a change.
+     *
+     * @return {@code true} if it was evicted
+     */
+    public boolean evict(UUID uniqueId) {
+        long most = uniqueId.getMostSignificantBits();
+        long least = uniqueId.getLeastSignificantBits();
+        int hash = hash(most, least);
+        Segment segment = segments[hash >>> (32 - SEGMENT_BITS)];
+        long stamp = segment.lock.writeLock();
+        try {
+            long handle = segment.find(most, least, hash);
+            return handle != ABSENT && segment.retire(handle, hash);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Fold a change that was made and will be persisted somewhere else into the account if it is resident. The
+     * persisted balance moves with the balance so the change is never written back from here, which means the owner
+     * must not be flushing the account at the same time.
+     *
+     * @return {@code false} if the account isn't resident
+     */
+    public boolean applyExternal(UUID uniqueId, long change) {
+        return applyExternal(uniqueId, Currency.DEFAULT, change);
+    }
+
+    /**
+     * @see #applyExternal(UUID, long)
+     */
+    public boolean applyExternal(UUID uniqueId, int currency, long change) {
+        checkCurrency(currency);
+        long handle = find(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits());
+        if (handle == ABSENT || !pin(handle)) {
+            return false;
+        }
+
+        chunk(handle).persisted[index(handle, currency)] += change;
+        notifyExternal(new EconomyData(this, uniqueId, handle), handle, currency, change);
+        return true;
+    }
+
+    /**
+     * Record that the stored row now holds {@code persisted} at {@code persistedVersion}, folding any difference from
+     * the persisted balance held here into the balance as {@link EconomyData#reconcile(long, long, long)} would. Does
+     * nothing if the account isn't resident, so unlike a view it never reloads an evicted account just to be told
+     * what was read from storage anyway. Like {@link #applyExternal(UUID, long)} the owner must not be flushing the
+     * account at the same time.
+     *
+     * @return {@code false} if the account isn't resident
+     */
+    public boolean reconcile(UUID uniqueId, long persisted, long persistedVersion) {
+        long handle = find(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits());
+        if (handle == ABSENT || !pin(handle)) {
+            return false;
+        }
+
+        Chunk chunk = chunk(handle);
+        int offset = offset(handle);
+        long expected = chunk.persisted[offset];
+        long expectedVersion = chunk.persistedVersions[offset];
+        if (expected == persisted && (expectedVersion == persistedVersion || expectedVersion < 0L || persistedVersion < 0L)) {
+            unpin(handle);
+            return true;
+        }
+        reconcile(new EconomyData(this, uniqueId, handle), handle, Currency.DEFAULT, expected, persisted, persistedVersion);
+        return true;
+    }
+
+    /**
+     * Like {@link #reconcile(UUID, long, long)} for every currency at once, {@code persisted} holding the stored
+     * balances by currency id. Each currency whose balance differs is reconciled on its own, so listeners hear about
+     * each of them separately.
+     *
+     * @return {@code false} if the account isn't resident
+     */
+    public boolean reconcile(UUID uniqueId, long[] persisted, long persistedVersion) {
+        long handle = find(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits());
+        if (handle == ABSENT || !pin(handle)) {
+            return false;
+        }
+
+        Chunk chunk = chunk(handle);
+        int offset = offset(handle);
+        long expectedVersion = chunk.persistedVersions[offset];
+        boolean moved = expectedVersion != persistedVersion && expectedVersion >= 0L && persistedVersion >= 0L;
+        EconomyData data = null;
+        for (int currency = 0; currency < currencies; currency++) {
+            long expected = chunk.persisted[index(handle, currency)];
+            long stored = currency < persisted.length ? persisted[currency] : 0L;
+            if (expected == stored) {
+                continue;
+            }
+
+            if (data == null) {
+                data = new EconomyData(this, uniqueId, handle);
+            } else if (!pin(handle)) {
+                return true;
+            }
+            reconcile(data, handle, currency, expected, stored, persistedVersion);
+        }
+
+        if (data == null) {
+            if (moved) {
+                chunk.persistedVersions[offset] = persistedVersion;
+            }
+            unpin(handle);
+        }
+        return true;
+    }
+
+    /**
+     * @return roughly how often the account has been looked up recently, {@code 0} if usage isn't being tracked
+     */
+    public int frequency(UUID uniqueId) {
+        return sketch == null ? 0 : sketch.frequency(hash(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits()));
+    }
+
+    /**
+     * Count {@code frequency} lookups of the account without looking it up, so that usage saved from a previous run
+     * counts towards which accounts are kept.
+     */
+    public void addFrequency(UUID uniqueId, int frequency) {
+        if (sketch != null) {
+            int hash = hash(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits());
+            for (int i = 0; i < frequency; i++) {
+                sketch.increment(hash);
+            }
+        }
+    }
+
+    /**
+     * Register a listener that is told about every balance change after the owner's listener. It is never told about
+     * accounts becoming dirty, that is the owner's business.
+     */
+    public void addListener(BalanceListener listener) {
+        observers.add(Preconditions.checkNotNull(listener, "listener should not be null"));
+    }
+
+    /**
+     * Pass a view of every resident account to {@code consumer}, one segment at a time whilst that segment is locked
+     * for reading. The consumer must not modify the table.
+     */
+    public void forEach(Consumer<EconomyData> consumer) {
+        for (Segment segment : segments) {
+            segment.forEach(consumer);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return how many balances each account holds
+     */
+    public int getCurrencies() {
+        return currencies;
+    }
+
+    EconomyData resolve(UUID uniqueId) {
+        return loader.apply(uniqueId);
+    }
+
+    long balance(long handle, int currency) {
+        return chunk(handle).balances.get(index(handle, currency));
+    }
+
+    long version(long handle) {
+        return chunk(handle).versions.get(offset(handle));
+    }
+
+    boolean compareAndSetBalance(long handle, int currency, long expect, long update) {
+        return chunk(handle).balances.compareAndSet(index(handle, currency), expect, update);
+    }
+
+    long getAndSetBalance(long handle, int currency, long balance) {
+        return chunk(handle).balances.getAndSet(index(handle, currency), balance);
+    }
+
+    long persistedBalance(long handle, int currency) {
+        return chunk(handle).persisted[index(handle, currency)];
+    }
+
+    long persistedVersion(long handle) {
+        return chunk(handle).persistedVersions[offset(handle)];
+    }
+
+    /**
+     * @see EconomyData#reconcile(long, long, long)
+     */
+    void reconcile(EconomyData data, long handle, int currency, long expected, long persisted, long persistedVersion) {
+        Chunk chunk = chunk(handle);
+        chunk.persisted[index(handle, currency)] = persisted;
+        chunk.persistedVersions[offset(handle)] = persistedVersion;
+
+        notifyExternal(data, handle, currency, persisted - expected);
+    }
+
+    boolean isLive(long handle) {
+        return live(chunk(handle).states.get(offset(handle)), handle);
+    }
+
+    boolean isDirty(long handle) {
+        return (chunk(handle).states.get(offset(handle)) & DIRTY) != 0;
+    }
+
+    /**
+     * Register an in-flight mutation, which stops the slot from being evicted until it is unpinned.
+     *
+     * @return {@code false} if the handle is stale and the view has to re-bind
+     */
+    boolean pin(long handle) {
+        AtomicIntegerArray states = chunk(handle).states;
+        int offset = offset(handle);
+        for (;;) {
+            int state = states.get(offset);
+            if (!live(state, handle)) {
+                return false;
+            }
+
+            if ((state & PINS) == PINS) {
+                Thread.yield();
+            } else if (states.compareAndSet(offset, state, state + PIN)) {
+                return true;
+            }
+        }
+    }
+
+    void unpin(long handle) {
+        chunk(handle).states.getAndAdd(offset(handle), -PIN);
+    }
+
+    /**
+     * Finish a mutation that changed the balance: bump the version, then unpin the slot and mark it dirty in one step.
+     */
+    void unpinChanged(EconomyData data, long handle, int currency, long previous, long current) {
+        Chunk chunk = chunk(handle);
+        int offset = offset(handle);
+        chunk.versions.incrementAndGet(offset);
+
+        int state;
+        do {
+            state = chunk.states.get(offset);
+        } while (!chunk.states.compareAndSet(offset, state, (state - PIN) | DIRTY));
+
+        if (listener != null) {
+            if ((state & DIRTY) == 0) {
+                listener.onDirty(data);
+            }
+            listener.onBalanceChange(data, currency, previous, current);
+        }
+        for (BalanceListener observer : observers) {
+            observer.onBalanceChange(data, currency, previous, current);
+        }
+    }
+
+    /**
+     * @return {@code false} if the handle is stale
+     */
+    boolean markDirty(EconomyData data, long handle) {
+        AtomicIntegerArray states = chunk(handle).states;
+        int offset = offset(handle);
+        for (;;) {
+            int state = states.get(offset);
+            if (!live(state, handle)) {
+                return false;
+            }
+
+            if ((state & DIRTY) != 0) {
+                return true;
+            }
+
+            if (states.compareAndSet(offset, state, state | DIRTY)) {
+                if (listener != null) {
+                    listener.onDirty(data);
+                }
+                return true;
+            }
+        }
+    }
+
+    void clearDirty(long handle) {
+        AtomicIntegerArray states = chunk(handle).states;
+        int offset = offset(handle);
+        int state;
+        do {
+            state = states.get(offset);
+        } while (live(state, handle) && (state & DIRTY) != 0 && !states.compareAndSet(offset, state, state & ~DIRTY));
+    }
+
+    /**
+     * A stale handle is left alone and reported clean, its slot may already belong to another account whose version
+     * means nothing here.
+     *
+     * @see EconomyData#markClean(long)
+     */
+    boolean markClean(long handle, long version) {
+        Chunk chunk = chunk(handle);
+        int offset = offset(handle);
+        if (!live(chunk.states.get(offset), handle)) {
+            return true;
+        }
+
+        clearDirty(handle);
+        if (chunk.versions.get(offset) == version) {
+            return true;
+        }
+
+        for (;;) {
+            int state = chunk.states.get(offset);
+            if (!live(state, handle) || (state & DIRTY) != 0) {
+                return true;
+            }
+
+            if (chunk.states.compareAndSet(offset, state, state | DIRTY)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Add a change made elsewhere to a pinned slot, unpin it and tell the listeners.
+     */
+    private void notifyExternal(EconomyData data, long handle, int currency, long change) {
+        if (change == 0L) {
+            unpin(handle);
+            return;
+        }
+
+        AtomicLongArray balances = chunk(handle).balances;
+        int offset = index(handle, currency);
+        long current;
+        do {
+            current = balances.get(offset);
+        } while (!balances.compareAndSet(offset, current, current + change));
+        unpin(handle);
+
+        if (listener != null) {
+            listener.onExternalChange(data, currency, current, current + change);
+        }
+        for (BalanceListener observer : observers) {
+            observer.onExternalChange(data, currency, current, current + change);
+        }
+    }
+
+    /**
+     * Record a lookup. The access time is a plain write racing with other lookups, whichever lands last wins and
+     * they are all close enough.
+     */
+    private void touch(int hash, long handle) {
+        if (sketch != null) {
+            sketch.increment(hash);
+            chunk(handle).accessed[offset(handle)] = now();
+        }
+    }
+
+    /**
+     * @return seconds, roughly, since the table was created
+     */
+    private int now() {
+        return (int) ((System.nanoTime() - origin) >>> 30);
+    }
+
+    private long find(long most, long least) {
+        int hash = hash(most, least);
+        Segment segment = segments[hash >>> (32 - SEGMENT_BITS)];
+        long stamp = segment.lock.tryOptimisticRead();
+        long handle = segment.find(most, least, hash);
+        if (!segment.lock.validate(stamp)) {
+            stamp = segment.lock.readLock();
+            try {
+                handle = segment.find(most, least, hash);
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return handle;
+    }
+
+    private Chunk chunk(long handle) {
+        return segments[(int) (handle >>> 32) & 0xFF].chunks[(int) handle >>> CHUNK_BITS];
+    }
+
+    private static int offset(long handle) {
+        return (int) handle & CHUNK_MASK;
+    }
+
+    /**
+     * @return where the slot's balance in {@code currency} lives in the chunk's balance arrays
+     */
+    private int index(long handle, int currency) {
+        return offset(handle) * currencies + currency;
+    }
+
+    void checkCurrency(int currency) {
+        Preconditions.checkElementIndex(currency, currencies, "currency");
+    }
+
+    private static boolean live(int state, long handle) {
+        return (state & RETIRED) == 0 && (state >>> GENERATION_SHIFT) == (int) (handle >>> 40);
+    }
+
+    private static long handle(int generation, int segment, int slot) {
+        return ((long) generation << 40) | ((long) segment << 32) | (slot & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long most, long least) {
+        long bits = most ^ least;
+        int hash = (int) (bits ^ (bits >>> 32));
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Balances and persisted balances hold one entry per currency for each slot, a slot's entries being adjacent.
+     */
+    private static final class Chunk {
+        private final long[] most = new long[CHUNK_SIZE];
+        private final long[] least = new long[CHUNK_SIZE];
+        private final AtomicLongArray balances;
+        private final AtomicLongArray versions = new AtomicLongArray(CHUNK_SIZE);
+        private final AtomicIntegerArray states = new AtomicIntegerArray(CHUNK_SIZE);
+
+        /*
+         * Only touched by whoever is flushing the account, which is serialised by the DAO, and published to it through
+         * the state word.
+         */
+        private final long[] persisted;
+        private final long[] persistedVersions = new long[CHUNK_SIZE];
+        private final int[] accessed = new int[CHUNK_SIZE];
+
+        private Chunk(int currencies) {
+            this.balances = new AtomicLongArray(CHUNK_SIZE * currencies);
+            this.persisted = new long[CHUNK_SIZE * currencies];
+        }
+    }
+
+    /**
+     * Accounts that may be evicted for size, with a score that orders them by frequency then by last access.
+     */
+    private static final class Candidates {
+        private long[] handles = new long[64];
+        private long[] scores = new long[64];
+        private int[] hashes = new int[64];
+        private int count;
+
+        private void add(long handle, int hash, int frequency, int accessed) {
+            if (count == handles.length) {
+                handles = Arrays.copyOf(handles, count * 2);
+                scores = Arrays.copyOf(scores, count * 2);
+                hashes = Arrays.copyOf(hashes, count * 2);
+            }
+            handles[count] = handle;
+            scores[count] = ((long) frequency << 32) | (accessed & 0xFFFFFFFFL);
+            hashes[count] = hash;
+            count++;
+        }
+    }
+
+    private final class Segment {
+        private final StampedLock lock = new StampedLock();
+        private final int id;
+
+        private volatile Chunk[] chunks = new Chunk[1];
+        private volatile int size;
+        private int[] index = new int[INITIAL_INDEX];
+        private int[] free = new int[16];
+        private int tombstones;
+        private int allocated;
+        private int freeCount;
+
+        private Segment(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Safe to call under an optimistic read, a torn read is detected by the caller validating its stamp.
+         */
+        private long find(long most, long least, int hash) {
+            int[] index = this.index;
+            Chunk[] chunks = this.chunks;
+            int mask = index.length - 1;
+            for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                int entry = index[i];
+                if (entry == EMPTY) {
+                    return ABSENT;
+                }
+
+                if (entry == TOMBSTONE) {
+                    continue;
+                }
+
+                int slot = entry - 1;
+                Chunk chunk = (slot >>> CHUNK_BITS) < chunks.length ? chunks[slot >>> CHUNK_BITS] : null;
+                if (chunk == null) {
+                    return ABSENT;
+                }
+
+                int offset = slot & CHUNK_MASK;
+                if (chunk.most[offset] == most && chunk.least[offset] == least) {
+                    return handle(chunk.states.get(offset) >>> GENERATION_SHIFT, id, slot);
+                }
+            }
+            return ABSENT;
+        }
+
+        private long insert(long most, long least, int hash, long[] balances, long[] persisted, long persistedVersion, boolean dirty) {
+            int slot = freeCount > 0 ? free[--freeCount] : allocate();
+            Chunk chunk = chunks[slot >>> CHUNK_BITS];
+            int offset = slot & CHUNK_MASK;
+            int generation = ((chunk.states.get(offset) >>> GENERATION_SHIFT) + 1) & GENERATION_MASK;
+            chunk.most[offset] = most;
+            chunk.least[offset] = least;
+            for (int currency = 0, base = offset * currencies; currency < currencies; currency++) {
+                chunk.balances.set(base + currency, currency < balances.length ? balances[currency] : 0L);
+                chunk.persisted[base + currency] = currency < persisted.length ? persisted[currency] : 0L;
+            }
+            chunk.versions.set(offset, 0L);
+            chunk.persistedVersions[offset] = persistedVersion;
+            chunk.accessed[offset] = now();
+            chunk.states.set(offset, (generation << GENERATION_SHIFT) | (dirty ? DIRTY : 0));
+
+            if ((size + tombstones + 1) * 2 > index.length) {
+                index = rehash(size + 1 > index.length / 4 ? index.length * 2 : index.length);
+            }
+            place(index, hash, slot);
+            size++;
+            return handle(generation, id, slot);
+        }
+
+        private int allocate() {
+            int slot = allocated++;
+            Chunk[] chunks = this.chunks;
+            int chunk = slot >>> CHUNK_BITS;
+            if (chunk >= chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            }
+            if (chunks[chunk] == null) {
+                chunks[chunk] = new Chunk(currencies);
+            }
+            this.chunks = chunks;
+            return slot;
+        }
+
+        private int[] rehash(int length) {
+            int[] rehashed = new int[length];
+            Chunk[] chunks = this.chunks;
+            for (int entry : index) {
+                if (entry > 0) {
+                    int slot = entry - 1;
+                    Chunk chunk = chunks[slot >>> CHUNK_BITS];
+                    int offset = slot & CHUNK_MASK;
+                    place(rehashed, hash(chunk.most[offset], chunk.least[offset]), slot);
+                }
+            }
+            tombstones = 0;
+            return rehashed;
+        }
+
+        private void place(int[] index, int hash, int slot) {
+            int mask = index.length - 1;
+            int i = hash & mask;
+            while (index[i] > 0) {
+                i = (i + 1) & mask;
+            }
+            if (index[i] == TOMBSTONE) {
+                tombstones--;
+            }
+            index[i] = slot + 1;
+        }
+
+        private void forEach(Consumer<EconomyData> consumer) {
+            long stamp = lock.readLock();
+            try {
+                Chunk[] chunks = this.chunks;
+                for (int entry : index) {
+                    if (entry > 0) {
+                        int slot = entry - 1;
+                        Chunk chunk = chunks[slot >>> CHUNK_BITS];
+                        int offset = slot & CHUNK_MASK;
+                        long handle = handle(chunk.states.get(offset) >>> GENERATION_SHIFT, id, slot);
+                        consumer.accept(new EconomyData(AccountTable.this, new UUID(chunk.most[offset], chunk.least[offset]), handle));
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private int evictIf(Predicate<EconomyData> predicate) {
+            long[] candidates = new long[16];
+            int count = 0;
+
+            long stamp = lock.readLock();
+            try {
+                Chunk[] chunks = this.chunks;
+                for (int entry : index) {
+                    if (entry <= 0) {
+                        continue;
+                    }
+
+                    int slot = entry - 1;
+                    Chunk chunk = chunks[slot >>> CHUNK_BITS];
+                    int offset = slot & CHUNK_MASK;
+                    int state = chunk.states.get(offset);
+                    if ((state & (DIRTY | RETIRED | PINS)) != 0) {
+                        continue;
+                    }
+
+                    long handle = handle(state >>> GENERATION_SHIFT, id, slot);
+                    if (predicate.test(new EconomyData(AccountTable.this, new UUID(chunk.most[offset], chunk.least[offset]), handle))) {
+                        if (count == candidates.length) {
+                            candidates = Arrays.copyOf(candidates, count * 2);
+                        }
+                        candidates[count++] = handle;
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+
+            if (count == 0) {
+                return 0;
+            }
+
+            int evicted = 0;
+            stamp = lock.writeLock();
+            try {
+                for (int i = 0; i < count; i++) {
+                    long handle = candidates[i];
+                    int slot = (int) handle;
+                    Chunk chunk = chunks[slot >>> CHUNK_BITS];
+                    int offset = slot & CHUNK_MASK;
+                    if (retire(handle, hash(chunk.most[offset], chunk.least[offset]))) {
+                        evicted++;
+                    }
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            return evicted;
+        }
+
+        /**
+         * Evict the idle accounts in this segment and add the rest of those that could be evicted to {@code
+         * candidates}.
+         */
+        private int evictIdle(int idleBefore, int windowStart, Predicate<UUID> keep, Candidates candidates) {
+            int start = candidates.count;
+            long stamp = lock.readLock();
+            try {
+                Chunk[] chunks = this.chunks;
+                for (int entry : index) {
+                    if (entry <= 0) {
+                        continue;
+                    }
+
+                    int slot = entry - 1;
+                    Chunk chunk = chunks[slot >>> CHUNK_BITS];
+                    int offset = slot & CHUNK_MASK;
+                    int state = chunk.states.get(offset);
+                    int accessed = chunk.accessed[offset];
+                    if ((state & (DIRTY | RETIRED | PINS)) != 0 || accessed - windowStart > 0) {
+                        continue;
+                    }
+
+                    long most = chunk.most[offset];
+                    long least = chunk.least[offset];
+                    if (keep.test(new UUID(most, least))) {
+                        continue;
+                    }
+
+                    int hash = hash(most, least);
+                    candidates.add(handle(state >>> GENERATION_SHIFT, id, slot), hash, sketch.frequency(hash), accessed);
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+
+            int evicted = 0;
+            int kept = start;
+            stamp = lock.writeLock();
+            try {
+                for (int i = start; i < candidates.count; i++) {
+                    long handle = candidates.handles[i];
+                    if ((int) candidates.scores[i] - idleBefore <= 0) {
+                        if (retire(handle, candidates.hashes[i])) {
+                            evicted++;
+                        }
+                        continue;
+                    }
+
+                    candidates.handles[kept] = handle;
+                    candidates.scores[kept] = candidates.scores[i];
+                    candidates.hashes[kept] = candidates.hashes[i];
+                    kept++;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            candidates.count = kept;
+            return evicted;
+        }
+
+        /**
+         * Retire the slot if it is still clean, unpinned and of the handle's generation. Must hold the write lock.
+         */
+        private boolean retire(long handle, int hash) {
+            int slot = (int) handle;
+            Chunk chunk = chunks[slot >>> CHUNK_BITS];
+            int offset = slot & CHUNK_MASK;
+            int clean = (int) (handle >>> 40) << GENERATION_SHIFT;
+            if (!chunk.states.compareAndSet(offset, clean, clean | RETIRED)) {
+                return false;
+            }
+
+            remove(hash, slot);
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, freeCount * 2);
+            }
+            free[freeCount++] = slot;
+            return true;
+        }
+
+        private void remove(int hash, int slot) {
+            int mask = index.length - 1;
+            for (int i = hash & mask; index[i] != EMPTY; i = (i + 1) & mask) {
+                if (index[i] == slot + 1) {
+                    index[i] = TOMBSTONE;
+                    tombstones++;
+                    size--;
+                    return;
+                }
+            }
+        }
+    }
+}
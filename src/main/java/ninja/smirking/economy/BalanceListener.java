@@ -0,0 +1,50 @@
+package ninja.smirking.economy;
+
+/**
+ * Notified after every successful change to an {@link EconomyData} balance, on the thread that made the change.
+ * Implementations are on the hot path of every transaction and must not block.
+ *
+ * @author Connor Spencer Harries
+ */
+@FunctionalInterface
+public interface BalanceListener {
+    void onBalanceChange(EconomyData data, long previous, long current);
+
+    /**
+     * Called for a change to the balance in any currency. Only changes to the default currency are passed on to
+     * {@link #onBalanceChange(EconomyData, long, long)} unless overridden, so listeners that only know about one
+     * balance never see the others.
+     */
+    default void onBalanceChange(EconomyData data, int currency, long previous, long current) {
+        if (currency == Currency.DEFAULT) {
+            onBalanceChange(data, previous, current);
+        }
+    }
+
+    /**
+     * Called once each time {@code data} goes from clean to dirty.
+     */
+    default void onDirty(EconomyData data) {
+
+    }
+
+    /**
+     * Called instead of {@link #onBalanceChange(EconomyData, long, long)} when the change was made by another server
+     * and has only been folded into the copy held here. Treated like any other change unless overridden.
+     */
+    default void onExternalChange(EconomyData data, long previous, long current) {
+        onBalanceChange(data, previous, current);
+    }
+
+    /**
+     * Called for an external change to the balance in any currency, treated like any other change to it unless
+     * overridden. Changes to the default currency go through {@link #onExternalChange(EconomyData, long, long)}.
+     */
+    default void onExternalChange(EconomyData data, int currency, long previous, long current) {
+        if (currency == Currency.DEFAULT) {
+            onExternalChange(data, previous, current);
+        } else {
+            onBalanceChange(data, currency, previous, current);
+        }
+    }
+}
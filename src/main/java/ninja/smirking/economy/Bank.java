@@ -0,0 +1,148 @@
+package ninja.smirking.economy;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A balance shared by an owner and any number of members, the way a town or faction keeps its money. Everybody in it
+ * can pay in at once without waiting on each other, see {@link StripedBalance}, and withdrawals can never overdraw it.
+ * <p>
+ * Changes mark the bank dirty and {@link Banks} writes it out on the next flush. Marking it dirty is a read of a
+ * shared flag until the first change after a flush, so a busy bank doesn't bounce that flag between cores either.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class Bank {
+    private final Set<UUID> members;
+    private final StripedBalance balance;
+    private final UUID uniqueId;
+    private final String name;
+    private final UUID owner;
+
+    private volatile boolean dirty;
+
+    public Bank(String name, UUID owner, Collection<UUID> members, long balance) {
+        this.name = Preconditions.checkNotNull(name, "name should not be null");
+        this.owner = Preconditions.checkNotNull(owner, "owner should not be null");
+        this.members = Sets.newConcurrentHashSet(members);
+        this.balance = new StripedBalance(balance);
+        this.uniqueId = uniqueId(name);
+    }
+
+    /**
+     * Banks aren't players but the ledger records transactions between UUIDs, so each bank gets one derived from its
+     * name.
+     */
+    public static UUID uniqueId(String name) {
+        return UUID.nameUUIDFromBytes(("bank:" + name.toLowerCase(Locale.ROOT)).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public UUID getUniqueId() {
+        return uniqueId;
+    }
+
+    public UUID getOwner() {
+        return owner;
+    }
+
+    public boolean isOwner(UUID uniqueId) {
+        return owner.equals(uniqueId);
+    }
+
+    /**
+     * @return {@code true} for the owner as well as the members
+     */
+    public boolean isMember(UUID uniqueId) {
+        return isOwner(uniqueId) || members.contains(uniqueId);
+    }
+
+    public Set<UUID> getMembers() {
+        return ImmutableSet.copyOf(members);
+    }
+
+    /**
+     * @return {@code true} if {@code uniqueId} wasn't already a member
+     */
+    public boolean addMember(UUID uniqueId) {
+        if (members.add(uniqueId)) {
+            markDirty();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if {@code uniqueId} was a member
+     */
+    public boolean removeMember(UUID uniqueId) {
+        if (members.remove(uniqueId)) {
+            markDirty();
+            return true;
+        }
+        return false;
+    }
+
+    public long getBalance() {
+        return balance.get();
+    }
+
+    /**
+     * @throws ArithmeticException if the balance would overflow
+     */
+    public void deposit(long amount) {
+        balance.deposit(amount);
+        markDirty();
+    }
+
+    /**
+     * Take {@code amount} from the balance if, and only if, the balance covers it.
+     *
+     * @return {@code true} if the balance was reduced
+     */
+    public boolean tryWithdraw(long amount) {
+        if (balance.tryWithdraw(amount)) {
+            markDirty();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Clear the flag before reading the bank to save it, a change made during the save sets it again.
+     *
+     * @return whether the bank was dirty
+     */
+    public boolean clearDirty() {
+        if (!dirty) {
+            return false;
+        }
+        dirty = false;
+        return true;
+    }
+
+    void markDirty() {
+        if (!dirty) {
+            dirty = true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
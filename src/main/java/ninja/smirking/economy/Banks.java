@@ -0,0 +1,122 @@
+package ninja.smirking.economy;
+
+import ninja.smirking.economy.storage.EconomyDataDao;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Every bank, held in memory for as long as the plugin is enabled and looked up by name regardless of case. There are
+ * few enough banks that all of them are read from storage on start and changed ones are written back by {@link
+ * #flush()}.
+ * <p>
+ * Each server writes whole banks, so servers sharing storage should not share banks. The journal only covers player
+ * accounts, a crash loses whatever happened to a bank since the last flush.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class Banks {
+    public static final int MAXIMUM_NAME_LENGTH = 64;
+
+    private final Object flushLock = new Object();
+    private final ConcurrentMap<String, Bank> banks;
+    private final Queue<String> deleted;
+    private final EconomyDataDao dao;
+
+    public Banks(EconomyDataDao dao) {
+        this.banks = Maps.newConcurrentMap();
+        this.deleted = Queues.newConcurrentLinkedQueue();
+        this.dao = dao;
+    }
+
+    /**
+     * Read every stored bank. This blocks and should be done before anybody can create a bank, otherwise a bank
+     * created in the meantime is replaced by the stored one with the same name.
+     */
+    public void seed() {
+        dao.forEachBank(bank -> banks.put(key(bank.getName()), bank));
+    }
+
+    /**
+     * @return the bank called {@code name}, or {@code null} if there isn't one
+     */
+    public Bank get(String name) {
+        return name == null ? null : banks.get(key(name));
+    }
+
+    /**
+     * @return the new bank, or {@code null} if there is already a bank called {@code name}
+     */
+    public Bank create(String name, UUID owner) {
+        Preconditions.checkArgument(name.length() <= MAXIMUM_NAME_LENGTH, "name should be no longer than " + MAXIMUM_NAME_LENGTH + " characters");
+        Bank bank = new Bank(name, owner, Collections.emptySet(), 0L);
+        bank.markDirty();
+        return banks.putIfAbsent(key(name), bank) == null ? bank : null;
+    }
+
+    /**
+     * @return the bank that was deleted, or {@code null} if there wasn't one
+     */
+    public Bank delete(String name) {
+        Bank bank = banks.remove(key(name));
+        if (bank != null) {
+            deleted.offer(bank.getName());
+        }
+        return bank;
+    }
+
+    public List<String> getNames() {
+        List<String> names = Lists.newArrayListWithCapacity(banks.size());
+        for (Bank bank : banks.values()) {
+            names.add(bank.getName());
+        }
+        return ImmutableList.copyOf(names);
+    }
+
+    public int size() {
+        return banks.size();
+    }
+
+    /**
+     * Forget every bank that has been deleted and then write every bank that has changed. A bank created since with the
+     * same name is written again after the old one is removed, storage may not tell the two names apart. May block, so
+     * shouldn't be called on the server thread.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<String> failed = Lists.newArrayList();
+            for (String name = deleted.poll(); name != null; name = deleted.poll()) {
+                if (!dao.deleteBank(name)) {
+                    failed.add(name);
+                    continue;
+                }
+
+                Bank replacement = banks.get(key(name));
+                if (replacement != null) {
+                    replacement.markDirty();
+                }
+            }
+            deleted.addAll(failed);
+
+            for (Bank bank : banks.values()) {
+                if (bank.clearDirty() && !dao.saveBank(bank)) {
+                    bank.markDirty();
+                }
+            }
+        }
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,79 @@
+package ninja.smirking.economy;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * The currencies configured under {@code currencies}, in order, the first being the default. Without that section
+ * there is a single currency called dollars, which is what every account held before there could be more than one.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class Currencies {
+    private static final Pattern NAME = Pattern.compile("[a-z][a-z0-9_]{0,31}");
+
+    private final Map<String, Currency> byName;
+    private final List<Currency> currencies;
+
+    private Currencies(List<Currency> currencies) {
+        ImmutableMap.Builder<String, Currency> byName = ImmutableMap.builder();
+        for (Currency currency : currencies) {
+            byName.put(currency.getName(), currency);
+        }
+        this.currencies = ImmutableList.copyOf(currencies);
+        this.byName = byName.build();
+    }
+
+    /**
+     * @throws IllegalArgumentException if a currency's name can't be used as a column name
+     */
+    public static Currencies load(ConfigurationSection config) {
+        ConfigurationSection section = config.getConfigurationSection("currencies");
+        if (section == null || section.getKeys(false).isEmpty()) {
+            return new Currencies(ImmutableList.of(new Currency(Currency.DEFAULT, "dollars", "dollar", "dollars")));
+        }
+
+        ImmutableList.Builder<Currency> currencies = ImmutableList.builder();
+        int id = 0;
+        for (String key : section.getKeys(false)) {
+            String name = key.toLowerCase(Locale.ROOT);
+            Preconditions.checkArgument(NAME.matcher(name).matches(), "currency %s should be a letter followed by at most 31 letters, digits or underscores", key);
+            currencies.add(new Currency(id++, name, section.getString(key + ".singular", name), section.getString(key + ".plural", name)));
+        }
+        return new Currencies(currencies.build());
+    }
+
+    /**
+     * @return the currency with {@code id}, which must exist
+     */
+    public Currency get(int id) {
+        return currencies.get(id);
+    }
+
+    /**
+     * @return the currency called {@code name}, or {@code null} if there isn't one
+     */
+    public Currency get(String name) {
+        return name == null ? null : byName.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    public Currency getDefault() {
+        return currencies.get(Currency.DEFAULT);
+    }
+
+    public List<Currency> getAll() {
+        return currencies;
+    }
+
+    public int size() {
+        return currencies.size();
+    }
+}
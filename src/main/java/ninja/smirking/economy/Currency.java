@@ -0,0 +1,55 @@
+package ninja.smirking.economy;
+
+/**
+ * One of the currencies every account holds a balance in. The id is the currency's position in the config and indexes
+ * the balance everywhere the balances of an account are held together, so currencies may be added to the end of the
+ * list but never reordered or removed.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class Currency {
+    /**
+     * The id of the currency Vault and everything else that only knows about one balance deals in.
+     */
+    public static final int DEFAULT = 0;
+
+    private final String singular;
+    private final String plural;
+    private final String name;
+    private final int id;
+
+    Currency(int id, String name, String singular, String plural) {
+        this.singular = singular;
+        this.plural = plural;
+        this.name = name;
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the key the currency is configured under, lower case letters, digits and underscores only
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getSingular() {
+        return singular;
+    }
+
+    public String getPlural() {
+        return plural;
+    }
+
+    public boolean isDefault() {
+        return id == DEFAULT;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
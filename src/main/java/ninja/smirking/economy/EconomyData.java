@@ -1,40 +1,380 @@
 package ninja.smirking.economy;
 
 import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
 
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
+/**
+ * View of an account held in an {@link AccountTable}. Balance is held in minor units (see {@link Money}) and is only
+ * ever changed with a compare-and-swap, so none of the operations below take a lock and a withdrawal can never
+ * overdraw the account.
+ * <p>
+ * Every change bumps a version number before the data is marked dirty. Whoever flips the data from clean to dirty is
+ * told through {@link BalanceListener#onDirty(EconomyData)} and is responsible for making sure it gets saved, a save
+ * only marks the data clean again through {@link #markClean(long)} if nothing has changed since it was read.
+ * <p>
+ * An account holds a balance in every configured {@link Currency}. The methods that don't take a currency id deal in
+ * the default currency, each of the others behaves exactly like its default-currency counterpart but on its own
+ * balance. The version and the dirty flag cover the account as a whole.
+ * <p>
+ * Views are cheap and any number of them may exist for the same account. A view that outlives the eviction of its
+ * account re-binds to the reloaded account the next time it is used.
+ */
 public final class EconomyData {
+    private static final AtomicLongFieldUpdater<EconomyData> HANDLE = AtomicLongFieldUpdater.newUpdater(EconomyData.class, "handle");
+
+    private final AccountTable table;
     private final UUID uniqueId;
 
-    private volatile boolean dirty;
-    private double balance;
+    private volatile long handle;
 
-    public EconomyData(UUID uniqueId, double balance) {
+    EconomyData(AccountTable table, UUID uniqueId, long handle) {
         this.uniqueId = uniqueId;
-        this.balance = balance;
-        this.dirty = true;
+        this.handle = handle;
+        this.table = table;
     }
 
     public UUID getUniqueId() {
         return uniqueId;
     }
 
-    public synchronized double getBalance() {
-        return balance;
+    public long getBalance() {
+        return getBalance(Currency.DEFAULT);
+    }
+
+    public long getBalance(int currency) {
+        table.checkCurrency(currency);
+        for (;;) {
+            long handle = this.handle;
+            long balance = table.balance(handle, currency);
+            if (table.isLive(handle)) {
+                return balance;
+            }
+            rebind(handle);
+        }
+    }
+
+    /**
+     * @return the balance in the default currency if the view is still bound to a resident account, otherwise {@code
+     * fallback}, the account is never reloaded
+     */
+    long peekBalance(long fallback) {
+        long handle = this.handle;
+        long balance = table.balance(handle, Currency.DEFAULT);
+        return table.isLive(handle) ? balance : fallback;
+    }
+
+    /**
+     * @return the balance in every currency, indexed by currency id, read one after another rather than all at once
+     */
+    public long[] getBalances() {
+        long[] balances = new long[table.getCurrencies()];
+        for (;;) {
+            long handle = this.handle;
+            for (int currency = 0; currency < balances.length; currency++) {
+                balances[currency] = table.balance(handle, currency);
+            }
+            if (table.isLive(handle)) {
+                return balances;
+            }
+            rebind(handle);
+        }
+    }
+
+    public void setBalance(long balance) {
+        setBalance(Currency.DEFAULT, balance);
     }
 
-    public synchronized void setBalance(double balance) {
-        this.balance = balance;
-        setDirty(true);
+    public void setBalance(int currency, long balance) {
+        table.checkCurrency(currency);
+        long handle = pin();
+        table.unpinChanged(this, handle, currency, table.getAndSetBalance(handle, currency, balance), balance);
+    }
+
+    /**
+     * Atomically take {@code amount} from the balance if, and only if, the balance covers it.
+     *
+     * @return {@code true} if the balance was reduced
+     */
+    public boolean tryWithdraw(long amount) {
+        return tryWithdraw(Currency.DEFAULT, amount);
+    }
+
+    /**
+     * @see #tryWithdraw(long)
+     */
+    public boolean tryWithdraw(int currency, long amount) {
+        Preconditions.checkArgument(amount >= 0L, "amount should not be negative");
+        table.checkCurrency(currency);
+        long handle = pin();
+        long current;
+        do {
+            current = table.balance(handle, currency);
+            if (current < amount) {
+                table.unpin(handle);
+                return false;
+            }
+        } while (!table.compareAndSetBalance(handle, currency, current, current - amount));
+        table.unpinChanged(this, handle, currency, current, current - amount);
+        return true;
+    }
+
+    /**
+     * Atomically add {@code amount} to the balance.
+     *
+     * @return the balance after the deposit
+     */
+    public long deposit(long amount) {
+        return deposit(Currency.DEFAULT, amount);
+    }
+
+    /**
+     * @see #deposit(long)
+     */
+    public long deposit(int currency, long amount) {
+        Preconditions.checkArgument(amount >= 0L, "amount should not be negative");
+        table.checkCurrency(currency);
+        long handle = pin();
+        long current;
+        long updated;
+        try {
+            do {
+                current = table.balance(handle, currency);
+                updated = Math.addExact(current, amount);
+            } while (!table.compareAndSetBalance(handle, currency, current, updated));
+        } catch (ArithmeticException ex) {
+            table.unpin(handle);
+            throw ex;
+        }
+        table.unpinChanged(this, handle, currency, current, updated);
+        return updated;
+    }
+
+    public boolean compareAndSet(long expect, long update) {
+        return compareAndSet(Currency.DEFAULT, expect, update);
+    }
+
+    public boolean compareAndSet(int currency, long expect, long update) {
+        table.checkCurrency(currency);
+        long handle = pin();
+        if (table.compareAndSetBalance(handle, currency, expect, update)) {
+            table.unpinChanged(this, handle, currency, expect, update);
+            return true;
+        }
+        table.unpin(handle);
+        return false;
+    }
+
+    /**
+     * Atomically move {@code amount} from this account to {@code payee} if, and only if, this account's balance covers
+     * it. Both accounts are pinned in UUID order before either balance is touched so neither can be evicted part way
+     * through and two opposing transfers can't wait on each other. Anybody reading both balances whilst the transfer
+     * is in flight may briefly see the amount in neither account, but never in both.
+     *
+     * @return {@code true} if the amount was moved
+     * @throws ArithmeticException if the payee's balance would overflow, in which case nothing is moved unless this
+     *                             account's balance has grown so close to the maximum in the meantime that the amount
+     *                             can't be put back either
+     */
+    public boolean transferTo(EconomyData payee, long amount) {
+        return transferTo(payee, Currency.DEFAULT, amount);
+    }
+
+    /**
+     * @see #transferTo(EconomyData, long)
+     */
+    public boolean transferTo(EconomyData payee, int currency, long amount) {
+        Preconditions.checkArgument(payee.table == table, "payee should belong to the same table");
+        Preconditions.checkArgument(amount >= 0L, "amount should not be negative");
+        table.checkCurrency(currency);
+        if (payee.uniqueId.equals(uniqueId)) {
+            return getBalance(currency) >= amount;
+        }
+
+        boolean ordered = uniqueId.compareTo(payee.uniqueId) < 0;
+        long first = (ordered ? this : payee).pin();
+        long second;
+        try {
+            second = (ordered ? payee : this).pin();
+        } catch (IllegalStateException ex) {
+            table.unpin(first);
+            throw ex;
+        }
+        long from = ordered ? first : second;
+        long to = ordered ? second : first;
+
+        long balance;
+        do {
+            balance = table.balance(from, currency);
+            if (balance < amount) {
+                table.unpin(from);
+                table.unpin(to);
+                return false;
+            }
+        } while (!table.compareAndSetBalance(from, currency, balance, balance - amount));
+
+        long current;
+        long updated;
+        try {
+            do {
+                current = table.balance(to, currency);
+                updated = Math.addExact(current, amount);
+            } while (!table.compareAndSetBalance(to, currency, current, updated));
+        } catch (ArithmeticException ex) {
+            /*
+             * Putting back what was just taken can only overflow if deposits made in the meantime have brought this
+             * balance within the amount of the maximum. Neither account can hold it then, so the withdrawal stands and
+             * is reported like any other change rather than wrapping the balance round.
+             */
+            long refund;
+            try {
+                do {
+                    refund = table.balance(from, currency);
+                } while (!table.compareAndSetBalance(from, currency, refund, Math.addExact(refund, amount)));
+            } catch (ArithmeticException overflow) {
+                overflow.addSuppressed(ex);
+                table.unpinChanged(this, from, currency, balance, balance - amount);
+                table.unpin(to);
+                throw overflow;
+            }
+            table.unpin(from);
+            table.unpin(to);
+            throw ex;
+        }
+
+        table.unpinChanged(this, from, currency, balance, balance - amount);
+        table.unpinChanged(payee, to, currency, current, updated);
+        return true;
+    }
+
+    /**
+     * @return the balance the DAO last read from or wrote to storage, the difference between it and {@link
+     * #getBalance()} is what has changed locally since
+     */
+    public long getPersistedBalance() {
+        return getPersistedBalance(Currency.DEFAULT);
+    }
+
+    public long getPersistedBalance(int currency) {
+        table.checkCurrency(currency);
+        for (;;) {
+            long handle = this.handle;
+            long persisted = table.persistedBalance(handle, currency);
+            if (table.isLive(handle)) {
+                return persisted;
+            }
+            rebind(handle);
+        }
+    }
+
+    /**
+     * @return the persisted balance in every currency, indexed by currency id
+     */
+    public long[] getPersistedBalances() {
+        long[] persisted = new long[table.getCurrencies()];
+        for (;;) {
+            long handle = this.handle;
+            for (int currency = 0; currency < persisted.length; currency++) {
+                persisted[currency] = table.persistedBalance(handle, currency);
+            }
+            if (table.isLive(handle)) {
+                return persisted;
+            }
+            rebind(handle);
+        }
+    }
+
+    /**
+     * @return the version of the stored row as of {@link #getPersistedBalance()}, or {@code -1} if it isn't known
+     */
+    public long getPersistedVersion() {
+        for (;;) {
+            long handle = this.handle;
+            long persistedVersion = table.persistedVersion(handle);
+            if (table.isLive(handle)) {
+                return persistedVersion;
+            }
+            rebind(handle);
+        }
+    }
+
+    /**
+     * Record that the stored row holds {@code persisted} at {@code persistedVersion} when it was expected to hold
+     * {@code expected}. The difference was written by somebody else and is added to the balance, listeners hear about
+     * it as a balance change but the data is not marked dirty because storage already has it.
+     */
+    public void reconcile(long expected, long persisted, long persistedVersion) {
+        reconcile(Currency.DEFAULT, expected, persisted, persistedVersion);
+    }
+
+    /**
+     * @see #reconcile(long, long, long)
+     */
+    public void reconcile(int currency, long expected, long persisted, long persistedVersion) {
+        table.checkCurrency(currency);
+        table.reconcile(this, pin(), currency, expected, persisted, persistedVersion);
+    }
+
+    /**
+     * Reconcile every currency at once, {@code expected} and {@code persisted} being indexed by currency id.
+     *
+     * @see #reconcile(long, long, long)
+     */
+    public void reconcile(long[] expected, long[] persisted, long persistedVersion) {
+        Preconditions.checkArgument(expected.length == table.getCurrencies() && persisted.length == expected.length, "there should be a balance for every currency");
+        for (int currency = 0; currency < expected.length; currency++) {
+            reconcile(currency, expected[currency], persisted[currency], persistedVersion);
+        }
+    }
+
+    public long getVersion() {
+        for (;;) {
+            long handle = this.handle;
+            long version = table.version(handle);
+            if (table.isLive(handle)) {
+                return version;
+            }
+            rebind(handle);
+        }
     }
 
     public boolean isDirty() {
-        return dirty;
+        for (;;) {
+            long handle = this.handle;
+            boolean dirty = table.isDirty(handle);
+            if (table.isLive(handle)) {
+                return dirty;
+            }
+            rebind(handle);
+        }
     }
 
     public void setDirty(boolean dirty) {
-        this.dirty = dirty;
+        if (dirty) {
+            for (long handle = this.handle; !table.markDirty(this, handle); handle = this.handle) {
+                rebind(handle);
+            }
+        } else {
+            table.clearDirty(handle);
+        }
+    }
+
+    /**
+     * Mark the data as clean after saving the state it was in at {@code version}.
+     *
+     * @return {@code false} if the data changed after {@code version} was read, in which case it is still dirty and
+     * the caller is still responsible for saving it
+     */
+    public boolean markClean(long version) {
+        for (;;) {
+            long handle = this.handle;
+            if (table.isLive(handle)) {
+                return table.markClean(handle, version);
+            }
+            rebind(handle);
+        }
     }
 
     @Override
@@ -55,4 +395,22 @@ public final class EconomyData {
     public int hashCode() {
         return Objects.hashCode(uniqueId);
     }
+
+    private long pin() {
+        for (;;) {
+            long handle = this.handle;
+            if (table.pin(handle)) {
+                return handle;
+            }
+            rebind(handle);
+        }
+    }
+
+    private void rebind(long stale) {
+        EconomyData current = table.resolve(uniqueId);
+        if (current == null) {
+            throw new IllegalStateException("Could not reload the account for " + uniqueId);
+        }
+        HANDLE.compareAndSet(this, stale, current.handle);
+    }
 }
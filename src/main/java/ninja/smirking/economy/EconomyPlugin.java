@@ -1,24 +1,72 @@
 package ninja.smirking.economy;
 
+import ninja.smirking.economy.bus.BalanceBus;
+import ninja.smirking.economy.bus.LoopbackTransport;
+import ninja.smirking.economy.bus.Transport;
+import ninja.smirking.economy.command.EconomyCommand;
+import ninja.smirking.economy.event.OnlinePlayers;
 import ninja.smirking.economy.event.PlayerListener;
+import ninja.smirking.economy.metrics.Metrics;
+import ninja.smirking.economy.storage.AsyncEconomyDataDao;
+import ninja.smirking.economy.storage.BulkOperation;
 import ninja.smirking.economy.storage.EconomyDataDao;
+import ninja.smirking.economy.storage.FileEconomyDataDao;
+import ninja.smirking.economy.storage.Ledger;
 import ninja.smirking.economy.storage.MemoryEconomyDataDao;
-import ninja.smirking.economy.storage.MysqlEconomyDataDao;
+import ninja.smirking.economy.storage.SqlEconomyDataDao;
 import ninja.smirking.economy.vault.EconomyImpl;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
+import javax.management.JMException;
 
 import net.milkbowl.vault.economy.Economy;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scheduler.BukkitRunnable;
 
 public class EconomyPlugin extends JavaPlugin {
     public static final long SAVE_INTERVAL = Long.getLong("economy.save-interval", 600L);
 
-    private EconomyDataDao dao;
+    private final OnlinePlayers online = new OnlinePlayers();
+    private final NameIndex names = new NameIndex();
+    private final Metrics metrics = new Metrics();
+
+    private AsyncEconomyDataDao dao;
+    private TransferService transfers;
+    private Currencies currencies;
+    private Banks banks;
+    private Leaderboard leaderboard;
+    private BalanceBus bus;
+    private Ledger ledger;
+
+    public EconomyPlugin() {
+
+    }
+
+    /**
+     * Only for running the plugin outside of a server, the benchmarks use this.
+     */
+    protected EconomyPlugin(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, description, dataFolder, file);
+    }
 
     @Override
     public void onDisable() {
+        if (bus != null) {
+            bus.close();
+        }
+
+        if (banks != null) {
+            banks.flush();
+        }
+
         if (dao != null) {
             try {
                 dao.close();
@@ -28,32 +76,273 @@ public class EconomyPlugin extends JavaPlugin {
                 });
             }
         }
+
+        if (ledger != null) {
+            try {
+                ledger.close();
+            } catch (IOException ex) {
+                getLogger().log(Level.SEVERE, "Failed to close the ledger", ex);
+            }
+        }
+
+        try {
+            metrics.unregister();
+        } catch (JMException ex) {
+            getLogger().log(Level.WARNING, "Failed to unregister the metrics MBean", ex);
+        }
     }
 
     @Override
     public void onEnable() {
         saveDefaultConfig();
-        if (getConfig().getBoolean("memory", false)) {
-            dao = new MemoryEconomyDataDao();
-        } else {
+        try {
+            getLogger().log(Level.INFO, "Accounts hold {0}", new Object[]{
+                getCurrencies().getAll()
+            });
+        } catch (IllegalArgumentException ex) {
+            getLogger().log(Level.SEVERE, "The currencies are misconfigured: {0}", new Object[]{
+                ex.getMessage()
+            });
+            getPluginLoader().disablePlugin(this);
+            return;
+        }
+        online.seed(getServer().getOnlinePlayers());
+        getServer().getPluginManager().registerEvents(online, this);
+
+        /*
+         * Older configs only have the memory flag. It was how a server kept balances out of MySQL, the file store does
+         * that without losing them on every restart.
+         */
+        String storage = getConfig().getString("storage");
+        if (storage == null) {
+            storage = "mysql";
+            if (getConfig().getBoolean("memory", false)) {
+                storage = "file";
+                getLogger().log(Level.WARNING, "The memory setting is no longer used, balances are kept in the file store instead. Set storage to silence this");
+            }
+        }
+        try {
+            if ("memory".equalsIgnoreCase(storage)) {
+                getLogger().log(Level.WARNING, "Balances are only kept in memory and will be lost when the server stops");
+                dao = new MemoryEconomyDataDao(getCurrencies().size());
+            } else if ("file".equalsIgnoreCase(storage)) {
+                dao = new FileEconomyDataDao(this);
+            } else {
+                dao = new SqlEconomyDataDao(this);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            getPluginLoader().disablePlugin(this);
+            return;
+        }
+
+        if (getConfig().getBoolean("ledger", true)) {
             try {
-                dao = new MysqlEconomyDataDao(this);
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                getPluginLoader().disablePlugin(this);
-                return;
+                ledger = new Ledger(new File(getDataFolder(), "ledger"), getName(), getConfig().getInt("ledger-buffer-size", 65536), getConfig().getLong("ledger-flush-window", 100L), TimeUnit.MILLISECONDS, getLogger());
+            } catch (IOException ex) {
+                getLogger().log(Level.SEVERE, "Failed to open the ledger, transactions will not be recorded", ex);
             }
         }
 
+        Transport transport = openTransport(getConfig().getString("bus", "none"));
+        if (transport != null) {
+            bus = new BalanceBus(dao, transport, getLogger());
+            dao.addListener(bus);
+            new BukkitRunnable() {
+                @Override
+                public void run() {
+                    bus.flush();
+                }
+            }.runTaskTimerAsynchronously(this, 1L, 1L);
+        }
+
+        for (Player player : getServer().getOnlinePlayers()) {
+            names.put(player.getName(), player.getUniqueId());
+        }
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                names.seed(dao);
+                getLogger().log(Level.INFO, "Indexed {0} names", new Object[]{
+                    names.size()
+                });
+            }
+        }.runTaskAsynchronously(this);
+
+        /*
+         * Read before Vault is registered, nobody can create a bank that storage already has.
+         */
+        banks = new Banks(dao);
+        banks.seed();
+        getLogger().log(Level.INFO, "Loaded {0} banks", new Object[]{
+            banks.size()
+        });
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                banks.flush();
+            }
+        }.runTaskTimerAsynchronously(this, SAVE_INTERVAL, SAVE_INTERVAL);
+
+        transfers = new TransferService(dao, ledger);
+        int leaderboardSize = getConfig().getInt("leaderboard-size", 1000);
+        if (leaderboardSize > 0) {
+            leaderboard = new Leaderboard(leaderboardSize);
+            dao.addListener(leaderboard);
+            new BukkitRunnable() {
+                @Override
+                public void run() {
+                    leaderboard.seed(dao);
+                    getLogger().log(Level.INFO, "Ranked the top {0} balances", new Object[]{
+                        leaderboard.size()
+                    });
+                }
+            }.runTaskAsynchronously(this);
+            new BukkitRunnable() {
+                @Override
+                public void run() {
+                    leaderboard.flush();
+                }
+            }.runTaskTimerAsynchronously(this, 20L, 20L);
+        }
+
         if (getServer().getPluginManager().isPluginEnabled("Vault")) {
             getServer().getServicesManager().register(Economy.class, new EconomyImpl(this), this, ServicePriority.Highest);
         }
 
         getServer().getServicesManager().register(EconomyDataDao.class, dao, this, ServicePriority.Highest);
+        getServer().getServicesManager().register(AsyncEconomyDataDao.class, dao, this, ServicePriority.Highest);
+        getServer().getServicesManager().register(TransferService.class, transfers, this, ServicePriority.Highest);
+        if (leaderboard != null) {
+            getServer().getServicesManager().register(Leaderboard.class, leaderboard, this, ServicePriority.Highest);
+        }
+        getServer().getServicesManager().register(Banks.class, banks, this, ServicePriority.Highest);
+        getServer().getServicesManager().register(Currencies.class, getCurrencies(), this, ServicePriority.Highest);
         getServer().getPluginManager().registerEvents(new PlayerListener(this), this);
+        getCommand("economy").setExecutor(new EconomyCommand(this));
+
+        try {
+            metrics.register();
+        } catch (JMException ex) {
+            getLogger().log(Level.WARNING, "Failed to register the metrics MBean", ex);
+        }
     }
 
-    public EconomyDataDao getDataManager() {
+    public AsyncEconomyDataDao getDataManager() {
         return dao;
     }
+
+    /**
+     * Apply {@code operation} to every account on an asynchronous task, keeping the leaderboard in step.
+     *
+     * @return a future completed with the number of accounts changed
+     */
+    public CompletableFuture<Long> applyToAll(BulkOperation operation) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    long changed = dao.applyToAll(operation, (uniqueId, balance) -> {
+                        if (leaderboard != null) {
+                            leaderboard.update(uniqueId, balance);
+                        }
+                    });
+                    getLogger().log(Level.INFO, "Applied {0} to {1} accounts in {2}ms", new Object[]{
+                        operation,
+                        changed,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                    });
+                    future.complete(changed);
+                } catch (RuntimeException ex) {
+                    getLogger().log(Level.SEVERE, "Failed to apply " + operation + " to every account", ex);
+                    future.completeExceptionally(ex);
+                }
+            }
+        }.runTaskAsynchronously(this);
+        return future;
+    }
+
+    public TransferService getTransferService() {
+        return transfers;
+    }
+
+    /**
+     * @return the leaderboard, or {@code null} if it has been turned off
+     */
+    public Leaderboard getLeaderboard() {
+        return leaderboard;
+    }
+
+    public Banks getBanks() {
+        return banks;
+    }
+
+    /**
+     * Read from the config the first time it is asked for, the currencies can't change whilst the plugin is running
+     * because every account's balances are laid out by them.
+     *
+     * @throws IllegalArgumentException if the currencies are misconfigured
+     */
+    public synchronized Currencies getCurrencies() {
+        if (currencies == null) {
+            currencies = Currencies.load(getConfig());
+        }
+        return currencies;
+    }
+
+    /**
+     * @return the bus keeping other servers' caches in step, or {@code null} if there isn't one
+     */
+    public BalanceBus getBus() {
+        return bus;
+    }
+
+    /**
+     * @return who is online, safe to ask from any thread
+     */
+    public OnlinePlayers getOnlinePlayers() {
+        return online;
+    }
+
+    public NameIndex getNames() {
+        return names;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the transaction ledger, or {@code null} if it has been turned off
+     */
+    public Ledger getLedger() {
+        return ledger;
+    }
+
+    /**
+     * The bus only keeps caches in step, it is the delta writes that keep one server's flush from overwriting changes
+     * another server made to the same row. With absolute persistence whichever flush lands last wins and updates that
+     * arrived over the bus are silently lost, so the bus is refused outright rather than giving that impression.
+     */
+    private Transport openTransport(String type) {
+        if (!"none".equalsIgnoreCase(type) && !"delta".equalsIgnoreCase(getConfig().getString("persistence", "absolute"))) {
+            getLogger().log(Level.SEVERE, "The balance bus needs persistence: delta, servers sharing a table with absolute persistence overwrite each other's changes. The bus has not been started");
+            return null;
+        }
+
+        if ("loopback".equalsIgnoreCase(type)) {
+            return new LoopbackTransport(getConfig().getString("bus-channel", "economy"));
+        }
+
+        if ("service".equalsIgnoreCase(type)) {
+            Transport transport = getServer().getServicesManager().load(Transport.class);
+            if (transport == null) {
+                getLogger().log(Level.WARNING, "No Transport has been registered, other servers will not be kept up to date");
+            }
+            return transport;
+        }
+        return null;
+    }
 }
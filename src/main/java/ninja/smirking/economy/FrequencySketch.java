@@ -0,0 +1,94 @@
+package ninja.smirking.economy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate count of how often each account has been used recently, the TinyLFU half of W-TinyLFU.
+ * <p>
+ * A count-min sketch of four rows of 4-bit counters packed sixteen to a word. An account's frequency is the smallest
+ * of its four counters, so collisions can only ever make it look more popular than it is. Once the number of
+ * increments reaches ten times the expected number of accounts every counter is halved, which lets accounts that were
+ * popular a while ago make way for ones that are popular now.
+ *
+ * @author Connor Spencer Harries
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+        0xC3A5C85C97CB3127L,
+        0xB492B66FBE98F273L,
+        0x9AE16A3B2F90404FL,
+        0xCBF29CE484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAXIMUM = 15;
+
+    private final AtomicInteger additions;
+    private final AtomicLongArray table;
+    private final int sampleSize;
+    private final int mask;
+
+    FrequencySketch(int expected) {
+        int length = Integer.highestOneBit(Math.max(64, Math.min(expected, 1 << 26)) * 2 - 1);
+        this.table = new AtomicLongArray(length);
+        this.additions = new AtomicInteger();
+        this.sampleSize = length * 10;
+        this.mask = length - 1;
+    }
+
+    int frequency(int hash) {
+        int start = (hash & 3) << 2;
+        int frequency = MAXIMUM;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long word = table.get(index(hash, i));
+            frequency = Math.min(frequency, (int) (word >>> ((start + i) << 2)) & MAXIMUM);
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= increment(index(hash, i), (start + i) << 2);
+        }
+
+        if (added && additions.incrementAndGet() == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean increment(int index, int shift) {
+        long mask = (long) MAXIMUM << shift;
+        for (;;) {
+            long word = table.get(index);
+            if ((word & mask) == mask) {
+                return false;
+            }
+
+            if (table.compareAndSet(index, word, word + (1L << shift))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Halve every counter. Increments racing with this may be lost, which only makes an account look slightly less
+     * popular than it is.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length(); i++) {
+            long word;
+            do {
+                word = table.get(i);
+            } while (!table.compareAndSet(i, word, (word >>> 1) & RESET_MASK));
+        }
+        additions.addAndGet(-sampleSize / 2);
+    }
+
+    private int index(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+}
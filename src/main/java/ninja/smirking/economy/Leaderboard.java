@@ -0,0 +1,426 @@
+package ninja.smirking.economy;
+
+import ninja.smirking.economy.storage.EconomyDataDao;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The accounts with the highest balances, highest first, kept in a treap where each node knows the size of its subtree
+ * so that finding an account's rank or the n-th account are both logarithmic.
+ * <p>
+ * The board holds at most {@code maximum} accounts, so its memory is bounded however large storage gets. Once it is
+ * full an account only gets on by beating the lowest balance on it, which then drops off. An account that falls down
+ * the board isn't replaced by one that was pushed off earlier until that one changes again, so the last few places may
+ * lag behind storage, the top of the board never does.
+ * <p>
+ * Balance changes don't touch the tree, they only note the account and its new balance in a map. The map is drained
+ * whenever the board is queried or {@link #flush()} is called, so an account that changed a hundred times in between is
+ * only moved once. If the account is still resident its balance is read again at that point, which can't be older than
+ * a notification that arrived late, but it is never reloaded just to be ranked.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class Leaderboard implements BalanceListener {
+    private final Object flushLock = new Object();
+    private final List<LeaderboardListener> listeners;
+    private final Map<UUID, Change> pending;
+    private final Map<UUID, Node> nodes;
+    private final int maximum;
+
+    private volatile boolean seeded;
+    private Node root;
+
+    /**
+     * @param maximum how many accounts the board holds at most
+     */
+    public Leaderboard(int maximum) {
+        Preconditions.checkArgument(maximum > 0, "maximum should be positive");
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.pending = Maps.newConcurrentMap();
+        this.nodes = Maps.newHashMap();
+        this.maximum = maximum;
+    }
+
+    @Override
+    public void onBalanceChange(EconomyData data, long previous, long current) {
+        pending.put(data.getUniqueId(), new Change(data, current));
+    }
+
+    public void addListener(LeaderboardListener listener) {
+        listeners.add(Preconditions.checkNotNull(listener, "listener should not be null"));
+    }
+
+    /**
+     * Fill the board with every balance held by {@code dao}. Accounts that have already been placed by a change are
+     * newer than what storage holds and are left where they are. This reads the whole of storage and shouldn't be
+     * called on the server thread.
+     */
+    public void seed(EconomyDataDao dao) {
+        List<UUID> uniqueIds = Lists.newArrayListWithCapacity(1024);
+        long[] balances = new long[1024];
+        dao.forEachBalance((uniqueId, balance) -> {
+            balances[uniqueIds.size()] = balance;
+            uniqueIds.add(uniqueId);
+            if (uniqueIds.size() == balances.length) {
+                seed(uniqueIds, balances);
+                uniqueIds.clear();
+            }
+        });
+        seed(uniqueIds, balances);
+        seeded = true;
+    }
+
+    /**
+     * @return {@code false} until {@link #seed(EconomyDataDao)} has finished, until then the board only holds
+     * accounts that have changed
+     */
+    public boolean isSeeded() {
+        return seeded;
+    }
+
+    /**
+     * Apply every change noted since the last flush and tell the listeners about them.
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        /*
+         * Flushes are serialised so that a balance read by one can't be applied after a newer one read by another.
+         */
+        synchronized (flushLock) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        List<UUID> uniqueIds = Lists.newArrayListWithCapacity(pending.size());
+        long[] balances = new long[pending.size()];
+        for (Map.Entry<UUID, Change> entry : pending.entrySet()) {
+            if (uniqueIds.size() == balances.length || !pending.remove(entry.getKey(), entry.getValue())) {
+                continue;
+            }
+
+            Change change = entry.getValue();
+            balances[uniqueIds.size()] = change.data.peekBalance(change.balance);
+            uniqueIds.add(entry.getKey());
+        }
+
+        boolean notify = !listeners.isEmpty();
+        int[] previousRanks = notify ? new int[uniqueIds.size()] : null;
+        int[] ranks = notify ? new int[uniqueIds.size()] : null;
+        synchronized (this) {
+            for (int i = 0; i < uniqueIds.size(); i++) {
+                UUID uniqueId = uniqueIds.get(i);
+                Node node = nodes.get(uniqueId);
+                if (node != null && node.balance == balances[i]) {
+                    uniqueIds.set(i, null);
+                    continue;
+                }
+
+                int previousRank = node == null ? 0 : rank(node);
+                node = place(uniqueId, balances[i], node);
+                int rank = node == null ? 0 : rank(node);
+                if (previousRank == 0 && rank == 0) {
+                    uniqueIds.set(i, null);
+                } else if (notify) {
+                    previousRanks[i] = previousRank;
+                    ranks[i] = rank;
+                }
+            }
+        }
+
+        if (notify) {
+            for (int i = 0; i < uniqueIds.size(); i++) {
+                if (uniqueIds.get(i) == null) {
+                    continue;
+                }
+
+                for (LeaderboardListener listener : listeners) {
+                    listener.onRankChange(uniqueIds.get(i), balances[i], previousRanks[i], ranks[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move an account straight to {@code balance}. Only for accounts that aren't resident, there is no view to read
+     * the balance from at flush time, which is how bulk operations report the accounts they changed.
+     */
+    public void update(UUID uniqueId, long balance) {
+        int previousRank;
+        int rank;
+        synchronized (this) {
+            Node node = nodes.get(uniqueId);
+            if (node != null && node.balance == balance) {
+                return;
+            }
+
+            previousRank = node == null ? 0 : rank(node);
+            node = place(uniqueId, balance, node);
+            rank = node == null ? 0 : rank(node);
+        }
+
+        if (previousRank == 0 && rank == 0) {
+            return;
+        }
+
+        for (LeaderboardListener listener : listeners) {
+            listener.onRankChange(uniqueId, balance, previousRank, rank);
+        }
+    }
+
+    /**
+     * @return the account's rank starting at {@code 1}, or {@code 0} if it isn't on the board
+     */
+    public int rankOf(UUID uniqueId) {
+        flush();
+        synchronized (this) {
+            Node node = nodes.get(uniqueId);
+            return node == null ? 0 : rank(node);
+        }
+    }
+
+    /**
+     * @return up to {@code limit} entries starting at the given zero-based position, highest balance first
+     */
+    public List<Entry> top(int offset, int limit) {
+        Preconditions.checkArgument(offset >= 0, "offset should not be negative");
+        Preconditions.checkArgument(limit >= 0, "limit should not be negative");
+        flush();
+        synchronized (this) {
+            if (offset >= size(root) || limit == 0) {
+                return Collections.emptyList();
+            }
+
+            List<Entry> entries = Lists.newArrayListWithCapacity(Math.min(limit, size(root) - offset));
+            collect(root, offset, offset + limit, 0, entries);
+            return entries;
+        }
+    }
+
+    public synchronized int size() {
+        return size(root);
+    }
+
+    private void seed(List<UUID> uniqueIds, long[] balances) {
+        synchronized (this) {
+            for (int i = 0; i < uniqueIds.size(); i++) {
+                if (!nodes.containsKey(uniqueIds.get(i))) {
+                    place(uniqueIds.get(i), balances[i], null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Put an account on the board at {@code balance}, pushing the lowest account off if the board is over-full.
+     *
+     * @return the account's node, or {@code null} if it didn't make it onto the board
+     */
+    private Node place(UUID uniqueId, long balance, Node existing) {
+        Node node = new Node(uniqueId, balance);
+        if (existing != null) {
+            root = remove(root, existing);
+        } else if (size(root) >= maximum && compare(node, lowest()) > 0) {
+            return null;
+        }
+
+        root = insert(root, node);
+        nodes.put(uniqueId, node);
+        if (size(root) > maximum) {
+            Node lowest = lowest();
+            root = remove(root, lowest);
+            nodes.remove(lowest.uniqueId);
+            return lowest == node ? null : node;
+        }
+        return node;
+    }
+
+    private Node lowest() {
+        Node node = root;
+        while (node.right != null) {
+            node = node.right;
+        }
+        return node;
+    }
+
+    private int rank(Node target) {
+        int rank = 1;
+        Node node = root;
+        while (node != null) {
+            int order = compare(target, node);
+            if (order < 0) {
+                node = node.left;
+            } else {
+                rank += size(node.left);
+                if (order == 0) {
+                    return rank;
+                }
+                rank++;
+                node = node.right;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Add the entries of {@code node}'s subtree whose positions fall within {@code [from, to)}, {@code base} being
+     * the position of the subtree's first entry.
+     */
+    private void collect(Node node, int from, int to, int base, List<Entry> entries) {
+        while (node != null && base < to) {
+            int position = base + size(node.left);
+            if (from < position) {
+                collect(node.left, from, to, base, entries);
+            }
+
+            if (position >= from && position < to) {
+                entries.add(new Entry(node.uniqueId, node.balance, position + 1));
+            }
+            base = position + 1;
+            node = node.right;
+        }
+    }
+
+    private static Node insert(Node root, Node node) {
+        if (root == null) {
+            return node;
+        }
+
+        if (compare(node, root) < 0) {
+            root.left = insert(root.left, node);
+            if (root.left.priority > root.priority) {
+                root = rotateRight(root);
+            }
+        } else {
+            root.right = insert(root.right, node);
+            if (root.right.priority > root.priority) {
+                root = rotateLeft(root);
+            }
+        }
+        root.update();
+        return root;
+    }
+
+    private static Node remove(Node root, Node node) {
+        if (root == null) {
+            return null;
+        }
+
+        int order = compare(node, root);
+        if (order < 0) {
+            root.left = remove(root.left, node);
+        } else if (order > 0) {
+            root.right = remove(root.right, node);
+        } else if (root.left == null) {
+            return root.right;
+        } else if (root.right == null) {
+            return root.left;
+        } else if (root.left.priority > root.right.priority) {
+            root = rotateRight(root);
+            root.right = remove(root.right, node);
+        } else {
+            root = rotateLeft(root);
+            root.left = remove(root.left, node);
+        }
+        root.update();
+        return root;
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        left.right = node;
+        node.update();
+        left.update();
+        return left;
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        right.left = node;
+        node.update();
+        right.update();
+        return right;
+    }
+
+    /**
+     * Highest balance first, ties broken by UUID so that every account has a distinct position.
+     */
+    private static int compare(Node a, Node b) {
+        int order = Long.compare(b.balance, a.balance);
+        return order != 0 ? order : a.uniqueId.compareTo(b.uniqueId);
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * A change noted for the next flush, along with the view to read a newer balance from if it is still resident.
+     */
+    private static final class Change {
+        private final EconomyData data;
+        private final long balance;
+
+        private Change(EconomyData data, long balance) {
+            this.data = data;
+            this.balance = balance;
+        }
+    }
+
+    public static final class Entry {
+        private final UUID uniqueId;
+        private final long balance;
+        private final int rank;
+
+        private Entry(UUID uniqueId, long balance, int rank) {
+            this.uniqueId = uniqueId;
+            this.balance = balance;
+            this.rank = rank;
+        }
+
+        public UUID getUniqueId() {
+            return uniqueId;
+        }
+
+        public long getBalance() {
+            return balance;
+        }
+
+        public int getRank() {
+            return rank;
+        }
+    }
+
+    private static final class Node {
+        private final int priority = ThreadLocalRandom.current().nextInt();
+        private final UUID uniqueId;
+        private final long balance;
+
+        private Node left;
+        private Node right;
+        private int size = 1;
+
+        private Node(UUID uniqueId, long balance) {
+            this.uniqueId = uniqueId;
+            this.balance = balance;
+        }
+
+        private void update() {
+            size = 1 + size(left) + size(right);
+        }
+    }
+}
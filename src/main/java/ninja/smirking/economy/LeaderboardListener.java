@@ -0,0 +1,17 @@
+package ninja.smirking.economy;
+
+import java.util.UUID;
+
+/**
+ * Told about accounts whose position on the {@link Leaderboard} may have changed. Called off the server thread.
+ *
+ * @author Connor Spencer Harries
+ */
+@FunctionalInterface
+public interface LeaderboardListener {
+    /**
+     * @param previousRank the rank before the change, or {@code 0} if the account wasn't ranked
+     * @param rank         the rank after the change
+     */
+    void onRankChange(UUID uniqueId, long balance, int previousRank, int rank);
+}
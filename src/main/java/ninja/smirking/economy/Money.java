@@ -0,0 +1,72 @@
+package ninja.smirking.economy;
+
+/**
+ * All balances are stored as a whole number of minor units (cents), this class converts to and from the {@code double}
+ * values that Vault deals in and renders amounts without going through {@link java.text.DecimalFormat}. Both round
+ * and render exactly as the formatter it replaced did: half-even rounding, at least two digits before the point and
+ * always two after it.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class Money {
+    public static final int FRACTIONAL_DIGITS = 2;
+    public static final long SCALE = 100L;
+
+    private static final int MINIMUM_INTEGER_DIGITS = 2;
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(24));
+
+    private Money() {
+
+    }
+
+    /**
+     * Rounds half-even, like {@link java.text.DecimalFormat}, so an amount on the boundary between two cents goes to
+     * the even one rather than always up.
+     */
+    public static long toMinor(double amount) {
+        return (long) Math.rint(amount * SCALE);
+    }
+
+    public static double toMajor(long minor) {
+        return minor / (double) SCALE;
+    }
+
+    /**
+     * Render {@code minor} using a buffer owned by the calling thread, the only allocation is the returned string.
+     */
+    public static String format(long minor) {
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        return format(minor, buffer).toString();
+    }
+
+    /**
+     * Append {@code minor} to {@code out} in the form {@code 00.00} without allocating anything.
+     *
+     * @return {@code out}
+     */
+    public static StringBuilder format(long minor, StringBuilder out) {
+        long whole = minor / SCALE;
+        long fraction = minor % SCALE;
+        if (minor < 0) {
+            out.append('-');
+            whole = -whole;
+            fraction = -fraction;
+        }
+        pad(out, whole, MINIMUM_INTEGER_DIGITS);
+        out.append('.');
+        pad(out, fraction, FRACTIONAL_DIGITS);
+        return out;
+    }
+
+    private static void pad(StringBuilder out, long value, int digits) {
+        long limit = 1L;
+        while (--digits > 0) {
+            limit *= 10L;
+        }
+        for (; limit > 1L && value < limit; limit /= 10L) {
+            out.append('0');
+        }
+        out.append(value);
+    }
+}
@@ -0,0 +1,157 @@
+package ninja.smirking.economy;
+
+import ninja.smirking.economy.storage.EconomyDataDao;
+
+import com.google.common.base.Preconditions;
+
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Case-insensitive index from the last name each player logged in with to their UUID, so the name based Vault methods
+ * work for players who are offline.
+ * <p>
+ * Names and UUIDs sit side by side in a single open-addressing array. A lookup hashes and compares the name a
+ * character at a time without lower-casing it first, and runs under an optimistic read, so it allocates nothing and
+ * never blocks unless a login is updating the index at that moment.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class NameIndex {
+    private final StampedLock lock = new StampedLock();
+
+    private volatile boolean seeded;
+    private Object[] table = new Object[128];
+    private int size;
+
+    /**
+     * @return the UUID of whoever last logged in as {@code name}, or {@code null} if nobody has
+     */
+    public UUID get(String name) {
+        if (name == null) {
+            return null;
+        }
+
+        long stamp = lock.tryOptimisticRead();
+        UUID uniqueId = find(table, name);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                uniqueId = find(table, name);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return uniqueId;
+    }
+
+    /**
+     * Record that {@code uniqueId} logged in as {@code name}.
+     *
+     * @return {@code true} if that changed anything, i.e. the name needs persisting
+     */
+    public boolean put(String name, UUID uniqueId) {
+        return put(name, uniqueId, true);
+    }
+
+    /**
+     * Fill in every name storage knows about. Names recorded by logins in the meantime are newer and win.
+     */
+    public void seed(EconomyDataDao dao) {
+        dao.forEachName((name, uniqueId) -> put(name, uniqueId, false));
+        seeded = true;
+    }
+
+    public boolean isSeeded() {
+        return seeded;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private boolean put(String name, UUID uniqueId, boolean replace) {
+        Preconditions.checkNotNull(name, "name should not be null");
+        Preconditions.checkNotNull(uniqueId, "uniqueId should not be null");
+        long stamp = lock.writeLock();
+        try {
+            Object[] table = this.table;
+            int mask = (table.length >>> 1) - 1;
+            for (int i = hash(name) & mask; ; i = (i + 1) & mask) {
+                String existing = (String) table[i << 1];
+                if (existing == null) {
+                    if ((size + 1) * 4 > table.length) {
+                        this.table = table = resize(table);
+                        mask = (table.length >>> 1) - 1;
+                        for (i = hash(name) & mask; table[i << 1] != null; i = (i + 1) & mask) {
+                            // Find the first free slot in the resized table
+                        }
+                    }
+                    table[(i << 1) + 1] = uniqueId;
+                    table[i << 1] = name;
+                    size++;
+                    return true;
+                }
+
+                if (matches(existing, name)) {
+                    if (!replace || (uniqueId.equals(table[(i << 1) + 1]) && existing.equals(name))) {
+                        return false;
+                    }
+                    table[(i << 1) + 1] = uniqueId;
+                    table[i << 1] = name;
+                    return true;
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Safe under an optimistic read, a torn read is caught by the caller validating its stamp.
+     */
+    private static UUID find(Object[] table, String name) {
+        int mask = (table.length >>> 1) - 1;
+        for (int i = hash(name) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            Object existing = table[i << 1];
+            if (existing == null) {
+                return null;
+            }
+
+            if (matches((String) existing, name)) {
+                Object uniqueId = table[(i << 1) + 1];
+                return uniqueId instanceof UUID ? (UUID) uniqueId : null;
+            }
+        }
+        return null;
+    }
+
+    private static Object[] resize(Object[] table) {
+        Object[] resized = new Object[table.length * 2];
+        int mask = (resized.length >>> 1) - 1;
+        for (int i = 0; i < table.length; i += 2) {
+            String name = (String) table[i];
+            if (name != null) {
+                int j = hash(name) & mask;
+                while (resized[j << 1] != null) {
+                    j = (j + 1) & mask;
+                }
+                resized[j << 1] = name;
+                resized[(j << 1) + 1] = table[i + 1];
+            }
+        }
+        return resized;
+    }
+
+    private static boolean matches(String existing, String name) {
+        return existing.length() == name.length() && existing.regionMatches(true, 0, name, 0, name.length());
+    }
+
+    private static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
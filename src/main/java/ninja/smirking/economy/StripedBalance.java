@@ -0,0 +1,162 @@
+package ninja.smirking.economy;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A balance that any number of threads can pay into at once without contending on a single word. Deposits are spread
+ * over cells a cache line apart, chosen by the depositing thread, and the balance is whatever they add up to less
+ * everything ever withdrawn.
+ * <p>
+ * Each cell holds what is left of the room its stripe was granted, so that a deposit can never overflow the balance
+ * without anybody having to add the balance up first. A deposit takes its amount out of its own cell with one
+ * compare-and-swap. Only once a cell runs short is the balance folded, under the lock: what the cells took in goes into
+ * the base, the overflow check is made against the real balance and whatever room is left is shared out again. The
+ * room is the distance to {@link Long#MAX_VALUE}, so short of a balance near it that happens once per stripe.
+ * <p>
+ * Withdrawals go through one compare-and-swap on the withdrawn total, checked against the deposits summed beforehand.
+ * Deposits only ever grow that sum, so it can only be short of what has really been paid in and a withdrawal it allows
+ * can never overdraw the balance. A withdrawal racing a deposit may be turned down for want of the money still landing,
+ * exactly as if it had come first.
+ *
+ * @author Connor Spencer Harries
+ */
+final class StripedBalance {
+    private static final int PADDING = 8;
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+
+    private final AtomicLongArray cells = new AtomicLongArray((STRIPES + 1) * PADDING);
+    private final AtomicLong withdrawn = new AtomicLong();
+    private final StampedLock lock = new StampedLock();
+    private final long[] granted = new long[STRIPES];
+    private long base;
+
+    /**
+     * The cells start out empty, the first deposit folds and shares out the room.
+     */
+    StripedBalance(long balance) {
+        this.base = balance;
+    }
+
+    /**
+     * Re-read if a withdrawal lands while the cells are being summed, so the result never counts money twice. Deposits
+     * made during the read may or may not be included.
+     */
+    long get() {
+        for (;;) {
+            long before = withdrawn.get();
+            long deposited = deposited();
+            if (withdrawn.get() == before) {
+                return deposited - before;
+            }
+        }
+    }
+
+    /**
+     * The running totals are allowed to wrap, only the difference between them has to fit in a {@code long}.
+     *
+     * @throws ArithmeticException if the balance would overflow
+     */
+    void deposit(long amount) {
+        Preconditions.checkArgument(amount >= 0L, "amount should not be negative");
+        int cell = cell();
+        long room;
+        do {
+            room = cells.get(cell);
+            if (room < amount) {
+                fold(amount);
+                return;
+            }
+        } while (!cells.compareAndSet(cell, room, room - amount));
+    }
+
+    /**
+     * @return {@code true} if the balance covered {@code amount} and it was taken
+     */
+    boolean tryWithdraw(long amount) {
+        Preconditions.checkArgument(amount >= 0L, "amount should not be negative");
+        long current;
+        do {
+            current = withdrawn.get();
+            if (deposited() - current < amount) {
+                return false;
+            }
+        } while (!withdrawn.compareAndSet(current, current + amount));
+        return true;
+    }
+
+    /**
+     * Everything paid in so far, read without blocking unless a fold is moving money from the cells into the base.
+     */
+    private long deposited() {
+        long stamp = lock.tryOptimisticRead();
+        long deposited = sum();
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                deposited = sum();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return deposited;
+    }
+
+    private long sum() {
+        long sum = base;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += granted[stripe] - cells.get((stripe + 1) * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Empty every cell into the base, make a deposit that didn't fit in its cell there and share out the room that is
+     * left. A withdrawal landing meanwhile only leaves more room than was shared out.
+     */
+    private void fold(long amount) {
+        long stamp = lock.writeLock();
+        try {
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                base += granted[stripe] - cells.getAndSet((stripe + 1) * PADDING, 0L);
+                granted[stripe] = 0L;
+            }
+
+            long balance = base - withdrawn.get();
+            long updated;
+            try {
+                updated = Math.addExact(balance, amount);
+            } catch (ArithmeticException ex) {
+                share(balance);
+                throw ex;
+            }
+            base += amount;
+            share(updated);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Grant every stripe an equal part of the distance from {@code balance} to {@link Long#MAX_VALUE}. Must hold the
+     * write lock with every cell empty.
+     */
+    private void share(long balance) {
+        long room = (balance < 0L ? Long.MAX_VALUE : Long.MAX_VALUE - balance) / STRIPES;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            granted[stripe] = room;
+            cells.set((stripe + 1) * PADDING, room);
+        }
+    }
+
+    /**
+     * The first line is left empty so no cell shares one with the array's header.
+     */
+    private static int cell() {
+        long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (((int) (hash >>> 32) & (STRIPES - 1)) + 1) * PADDING;
+    }
+}
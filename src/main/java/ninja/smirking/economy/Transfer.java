@@ -0,0 +1,54 @@
+package ninja.smirking.economy;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import java.util.UUID;
+
+/**
+ * A single payment from one account to another, amount being in minor units (see {@link Money}).
+ *
+ * @author Connor Spencer Harries
+ */
+public final class Transfer {
+    private final UUID payer;
+    private final UUID payee;
+    private final long amount;
+
+    public Transfer(UUID payer, UUID payee, long amount) {
+        Preconditions.checkArgument(amount >= 0L, "amount should not be negative");
+        this.payer = Preconditions.checkNotNull(payer, "payer should not be null");
+        this.payee = Preconditions.checkNotNull(payee, "payee should not be null");
+        this.amount = amount;
+    }
+
+    public UUID getPayer() {
+        return payer;
+    }
+
+    public UUID getPayee() {
+        return payee;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("payer", payer).add("payee", payee).add("amount", amount).toString();
+    }
+
+    public enum Result {
+        SUCCESS,
+        INSUFFICIENT_FUNDS,
+        /**
+         * One of the accounts could not be loaded, or couldn't be loaded without blocking the server thread.
+         */
+        NOT_LOADED,
+        /**
+         * The payee's balance would have overflowed.
+         */
+        OVERFLOW
+    }
+}
@@ -0,0 +1,119 @@
+package ninja.smirking.economy;
+
+import ninja.smirking.economy.storage.AsyncEconomyDataDao;
+import ninja.smirking.economy.storage.Ledger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Moves money between accounts without the window that a separate withdraw and deposit leave open, see
+ * {@link EconomyData#transferTo(EconomyData, long)}.
+ * <p>
+ * A batch looks every distinct account up once, all of the lookups are issued before any of them is waited on so
+ * that the DAO can fetch whatever isn't cached in a single round trip. Transfers within a batch are applied in order
+ * and each one succeeds or fails on its own.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class TransferService {
+    private final AsyncEconomyDataDao dao;
+    private final Ledger ledger;
+
+    /**
+     * @param ledger records every successful transfer, may be {@code null}
+     */
+    public TransferService(AsyncEconomyDataDao dao, Ledger ledger) {
+        this.dao = Preconditions.checkNotNull(dao, "dao should not be null");
+        this.ledger = ledger;
+    }
+
+    public Transfer.Result transfer(UUID payer, UUID payee, long amount) {
+        return transferAll(Collections.singletonList(new Transfer(payer, payee, amount))).get(0);
+    }
+
+    public CompletableFuture<Transfer.Result> transferAsync(UUID payer, UUID payee, long amount) {
+        return transferAllAsync(Collections.singletonList(new Transfer(payer, payee, amount))).thenApply(results -> results.get(0));
+    }
+
+    /**
+     * Apply every transfer using the calling thread. Like {@link AsyncEconomyDataDao#get(UUID)} this may refuse to
+     * wait for accounts that aren't loaded, in which case the transfers involving them are {@code NOT_LOADED}.
+     *
+     * @return one result per transfer, in the same order
+     */
+    public List<Transfer.Result> transferAll(List<Transfer> transfers) {
+        Map<UUID, EconomyData> accounts = Maps.newHashMapWithExpectedSize(transfers.size() * 2);
+        for (Transfer transfer : transfers) {
+            accounts.put(transfer.getPayer(), null);
+            accounts.put(transfer.getPayee(), null);
+        }
+
+        for (UUID uniqueId : accounts.keySet()) {
+            if (!dao.isLoaded(uniqueId)) {
+                dao.getAsync(uniqueId);
+            }
+        }
+
+        for (Map.Entry<UUID, EconomyData> entry : accounts.entrySet()) {
+            entry.setValue(dao.get(entry.getKey()));
+        }
+        return apply(transfers, accounts, ledger == null ? 0 : ledger.caller());
+    }
+
+    /**
+     * @return a future completed with one result per transfer, in the same order
+     */
+    public CompletableFuture<List<Transfer.Result>> transferAllAsync(List<Transfer> transfers) {
+        int source = ledger == null ? 0 : ledger.caller();
+        Map<UUID, CompletableFuture<EconomyData>> futures = Maps.newHashMapWithExpectedSize(transfers.size() * 2);
+        for (Transfer transfer : transfers) {
+            futures.computeIfAbsent(transfer.getPayer(), dao::getAsync);
+            futures.computeIfAbsent(transfer.getPayee(), dao::getAsync);
+        }
+
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()])).handle((ignored, cause) -> {
+            Map<UUID, EconomyData> accounts = Maps.newHashMapWithExpectedSize(futures.size());
+            futures.forEach((uniqueId, future) -> accounts.put(uniqueId, future.isCompletedExceptionally() ? null : future.join()));
+            return apply(transfers, accounts, source);
+        });
+    }
+
+    /**
+     * @param source the ledger source of the plugin that asked for the transfers, worked out on its own thread
+     */
+    private List<Transfer.Result> apply(List<Transfer> transfers, Map<UUID, EconomyData> accounts, int source) {
+        List<Transfer.Result> results = Lists.newArrayListWithCapacity(transfers.size());
+        for (Transfer transfer : transfers) {
+            EconomyData payer = accounts.get(transfer.getPayer());
+            EconomyData payee = accounts.get(transfer.getPayee());
+            if (payer == null || payee == null) {
+                results.add(Transfer.Result.NOT_LOADED);
+                continue;
+            }
+
+            try {
+                if (payer.transferTo(payee, transfer.getAmount())) {
+                    if (ledger != null) {
+                        ledger.record(transfer.getPayer(), transfer.getPayee(), transfer.getAmount(), source);
+                    }
+                    results.add(Transfer.Result.SUCCESS);
+                } else {
+                    results.add(Transfer.Result.INSUFFICIENT_FUNDS);
+                }
+            } catch (ArithmeticException ex) {
+                results.add(Transfer.Result.OVERFLOW);
+            } catch (IllegalStateException ex) {
+                results.add(Transfer.Result.NOT_LOADED);
+            }
+        }
+        return results;
+    }
+}
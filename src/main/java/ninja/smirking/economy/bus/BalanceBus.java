@@ -0,0 +1,177 @@
+package ninja.smirking.economy.bus;
+
+import ninja.smirking.economy.BalanceListener;
+import ninja.smirking.economy.Currency;
+import ninja.smirking.economy.EconomyData;
+import ninja.smirking.economy.storage.EconomyDataDao;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the accounts cached by several servers sharing one database in step between flushes.
+ * <p>
+ * Every balance change made here is appended to a buffer as the amount it changed by, {@link #flush()} publishes the
+ * buffer once a tick as a single message. Other servers fold the changes into whichever of those accounts they have
+ * loaded without marking them dirty, the server that made a change is the only one that persists it. Changes are
+ * sent rather than balances so they can be applied in any order.
+ * <p>
+ * {@link #invalidate(UUID)} tells other servers to drop their copy of an account, which is what happens once a player
+ * who is leaving has been saved, so the server they are moving to reads the balance again instead of trusting a copy
+ * that may have missed changes made before it was loaded.
+ * <p>
+ * A message is the publishing server's id followed by fixed-size records: a type byte, the currency id, the two halves
+ * of the UUID and the change. Every server sharing the database has to configure the same currencies in the same
+ * order, a change to a currency this server doesn't know is dropped.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class BalanceBus implements BalanceListener, AutoCloseable {
+    private static final byte CHANGE = 0;
+    private static final byte INVALIDATE = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 26;
+    private static final int INITIAL_CAPACITY = HEADER_SIZE + RECORD_SIZE * 64;
+
+    private final Object appendLock = new Object();
+    private final EconomyDataDao dao;
+    private final Transport transport;
+    private final Logger logger;
+    private final UUID node;
+
+    private ByteBuffer pending;
+
+    public BalanceBus(EconomyDataDao dao, Transport transport, Logger logger) {
+        this.dao = Preconditions.checkNotNull(dao, "dao should not be null");
+        this.transport = Preconditions.checkNotNull(transport, "transport should not be null");
+        this.logger = logger;
+        this.node = UUID.randomUUID();
+        this.pending = allocate(INITIAL_CAPACITY);
+        this.transport.subscribe(this::receive);
+    }
+
+    @Override
+    public void onBalanceChange(EconomyData data, long previous, long current) {
+        onBalanceChange(data, Currency.DEFAULT, previous, current);
+    }
+
+    @Override
+    public void onBalanceChange(EconomyData data, int currency, long previous, long current) {
+        append(CHANGE, currency, data.getUniqueId(), current - previous);
+    }
+
+    /**
+     * Whoever made the change has already published it.
+     */
+    @Override
+    public void onExternalChange(EconomyData data, long previous, long current) {
+
+    }
+
+    /**
+     * @see #onExternalChange(EconomyData, long, long)
+     */
+    @Override
+    public void onExternalChange(EconomyData data, int currency, long previous, long current) {
+
+    }
+
+    /**
+     * Ask the other servers to drop their copy of {@code uniqueId}. Only call this once the account has been saved.
+     */
+    public void invalidate(UUID uniqueId) {
+        append(INVALIDATE, Currency.DEFAULT, uniqueId, 0L);
+    }
+
+    /**
+     * Publish everything appended since the last flush as one message.
+     */
+    public void flush() {
+        ByteBuffer batch;
+        synchronized (appendLock) {
+            if (pending.position() == HEADER_SIZE) {
+                return;
+            }
+            batch = pending;
+            pending = allocate(batch.capacity());
+        }
+
+        try {
+            transport.publish(Arrays.copyOf(batch.array(), batch.position()));
+        } catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "Failed to publish {0} balance changes: {1}", new Object[]{
+                (batch.position() - HEADER_SIZE) / RECORD_SIZE,
+                ex
+            });
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        try {
+            transport.close();
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Failed to close the transport", ex);
+        }
+    }
+
+    private void append(byte type, int currency, UUID uniqueId, long value) {
+        synchronized (appendLock) {
+            if (pending.remaining() < RECORD_SIZE) {
+                ByteBuffer larger = ByteBuffer.allocate(pending.capacity() * 2);
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            pending.put(type);
+            pending.put((byte) currency);
+            pending.putLong(uniqueId.getMostSignificantBits());
+            pending.putLong(uniqueId.getLeastSignificantBits());
+            pending.putLong(value);
+        }
+    }
+
+    private void receive(byte[] message) {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        if (buffer.remaining() < HEADER_SIZE || (buffer.getLong() == node.getMostSignificantBits() && buffer.getLong() == node.getLeastSignificantBits())) {
+            return;
+        }
+
+        buffer.position(HEADER_SIZE);
+        while (buffer.remaining() >= RECORD_SIZE) {
+            byte type = buffer.get();
+            int currency = buffer.get() & 0xFF;
+            UUID uniqueId = new UUID(buffer.getLong(), buffer.getLong());
+            long value = buffer.getLong();
+            if (type == CHANGE) {
+                try {
+                    dao.applyExternal(uniqueId, currency, value);
+                } catch (IndexOutOfBoundsException ex) {
+                    logger.log(Level.WARNING, "Dropping a change to unknown currency {0}, every server should configure the same currencies", new Object[]{
+                        currency
+                    });
+                }
+            } else if (type == INVALIDATE) {
+                dao.invalidate(uniqueId);
+            } else {
+                logger.log(Level.WARNING, "Dropping the rest of a message with an unknown record type {0}", new Object[]{
+                    type
+                });
+                return;
+            }
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.putLong(node.getMostSignificantBits());
+        buffer.putLong(node.getLeastSignificantBits());
+        return buffer;
+    }
+}
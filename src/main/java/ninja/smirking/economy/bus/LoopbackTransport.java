@@ -0,0 +1,48 @@
+package ninja.smirking.economy.bus;
+
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Delivers messages to every other transport opened on the same channel in this JVM, on the publishing thread. Good
+ * for running several instances of the plugin side by side in tests and benchmarks without a broker.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class LoopbackTransport implements Transport {
+    private static final ConcurrentMap<String, List<LoopbackTransport>> CHANNELS = Maps.newConcurrentMap();
+
+    private final List<Consumer<byte[]>> subscribers;
+    private final List<LoopbackTransport> peers;
+
+    public LoopbackTransport(String channel) {
+        this.subscribers = new CopyOnWriteArrayList<>();
+        this.peers = CHANNELS.computeIfAbsent(channel, key -> new CopyOnWriteArrayList<>());
+        this.peers.add(this);
+    }
+
+    @Override
+    public void publish(byte[] message) {
+        for (LoopbackTransport peer : peers) {
+            if (peer != this) {
+                for (Consumer<byte[]> subscriber : peer.subscribers) {
+                    subscriber.accept(message);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<byte[]> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    @Override
+    public void close() {
+        peers.remove(this);
+    }
+}
@@ -0,0 +1,29 @@
+package ninja.smirking.economy.bus;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries batches of balance changes between servers. {@link LoopbackTransport} only reaches other instances in the
+ * same JVM, anything that can broadcast bytes (a message broker, a proxy's plugin messaging channel) can be plugged in
+ * by registering an implementation with Bukkit's services manager and setting {@code bus: service}.
+ *
+ * @author Connor Spencer Harries
+ */
+public interface Transport extends AutoCloseable {
+    /**
+     * Send {@code message} to every other server. Called at most once a tick and never from the server thread, the
+     * array must not be modified afterwards.
+     */
+    void publish(byte[] message);
+
+    /**
+     * Hand every message published by another server to {@code subscriber}, from whichever thread receives it.
+     * Messages this server published may be delivered back to it, they are ignored.
+     */
+    void subscribe(Consumer<byte[]> subscriber);
+
+    @Override
+    default void close() {
+
+    }
+}
@@ -0,0 +1,174 @@
+package ninja.smirking.economy.command;
+
+import ninja.smirking.economy.Bank;
+import ninja.smirking.economy.EconomyPlugin;
+import ninja.smirking.economy.Money;
+import ninja.smirking.economy.metrics.HistogramSnapshot;
+import ninja.smirking.economy.metrics.Metrics;
+import ninja.smirking.economy.storage.BulkOperation;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+/**
+ * @author Connor Spencer Harries
+ */
+public final class EconomyCommand implements CommandExecutor {
+    private final EconomyPlugin plugin;
+
+    public EconomyCommand(EconomyPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length < 1) {
+            return false;
+        }
+
+        if ("stats".equalsIgnoreCase(args[0])) {
+            if (args.length != 1) {
+                return false;
+            }
+
+            if (!sender.hasPermission("economy.stats")) {
+                sender.sendMessage(ChatColor.RED + "You do not have permission to view economy statistics.");
+                return true;
+            }
+
+            stats(sender);
+            return true;
+        }
+
+        if ("bank".equalsIgnoreCase(args[0])) {
+            return args.length == 4 && bank(sender, args[1], args[2], args[3]);
+        }
+
+        BulkOperation operation;
+        try {
+            operation = parseOperation(args);
+        } catch (IllegalArgumentException ex) {
+            sender.sendMessage(ChatColor.RED + ex.getMessage());
+            return true;
+        }
+
+        if (operation == null) {
+            return false;
+        }
+
+        if (!sender.hasPermission("economy.admin")) {
+            sender.sendMessage(ChatColor.RED + "You do not have permission to change every balance.");
+            return true;
+        }
+
+        sender.sendMessage(ChatColor.YELLOW + "Applying " + operation + " to every account...");
+        plugin.applyToAll(operation).whenComplete((changed, cause) -> plugin.getServer().getScheduler().runTask(plugin, () -> {
+            if (cause == null) {
+                sender.sendMessage(ChatColor.GREEN + "Applied " + operation + " to " + changed + " accounts.");
+            } else {
+                sender.sendMessage(ChatColor.RED + "Failed to apply " + operation + ", see the console for details.");
+            }
+        }));
+        return true;
+    }
+
+    /**
+     * @return {@code null} if the arguments aren't a bulk operation at all
+     * @throws IllegalArgumentException if they are but the numbers don't make sense
+     */
+    private static BulkOperation parseOperation(String[] args) {
+        if ("interest".equalsIgnoreCase(args[0]) && args.length == 2) {
+            return BulkOperation.interest(toPpm(args[1]));
+        }
+
+        if ("tax".equalsIgnoreCase(args[0]) && (args.length == 2 || args.length == 3)) {
+            return BulkOperation.tax(toPpm(args[1]), args.length == 3 ? Money.toMinor(parse(args[2])) : 0L);
+        }
+
+        if ("wipe".equalsIgnoreCase(args[0]) && args.length == 2 && "confirm".equalsIgnoreCase(args[1])) {
+            return BulkOperation.wipe();
+        }
+        return null;
+    }
+
+    private static long toPpm(String percent) {
+        return Math.round(parse(percent) * 10000.0D);
+    }
+
+    private static double parse(String number) {
+        try {
+            return Double.parseDouble(number);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(number + " is not a number");
+        }
+    }
+
+    /**
+     * Vault has no way to manage a bank's members, so its owner, or an admin, does it here.
+     *
+     * @return {@code false} if the action isn't one this understands
+     */
+    private boolean bank(CommandSender sender, String name, String action, String player) {
+        boolean add = "add".equalsIgnoreCase(action);
+        if (!add && !"remove".equalsIgnoreCase(action)) {
+            return false;
+        }
+
+        Bank bank = plugin.getBanks().get(name);
+        if (bank == null) {
+            sender.sendMessage(ChatColor.RED + "There is no bank called " + name + ".");
+            return true;
+        }
+
+        if (!sender.hasPermission("economy.admin") && !(sender instanceof Player && bank.isOwner(((Player) sender).getUniqueId()))) {
+            sender.sendMessage(ChatColor.RED + "Only the owner of " + bank + " can change its members.");
+            return true;
+        }
+
+        UUID uniqueId = plugin.getNames().get(player);
+        if (uniqueId == null) {
+            sender.sendMessage(ChatColor.RED + player + " has never logged in.");
+            return true;
+        }
+
+        if (add ? bank.addMember(uniqueId) : bank.removeMember(uniqueId)) {
+            sender.sendMessage(ChatColor.GREEN + (add ? "Added " + player + " to " : "Removed " + player + " from ") + bank + ".");
+        } else {
+            sender.sendMessage(ChatColor.YELLOW + player + (add ? " is already a member of " : " is not a member of ") + bank + ".");
+        }
+        return true;
+    }
+
+    private void stats(CommandSender sender) {
+        Metrics metrics = plugin.getMetrics();
+        long uptime = Math.max(1L, metrics.getUptimeSeconds());
+        sender.sendMessage(ChatColor.GOLD + "Economy statistics over the last " + uptime + "s");
+
+        sender.sendMessage(ChatColor.YELLOW + "Counters:");
+        for (Map.Entry<String, Long> entry : metrics.getCounters().entrySet()) {
+            sender.sendMessage(String.format("%s  %s: %s%d %s(%.2f/s)", ChatColor.GRAY, entry.getKey(), ChatColor.WHITE, entry.getValue(), ChatColor.GRAY, entry.getValue() / (double) uptime));
+        }
+
+        sender.sendMessage(ChatColor.YELLOW + "Gauges:");
+        for (Map.Entry<String, Long> entry : metrics.getGauges().entrySet()) {
+            sender.sendMessage(String.format("%s  %s: %s%d", ChatColor.GRAY, entry.getKey(), ChatColor.WHITE, entry.getValue()));
+        }
+
+        sender.sendMessage(ChatColor.YELLOW + "Timings (microseconds):");
+        for (Map.Entry<String, HistogramSnapshot> entry : metrics.getHistograms().entrySet()) {
+            HistogramSnapshot snapshot = entry.getValue();
+            sender.sendMessage(String.format("%s  %s: %sn=%d mean=%d p50=%d p99=%d max=%d", ChatColor.GRAY, entry.getKey(), ChatColor.WHITE, snapshot.getCount(), micros(snapshot.getMean()), micros(snapshot.getMedian()), micros(snapshot.getP99()), micros(snapshot.getMax())));
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
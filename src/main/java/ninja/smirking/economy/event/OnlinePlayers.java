@@ -0,0 +1,47 @@
+package ninja.smirking.economy.event;
+
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Who is online, kept up to date from join and quit events on the server thread so that any thread can ask without
+ * going anywhere near Bukkit.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class OnlinePlayers implements Listener {
+    private final Set<UUID> online = Sets.newConcurrentHashSet();
+
+    public boolean contains(UUID uniqueId) {
+        return online.contains(uniqueId);
+    }
+
+    /**
+     * Pick up whoever is already online, which after a reload is everybody. Must be called on the server thread.
+     */
+    public void seed(Collection<? extends Player> players) {
+        for (Player player : players) {
+            online.add(player.getUniqueId());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onJoin(PlayerJoinEvent event) {
+        online.add(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        online.remove(event.getPlayer().getUniqueId());
+    }
+}
@@ -2,58 +2,77 @@ package ninja.smirking.economy.event;
 
 import ninja.smirking.economy.EconomyData;
 import ninja.smirking.economy.EconomyPlugin;
+import ninja.smirking.economy.bus.BalanceBus;
 
-import com.google.common.util.concurrent.FutureCallback;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
-
-import java.util.concurrent.Callable;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.UUID;
 import java.util.logging.Level;
 
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 
+/**
+ * Balances are requested as early as possible, the DAO coalesces requests that arrive close together into a single
+ * query so a burst of logins doesn't turn into a burst of threads and connections.
+ */
 public final class PlayerListener implements Listener {
-    private final ListeningExecutorService executor;
     private final EconomyPlugin plugin;
 
     public PlayerListener(EconomyPlugin plugin) {
-        this.executor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(new ThreadFactory() {
-            private final AtomicInteger threadNumber = new AtomicInteger(1);
+        this.plugin = plugin;
+    }
 
-            @Override
-            public Thread newThread(Runnable r) {
-                return new Thread(r, String.format("Economy Thread #%d",  threadNumber.getAndIncrement()));
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            prefetch(event.getUniqueId());
+
+            /*
+             * Names hardly ever change, so storage is only written to when one does. This runs off the server thread
+             * and is allowed to block.
+             */
+            if (plugin.getNames().put(event.getName(), event.getUniqueId())) {
+                plugin.getDataManager().saveName(event.getName(), event.getUniqueId());
             }
-        }));
-        this.plugin = plugin;
+        }
     }
 
     @EventHandler
     public void onLogin(PlayerLoginEvent event) {
-        if (!plugin.getDataManager().isLoaded(event.getPlayer().getUniqueId())) {
-            Futures.addCallback(executor.submit(() -> plugin.getDataManager().get(event.getPlayer().getUniqueId())), new FutureCallback<EconomyData>() {
-                @Override
-                public void onSuccess(EconomyData result) {
+        prefetch(event.getPlayer().getUniqueId());
+    }
+
+    /**
+     * A player leaving may be moving to another server behind the same proxy, which can only read their balance from
+     * the database once it has been saved here and mustn't hold on to a copy it loaded before then.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        BalanceBus bus = plugin.getBus();
+        UUID uniqueId = event.getPlayer().getUniqueId();
+        if (bus == null || !plugin.getDataManager().isLoaded(uniqueId)) {
+            return;
+        }
+
+        EconomyData data = plugin.getDataManager().get(uniqueId);
+        if (data != null && data.isDirty()) {
+            plugin.getDataManager().saveAsync(data).thenRun(() -> bus.invalidate(uniqueId));
+        } else {
+            bus.invalidate(uniqueId);
+        }
+    }
+
+    private void prefetch(UUID uniqueId) {
+        if (!plugin.getDataManager().isLoaded(uniqueId)) {
+            plugin.getDataManager().getAsync(uniqueId).whenComplete((result, cause) -> {
+                if (cause == null) {
                     plugin.getLogger().log(Level.INFO, "Loaded {0}''s balance", new Object[] {
-                        result.getUniqueId()
+                        uniqueId
                     });
                 }
-
-                @Override
-                public void onFailure(Throwable t) {
-                    /*
-                     * Do nothing, this shouldn't happen.
-                     */
-                }
             });
         }
     }
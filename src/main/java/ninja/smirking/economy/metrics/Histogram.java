@@ -0,0 +1,73 @@
+package ninja.smirking.economy.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with one bucket per power of two. Recording is two striped increments
+ * and, only when a new maximum is seen, a compare-and-swap. Percentiles are reported as the upper bound of the bucket
+ * they fall in, so they are never more than twice the true value.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class Histogram {
+    private final LongAdder[] buckets;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    Histogram() {
+        this.buckets = new LongAdder[Long.SIZE + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    public void record(long value) {
+        if (value < 0L) {
+            value = 0L;
+        }
+
+        buckets[Long.SIZE - Long.numberOfLeadingZeros(value)].increment();
+        sum.add(value);
+
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Lost to another recorder, try again against whatever it wrote
+        }
+    }
+
+    /**
+     * @return the time since {@code start}, a value from {@link System#nanoTime()}, recorded in nanoseconds
+     */
+    public long recordSince(long start) {
+        long elapsed = System.nanoTime() - start;
+        record(elapsed);
+        return elapsed;
+    }
+
+    public HistogramSnapshot snapshot() {
+        long[] counts = new long[buckets.length];
+        long total = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+
+        long max = this.max.get();
+        return new HistogramSnapshot(total, total == 0L ? 0L : sum.sum() / total, percentile(counts, total, 0.5D, max), percentile(counts, total, 0.99D, max), max);
+    }
+
+    private static long percentile(long[] counts, long total, double quantile, long max) {
+        long rank = (long) Math.ceil(total * quantile);
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0L) {
+                return Math.min(max, i == 0 ? 0L : i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1L);
+            }
+        }
+        return 0L;
+    }
+}
@@ -0,0 +1,43 @@
+package ninja.smirking.economy.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * @author Connor Spencer Harries
+ */
+public final class HistogramSnapshot {
+    private final long count;
+    private final long mean;
+    private final long median;
+    private final long p99;
+    private final long max;
+
+    @ConstructorProperties({"count", "mean", "median", "p99", "max"})
+    public HistogramSnapshot(long count, long mean, long median, long p99, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.median = median;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMean() {
+        return mean;
+    }
+
+    public long getMedian() {
+        return median;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getMax() {
+        return max;
+    }
+}
@@ -0,0 +1,95 @@
+package ninja.smirking.economy.metrics;
+
+import com.google.common.collect.Maps;
+
+import java.lang.management.ManagementFactory;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Named counters, gauges and histograms. Whatever records a metric looks it up once and keeps hold of it, so the hot
+ * path never touches the registry: counters are {@link LongAdder}s and histograms are {@link Histogram}s, both of
+ * which spread contended updates across cells instead of fighting over a single word. Gauges are only evaluated when
+ * somebody reads them.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class Metrics implements MetricsMXBean {
+    private static final String OBJECT_NAME = "ninja.smirking.economy:type=Metrics";
+
+    private final ConcurrentMap<String, Histogram> histograms;
+    private final ConcurrentMap<String, LongSupplier> gauges;
+    private final ConcurrentMap<String, LongAdder> counters;
+    private final long started;
+
+    public Metrics() {
+        this.histograms = Maps.newConcurrentMap();
+        this.gauges = Maps.newConcurrentMap();
+        this.counters = Maps.newConcurrentMap();
+        this.started = System.nanoTime();
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Register a gauge, replacing any gauge already registered under {@code name}.
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started);
+    }
+
+    @Override
+    public SortedMap<String, Long> getCounters() {
+        SortedMap<String, Long> snapshot = Maps.newTreeMap();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        return snapshot;
+    }
+
+    @Override
+    public SortedMap<String, Long> getGauges() {
+        SortedMap<String, Long> snapshot = Maps.newTreeMap();
+        gauges.forEach((name, gauge) -> snapshot.put(name, gauge.getAsLong()));
+        return snapshot;
+    }
+
+    @Override
+    public SortedMap<String, HistogramSnapshot> getHistograms() {
+        SortedMap<String, HistogramSnapshot> snapshot = Maps.newTreeMap();
+        histograms.forEach((name, histogram) -> snapshot.put(name, histogram.snapshot()));
+        return snapshot;
+    }
+
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    public void unregister() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+}
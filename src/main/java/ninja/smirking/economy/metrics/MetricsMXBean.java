@@ -0,0 +1,21 @@
+package ninja.smirking.economy.metrics;
+
+import java.util.Map;
+
+/**
+ * What {@link Metrics} exposes over JMX, registered as {@code ninja.smirking.economy:type=Metrics}.
+ *
+ * @author Connor Spencer Harries
+ */
+public interface MetricsMXBean {
+    long getUptimeSeconds();
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getGauges();
+
+    /**
+     * Durations are in nanoseconds.
+     */
+    Map<String, HistogramSnapshot> getHistograms();
+}
@@ -0,0 +1,63 @@
+package ninja.smirking.economy.storage;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over every UUID that has a stored account, so asking about somebody who has never had one is answered
+ * without a query. It can say an account exists when it doesn't, roughly one time in a hundred while it holds no more
+ * than it was sized for, but never the other way round.
+ * <p>
+ * Guava's {@code BloomFilter} is only safe to share between threads from version 23, this one sets its bits with
+ * compare-and-swap so adds and lookups can come from any thread.
+ *
+ * @author Connor Spencer Harries
+ */
+final class AccountFilter {
+    private static final int BITS_PER_ACCOUNT = 10;
+    private static final int PROBES = 7;
+
+    private final AtomicLongArray bits;
+    private final long mask;
+
+    AccountFilter(long expected) {
+        long words = Long.highestOneBit(Math.max(1024L, Math.min(expected, 1L << 28) * BITS_PER_ACCOUNT / Long.SIZE) * 2L - 1L);
+        this.bits = new AtomicLongArray((int) words);
+        this.mask = words * Long.SIZE - 1L;
+    }
+
+    void add(UUID uniqueId) {
+        long hash = hash(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits());
+        long step = (hash >>> 32) | 1L;
+        for (int i = 0; i < PROBES; i++, hash += step) {
+            long bit = hash & mask;
+            int index = (int) (bit >>> 6);
+            long word;
+            do {
+                word = bits.get(index);
+                if ((word & (1L << bit)) != 0L) {
+                    break;
+                }
+            } while (!bits.compareAndSet(index, word, word | (1L << bit)));
+        }
+    }
+
+    boolean mightContain(UUID uniqueId) {
+        long hash = hash(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits());
+        long step = (hash >>> 32) | 1L;
+        for (int i = 0; i < PROBES; i++, hash += step) {
+            long bit = hash & mask;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0L) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(long most, long least) {
+        long hash = (most ^ Long.rotateLeft(least, 32)) * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 29;
+        hash *= 0xBF58476D1CE4E5B9L;
+        return hash ^ (hash >>> 32);
+    }
+}
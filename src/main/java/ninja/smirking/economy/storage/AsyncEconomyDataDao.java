@@ -0,0 +1,25 @@
+package ninja.smirking.economy.storage;
+
+import ninja.smirking.economy.EconomyData;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking companion to {@link EconomyDataDao}. Anything that might have to touch the backing store is handed off
+ * to a dedicated I/O executor so that callers on the server thread never wait on it.
+ *
+ * @author Connor Spencer Harries
+ */
+public interface AsyncEconomyDataDao extends EconomyDataDao {
+    CompletableFuture<EconomyData> getAsync(UUID uniqueId);
+
+    /**
+     * Load the data for {@code uniqueId} if required and then apply {@code modifier} to it. The modifier is run on
+     * whichever thread completes the load, which will be the calling thread if the data was already cached.
+     */
+    CompletableFuture<EconomyData> modifyAsync(UUID uniqueId, Consumer<EconomyData> modifier);
+
+    CompletableFuture<Void> saveAsync(EconomyData data);
+}
@@ -0,0 +1,130 @@
+package ninja.smirking.economy.storage;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A change applied to every stored balance at once by {@link EconomyDataDao#applyToAll(BulkOperation,
+ * java.util.function.ObjLongConsumer)}. Rates are in parts per million and all of the arithmetic is on whole minor
+ * units, so SQL working through the table and Java working out what happened to a cached account always agree to the
+ * last unit.
+ *
+ * @author Connor Spencer Harries
+ */
+public abstract class BulkOperation {
+    private static final long MILLION = 1000000L;
+
+    private BulkOperation() {
+
+    }
+
+    /**
+     * Add {@code ppm} parts per million of every positive balance to it, rounding down.
+     */
+    public static BulkOperation interest(long ppm) {
+        Preconditions.checkArgument(ppm > 0L && ppm <= MILLION * MILLION, "ppm should be between 1 and 1000000000000");
+        return new BulkOperation() {
+            @Override
+            public long apply(long balance) {
+                return balance > 0L ? Math.addExact(balance, portion(balance, ppm)) : balance;
+            }
+
+            @Override
+            String condition(String column) {
+                return column + " > 0";
+            }
+
+            @Override
+            String assignment(String column, SqlDialect dialect) {
+                return column + " + " + portion(column, ppm, dialect);
+            }
+
+            @Override
+            public String toString() {
+                return "interest of " + ppm + "ppm";
+            }
+        };
+    }
+
+    /**
+     * Take {@code ppm} parts per million of whatever each balance holds above {@code threshold}, rounding down.
+     */
+    public static BulkOperation tax(long ppm, long threshold) {
+        Preconditions.checkArgument(ppm > 0L && ppm <= MILLION, "ppm should be between 1 and 1000000");
+        Preconditions.checkArgument(threshold >= 0L, "threshold should not be negative");
+        return new BulkOperation() {
+            @Override
+            public long apply(long balance) {
+                return balance > threshold ? balance - portion(balance - threshold, ppm) : balance;
+            }
+
+            @Override
+            String condition(String column) {
+                return column + " > " + threshold;
+            }
+
+            @Override
+            String assignment(String column, SqlDialect dialect) {
+                return column + " - " + portion("(" + column + " - " + threshold + ")", ppm, dialect);
+            }
+
+            @Override
+            public String toString() {
+                return "tax of " + ppm + "ppm above " + threshold;
+            }
+        };
+    }
+
+    /**
+     * Set every balance to zero.
+     */
+    public static BulkOperation wipe() {
+        return new BulkOperation() {
+            @Override
+            public long apply(long balance) {
+                return 0L;
+            }
+
+            @Override
+            String condition(String column) {
+                return column + " <> 0";
+            }
+
+            @Override
+            String assignment(String column, SqlDialect dialect) {
+                return "0";
+            }
+
+            @Override
+            public String toString() {
+                return "wipe";
+            }
+        };
+    }
+
+    /**
+     * @return what {@code balance} becomes, the same value if the operation leaves it alone
+     * @throws ArithmeticException if the result would overflow
+     */
+    public abstract long apply(long balance);
+
+    /**
+     * @return a SQL condition on {@code column} that holds for every balance the operation might change
+     */
+    abstract String condition(String column);
+
+    /**
+     * @return a SQL expression for the new value of {@code column}
+     */
+    abstract String assignment(String column, SqlDialect dialect);
+
+    /**
+     * Split so that the multiplication can't overflow before the division brings it back down, SQL does the same.
+     */
+    private static long portion(long amount, long ppm) {
+        return Math.multiplyExact(amount / MILLION, ppm) + amount % MILLION * ppm / MILLION;
+    }
+
+    private static String portion(String amount, long ppm, SqlDialect dialect) {
+        return "(" + dialect.divide(amount, Long.toString(MILLION)) + " * " + ppm + " + " + dialect.divide("(" + amount + " % " + MILLION + ") * " + ppm, Long.toString(MILLION)) + ")";
+    }
+}
@@ -0,0 +1,112 @@
+package ninja.smirking.economy.storage;
+
+import ninja.smirking.economy.Currency;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Reads and writes the ordered currency names recorded at the start of every file that holds balances by position
+ * rather than by name: the account store, the journal and the snapshot. A balance's position is its currency id, so a
+ * file can only be read under a config whose currencies start with the ones it was written with, in the same order.
+ * <p>
+ * The names are written as a count followed by each name as length-prefixed UTF-8.
+ *
+ * @author Connor Spencer Harries
+ */
+final class CurrencyNames {
+    private static final int MAXIMUM_COUNT = 256;
+
+    private CurrencyNames() {
+
+    }
+
+    static List<String> of(List<Currency> currencies) {
+        List<String> names = Lists.newArrayListWithCapacity(currencies.size());
+        for (Currency currency : currencies) {
+            names.add(currency.getName());
+        }
+        return ImmutableList.copyOf(names);
+    }
+
+    /**
+     * @return the number of bytes {@link #write(ByteBuffer, List)} takes for {@code names}
+     */
+    static int size(List<String> names) {
+        int size = 4;
+        for (String name : names) {
+            size += 2 + name.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return size;
+    }
+
+    static void write(ByteBuffer out, List<String> names) {
+        out.putInt(names.size());
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            out.putShort((short) bytes.length).put(bytes);
+        }
+    }
+
+    /**
+     * Read names starting at the buffer's position, leaving it just after them.
+     */
+    static List<String> read(ByteBuffer in) throws IOException {
+        try {
+            ImmutableList.Builder<String> names = ImmutableList.builder();
+            for (int i = 0, count = count(in.getInt()); i < count; i++) {
+                byte[] bytes = new byte[in.getShort() & 0xFFFF];
+                in.get(bytes);
+                names.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return names.build();
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("The list of currencies is cut short", ex);
+        }
+    }
+
+    /**
+     * Read names starting at the channel's position, leaving it just after them.
+     */
+    static List<String> read(FileChannel in) throws IOException {
+        ImmutableList.Builder<String> names = ImmutableList.builder();
+        for (int i = 0, count = count(fill(in, 4).getInt()); i < count; i++) {
+            byte[] bytes = fill(in, fill(in, 2).getShort() & 0xFFFF).array();
+            names.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return names.build();
+    }
+
+    /**
+     * @return {@code true} if a file written with {@code stored} can be read with {@code configured}, currencies only
+     * ever being added to the end
+     */
+    static boolean isPrefix(List<String> stored, List<String> configured) {
+        return stored.size() <= configured.size() && configured.subList(0, stored.size()).equals(stored);
+    }
+
+    private static int count(int count) throws IOException {
+        if (count <= 0 || count > MAXIMUM_COUNT) {
+            throw new IOException("Corrupt list of " + count + " currencies");
+        }
+        return count;
+    }
+
+    private static ByteBuffer fill(FileChannel in, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new IOException("The list of currencies is cut short");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -1,8 +1,13 @@
 package ninja.smirking.economy.storage;
 
+import ninja.smirking.economy.BalanceListener;
+import ninja.smirking.economy.Bank;
 import ninja.smirking.economy.EconomyData;
 
 import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
 
 /**
  * Interface for communicating with the database, filesystem or whatever is holding economy data.
@@ -11,10 +16,98 @@ import java.util.UUID;
  */
 public interface EconomyDataDao {
     boolean isLoaded(UUID uniqueId);
+
+    /**
+     * Get the data for {@code uniqueId}, loading it if necessary. May return {@code null} if the data could not be
+     * loaded, or if the implementation refuses to block the calling thread whilst it is loaded.
+     */
     EconomyData get(UUID uniqueId);
+
+    /**
+     * Check whether {@code uniqueId} has an account without creating one if it doesn't, unlike {@link #get(UUID)}.
+     * Implementations answer for accounts that don't exist without touching storage wherever they can.
+     */
+    boolean exists(UUID uniqueId);
+
+    /**
+     * Get the data for {@code uniqueId} if it has an account, loading it if necessary but never creating one, unlike
+     * {@link #get(UUID)}. Costs one trip to storage at most, where {@link #exists(UUID)} then {@link #get(UUID)} can
+     * cost two.
+     *
+     * @return {@code null} if {@code uniqueId} has no account
+     * @throws IllegalStateException if the account could not be loaded, or if the implementation refuses to block the
+     *                               calling thread whilst it is loaded
+     */
+    EconomyData getExisting(UUID uniqueId);
+
     void save(EconomyData data);
     void saveAll();
 
+    /**
+     * Register a listener that is told about every balance change made to an account held by this DAO.
+     */
+    void addListener(BalanceListener listener);
+
+    /**
+     * Pass every stored balance to {@code consumer}, accounts that are only held in memory may be missed. This reads
+     * the whole of storage and shouldn't be called on the server thread.
+     */
+    void forEachBalance(ObjLongConsumer<UUID> consumer);
+
+    /**
+     * Apply {@code operation} to every stored account, a bounded chunk at a time, without loading any of them.
+     * Resident accounts have the change folded in as though another server had made it, their listeners hear about it
+     * and anything changed locally but not yet saved is kept. {@code consumer} is told the new balance of every other
+     * account that changed. This reads and writes the whole of storage and shouldn't be called on the server thread.
+     *
+     * @return the number of accounts changed
+     */
+    long applyToAll(BulkOperation operation, ObjLongConsumer<UUID> consumer);
+
+    /**
+     * Fold a change another server made to the balance in {@code currency}, and will persist itself, into the account
+     * held here. Does nothing if the account isn't loaded.
+     */
+    void applyExternal(UUID uniqueId, int currency, long change);
+
+    /**
+     * Forget the account held here, if it is clean, so that it is read from storage again the next time it is needed.
+     */
+    void invalidate(UUID uniqueId);
+
+    /**
+     * Remember that {@code uniqueId} last logged in as {@code name}. May block, so shouldn't be called on the server
+     * thread.
+     */
+    void saveName(String name, UUID uniqueId);
+
+    /**
+     * Pass every stored name and the UUID it belongs to to {@code consumer}. This reads every stored name and
+     * shouldn't be called on the server thread.
+     */
+    void forEachName(BiConsumer<String, UUID> consumer);
+
+    /**
+     * Store the owner, members and balance of {@code bank} in place of whatever is stored under its name. May block, so
+     * shouldn't be called on the server thread.
+     *
+     * @return {@code false} if it couldn't be stored
+     */
+    boolean saveBank(Bank bank);
+
+    /**
+     * Remove the bank stored under {@code name}. May block, so shouldn't be called on the server thread.
+     *
+     * @return {@code false} if it couldn't be removed
+     */
+    boolean deleteBank(String name);
+
+    /**
+     * Pass every stored bank to {@code consumer}. This reads every stored bank and shouldn't be called on the server
+     * thread.
+     */
+    void forEachBank(Consumer<Bank> consumer);
+
     default void close() {
 
     }
@@ -0,0 +1,856 @@
+package ninja.smirking.economy.storage;
+
+import ninja.smirking.economy.AccountTable;
+import ninja.smirking.economy.BalanceListener;
+import ninja.smirking.economy.Bank;
+import ninja.smirking.economy.Currency;
+import ninja.smirking.economy.EconomyData;
+import ninja.smirking.economy.EconomyPlugin;
+import ninja.smirking.economy.event.OnlinePlayers;
+import ninja.smirking.economy.metrics.Histogram;
+import ninja.smirking.economy.metrics.Metrics;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Keeps every account in a single file of fixed-size records which is mapped into memory, so loading an account is a
+ * hash lookup and a read straight out of the page cache rather than a round trip to a database.
+ * <p>
+ * The file starts with a page-sized header followed by one record per account: the two halves of the UUID, the
+ * balance in the default currency, a reserved word and then the balance in each of the other currencies, so every
+ * balance an account holds is read and written in one place. The header records how wide a record is and the names of
+ * the currencies in order, when currencies are added the file is rewritten with wider records the next time it is
+ * opened and a store whose currencies have been renamed or reordered is refused. Records are only ever appended and
+ * never move, an in-memory index from UUID to record number is rebuilt when the file is opened. Changed balances are
+ * written back into their record by {@link #saveAll()} which then forces the mapping to disk, the journal covers
+ * anything changed in between.
+ * <p>
+ * Names live next to the accounts in an append-only file of UUID and name pairs, the last pair for a name wins. Banks
+ * are kept the same way, each save appends the whole bank and a deletion appends a record with no bank in it.
+ *
+ * @author Connor Spencer Harries
+ */
+public class FileEconomyDataDao implements AsyncEconomyDataDao {
+    private static final int MAGIC = 0x45434F4E;
+    private static final int FORMAT = 2;
+    private static final int HEADER_SIZE = 4096;
+    private static final int NAMES_OFFSET = 32;
+    private static final int RECORD_SIZE = 32;
+    private static final int COUNT_OFFSET = 8;
+    private static final int BALANCE_OFFSET = 16;
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int BULK_CHUNK_SIZE = 4096;
+
+    private final Object flushLock = new Object();
+    private final Object nameLock = new Object();
+    private final Object bankLock = new Object();
+    private final Queue<EconomyData> dirty;
+    private final Histogram flushDuration;
+    private final LongAdder flushFailures;
+    private final AccountTable accounts;
+    private final Histogram loadLatency;
+    private final LongAdder flushedRows;
+    private final List<String> currencyNames;
+    private final FileChannel channel;
+    private final File names;
+    private final File banks;
+    private final EconomyPlugin plugin;
+    private final Journal journal;
+    private final LongAdder misses;
+    private final LongAdder hits;
+    private final int maximumCapacity;
+    private final int maximumSize;
+    private final int recordSize;
+    private final int currencies;
+    private final long idleTime;
+
+    private volatile MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+
+    /*
+     * Open-addressing index from UUID to record number plus one, guarded by the DAO's monitor. It is only consulted
+     * when an account isn't resident in the table.
+     */
+    private long[] keys;
+    private int[] records;
+
+    public FileEconomyDataDao(EconomyPlugin plugin) throws IOException {
+        File directory = new File(plugin.getDataFolder(), "accounts");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        this.plugin = plugin;
+        this.currencies = plugin.getCurrencies().size();
+        this.currencyNames = CurrencyNames.of(plugin.getCurrencies().getAll());
+        if (NAMES_OFFSET + CurrencyNames.size(currencyNames) > HEADER_SIZE) {
+            throw new IOException("The names of the configured currencies don't fit in the account store's header");
+        }
+        this.recordSize = RECORD_SIZE + (currencies - 1) * 8;
+        this.maximumCapacity = (Integer.MAX_VALUE - HEADER_SIZE) / recordSize;
+        this.dirty = Queues.newConcurrentLinkedQueue();
+        this.names = new File(directory, "names.dat");
+        this.banks = new File(directory, "banks.dat");
+
+        File store = new File(directory, "accounts.dat");
+        migrate(store, recordSize, currencyNames, plugin.getLogger());
+        this.channel = FileChannel.open(store.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.journal = plugin.getConfig().getBoolean("journal", true) ? new Journal(new File(directory, "journal"), currencyNames, plugin.getConfig().getLong("journal-fsync-window", 50L), TimeUnit.MILLISECONDS, plugin.getLogger()) : null;
+        this.maximumSize = Math.max(1, plugin.getConfig().getInt("cache-maximum-size", 10000));
+        this.idleTime = Math.max(0L, plugin.getConfig().getLong("cache-idle-time", 1800L));
+        this.accounts = new AccountTable(new BalanceListener() {
+            @Override
+            public void onBalanceChange(EconomyData data, long previous, long current) {
+                onBalanceChange(data, Currency.DEFAULT, previous, current);
+            }
+
+            @Override
+            public void onBalanceChange(EconomyData data, int currency, long previous, long current) {
+                if (journal != null) {
+                    journal.append(data);
+                }
+            }
+
+            @Override
+            public void onDirty(EconomyData data) {
+                dirty.offer(data);
+            }
+        }, this::get, maximumSize, currencies);
+
+        Metrics metrics = plugin.getMetrics();
+        this.hits = metrics.counter("cache.hits");
+        this.misses = metrics.counter("cache.misses");
+        this.loadLatency = metrics.histogram("load.latency");
+        this.flushDuration = metrics.histogram("flush.duration");
+        this.flushedRows = metrics.counter("flush.rows");
+        this.flushFailures = metrics.counter("flush.failures");
+        metrics.gauge("cache.size", accounts::size);
+        metrics.gauge("cache.dirty", dirty::size);
+
+        open();
+        if (journal != null) {
+            replay();
+        }
+
+        new BukkitRunnable() {
+            private final OnlinePlayers online = plugin.getOnlinePlayers();
+            private final LongAdder evictions = plugin.getMetrics().counter("cache.evictions");
+
+            @Override
+            public void run() {
+                if (accounts.size() < 1 && dirty.isEmpty()) {
+                    return;
+                }
+
+                saveAll();
+
+                evictions.add(accounts.evict(maximumSize, idleTime, EconomyPlugin.SAVE_INTERVAL / 20L, TimeUnit.SECONDS, online::contains));
+            }
+        }.runTaskTimerAsynchronously(plugin, EconomyPlugin.SAVE_INTERVAL / 2, EconomyPlugin.SAVE_INTERVAL);
+    }
+
+    @Override
+    public boolean isLoaded(UUID uniqueId) {
+        return accounts.contains(uniqueId);
+    }
+
+    @Override
+    public EconomyData get(UUID uniqueId) {
+        EconomyData data = accounts.get(uniqueId);
+        if (data != null) {
+            hits.increment();
+            return data;
+        }
+        misses.increment();
+        return load(uniqueId, true);
+    }
+
+    /**
+     * The record index already holds every stored UUID, so this never reads the file.
+     */
+    @Override
+    public boolean exists(UUID uniqueId) {
+        if (accounts.contains(uniqueId)) {
+            return true;
+        }
+
+        synchronized (this) {
+            return find(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits()) >= 0;
+        }
+    }
+
+    @Override
+    public EconomyData getExisting(UUID uniqueId) {
+        EconomyData data = accounts.get(uniqueId);
+        if (data != null) {
+            hits.increment();
+            return data;
+        }
+        misses.increment();
+        return load(uniqueId, false);
+    }
+
+    @Override
+    public CompletableFuture<EconomyData> getAsync(UUID uniqueId) {
+        return CompletableFuture.completedFuture(get(uniqueId));
+    }
+
+    @Override
+    public CompletableFuture<EconomyData> modifyAsync(UUID uniqueId, Consumer<EconomyData> modifier) {
+        Preconditions.checkNotNull(modifier, "modifier should not be null");
+        EconomyData data = get(uniqueId);
+        if (data != null) {
+            modifier.accept(data);
+        }
+        return CompletableFuture.completedFuture(data);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAsync(EconomyData data) {
+        save(data);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void save(EconomyData data) {
+        Preconditions.checkNotNull(data, "data should not be null");
+        synchronized (flushLock) {
+            long version = data.getVersion();
+            if (write(data.getUniqueId(), data.getBalances())) {
+                buffer.force();
+                if (!data.markClean(version)) {
+                    dirty.offer(data);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void saveAll() {
+        synchronized (flushLock) {
+            long start = System.nanoTime();
+            long checkpoint = checkpoint();
+            boolean failed = false;
+            List<EconomyData> pending = Lists.newArrayList();
+            long[] versions = new long[16];
+            for (EconomyData data = dirty.poll(); data != null; data = dirty.poll()) {
+                if (pending.size() == versions.length) {
+                    long[] larger = new long[versions.length * 2];
+                    System.arraycopy(versions, 0, larger, 0, versions.length);
+                    versions = larger;
+                }
+                versions[pending.size()] = data.getVersion();
+                if (write(data.getUniqueId(), data.getBalances())) {
+                    pending.add(data);
+                } else {
+                    dirty.offer(data);
+                    failed = true;
+                    break;
+                }
+            }
+
+            buffer.force();
+            for (int i = 0; i < pending.size(); i++) {
+                if (!pending.get(i).markClean(versions[i])) {
+                    dirty.offer(pending.get(i));
+                }
+            }
+
+            if (journal != null && checkpoint >= 0L && !failed) {
+                journal.release(checkpoint);
+            }
+
+            if (failed) {
+                flushFailures.increment();
+            }
+            flushedRows.add(pending.size());
+            if (pending.size() > 0 || failed) {
+                flushDuration.recordSince(start);
+            }
+        }
+    }
+
+    @Override
+    public void addListener(BalanceListener listener) {
+        accounts.addListener(listener);
+    }
+
+    /**
+     * Only holds the DAO's monitor long enough to see how many records there are. Records never move and earlier
+     * mappings stay valid, so the scan itself runs alongside loads and saves, a balance written whilst it runs may
+     * be seen either before or after the write.
+     */
+    @Override
+    public void forEachBalance(ObjLongConsumer<UUID> consumer) {
+        MappedByteBuffer buffer;
+        int count;
+        synchronized (this) {
+            buffer = this.buffer;
+            count = this.count;
+        }
+
+        for (int record = 0; record < count; record++) {
+            int offset = offset(record);
+            consumer.accept(new UUID(buffer.getLong(offset), buffer.getLong(offset + 8)), buffer.getLong(offset + BALANCE_OFFSET));
+        }
+    }
+
+    /**
+     * Works through the records in place. Each chunk holds the flush lock, so a flush can't write back a balance read
+     * before the chunk changed it, and the DAO's monitor, so nothing is loaded from a record half way through being
+     * changed. There is no undo, if the server dies part way through the earlier chunks keep their change.
+     */
+    @Override
+    public long applyToAll(BulkOperation operation, ObjLongConsumer<UUID> consumer) {
+        long changed = 0L;
+        for (int from = 0; ; from += BULK_CHUNK_SIZE) {
+            synchronized (flushLock) {
+                synchronized (this) {
+                    if (from >= count) {
+                        break;
+                    }
+
+                    int to = Math.min(count, from + BULK_CHUNK_SIZE);
+                    for (int record = from; record < to; record++) {
+                        int offset = offset(record);
+                        long balance = buffer.getLong(offset + BALANCE_OFFSET);
+                        long updated = operation.apply(balance);
+                        if (updated == balance) {
+                            continue;
+                        }
+
+                        buffer.putLong(offset + BALANCE_OFFSET, updated);
+                        UUID uniqueId = new UUID(buffer.getLong(offset), buffer.getLong(offset + 8));
+                        if (!accounts.applyExternal(uniqueId, updated - balance)) {
+                            consumer.accept(uniqueId, updated);
+                        }
+                        changed++;
+                    }
+                }
+            }
+        }
+        buffer.force();
+        return changed;
+    }
+
+    @Override
+    public void applyExternal(UUID uniqueId, int currency, long change) {
+        accounts.applyExternal(uniqueId, currency, change);
+    }
+
+    @Override
+    public void invalidate(UUID uniqueId) {
+        accounts.evict(uniqueId);
+    }
+
+    @Override
+    public void saveName(String name, UUID uniqueId) {
+        synchronized (nameLock) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(names, true)))) {
+                out.writeLong(uniqueId.getMostSignificantBits());
+                out.writeLong(uniqueId.getLeastSignificantBits());
+                out.writeUTF(name);
+            } catch (IOException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to save the name {0} for {1}: {2}", new Object[]{
+                    name,
+                    uniqueId,
+                    ex
+                });
+            }
+        }
+    }
+
+    /**
+     * Only the last pair for each name is passed on. A pair cut short by a crash is the last thing in the file and is
+     * skipped, the player's next login writes it again.
+     */
+    @Override
+    public void forEachName(BiConsumer<String, UUID> consumer) {
+        Map<String, UUID> latest = Maps.newHashMap();
+        synchronized (nameLock) {
+            if (!names.isFile()) {
+                return;
+            }
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(names)))) {
+                for (;;) {
+                    UUID uniqueId = new UUID(in.readLong(), in.readLong());
+                    latest.put(in.readUTF().toLowerCase(Locale.ROOT), uniqueId);
+                }
+            } catch (EOFException ex) {
+                // Reached the end of the file
+            } catch (IOException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to read every name: {0}", new Object[]{
+                    ex
+                });
+            }
+        }
+        latest.forEach(consumer);
+    }
+
+    /**
+     * Synced before returning, a bank's balance isn't covered by the journal.
+     */
+    @Override
+    public boolean saveBank(Bank bank) {
+        Set<UUID> members = bank.getMembers();
+        long balance = bank.getBalance();
+        synchronized (bankLock) {
+            try (FileOutputStream file = new FileOutputStream(banks, true)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                writeBank(out, bank.getName(), bank.getOwner(), members, balance);
+                out.flush();
+                file.getFD().sync();
+                return true;
+            } catch (IOException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to save the bank {0}: {1}", new Object[]{
+                    bank,
+                    ex
+                });
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public boolean deleteBank(String name) {
+        synchronized (bankLock) {
+            try (FileOutputStream file = new FileOutputStream(banks, true)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                out.writeBoolean(false);
+                out.writeUTF(name);
+                out.flush();
+                file.getFD().sync();
+                return true;
+            } catch (IOException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to delete the bank {0}: {1}", new Object[]{
+                    name,
+                    ex
+                });
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Only the last record for each name counts. Once read the file is rewritten with just the banks that still
+     * exist, which keeps it from growing forever and drops a record cut short by a crash before anything is appended
+     * after it.
+     */
+    @Override
+    public void forEachBank(Consumer<Bank> consumer) {
+        Map<String, Bank> latest = Maps.newLinkedHashMap();
+        synchronized (bankLock) {
+            if (!banks.isFile()) {
+                return;
+            }
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(banks)))) {
+                for (;;) {
+                    boolean live = in.readBoolean();
+                    String name = in.readUTF();
+                    if (!live) {
+                        latest.remove(name.toLowerCase(Locale.ROOT));
+                        continue;
+                    }
+
+                    UUID owner = new UUID(in.readLong(), in.readLong());
+                    long balance = in.readLong();
+                    int count = in.readInt();
+                    List<UUID> members = Lists.newArrayListWithCapacity(count);
+                    for (int i = 0; i < count; i++) {
+                        members.add(new UUID(in.readLong(), in.readLong()));
+                    }
+                    latest.put(name.toLowerCase(Locale.ROOT), new Bank(name, owner, members, balance));
+                }
+            } catch (EOFException ex) {
+                // Reached the end of the file
+            } catch (IOException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to read every bank: {0}", new Object[]{
+                    ex
+                });
+                return;
+            }
+
+            File compacted = new File(banks.getPath() + ".tmp");
+            try {
+                try (FileOutputStream file = new FileOutputStream(compacted)) {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                    for (Bank bank : latest.values()) {
+                        writeBank(out, bank.getName(), bank.getOwner(), bank.getMembers(), bank.getBalance());
+                    }
+                    out.flush();
+                    file.getFD().sync();
+                }
+                Files.move(compacted.toPath(), banks.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                plugin.getLogger().log(Level.WARNING, "Failed to compact the bank file: {0}", new Object[]{
+                    ex
+                });
+            }
+        }
+        latest.values().forEach(consumer);
+    }
+
+    private static void writeBank(DataOutputStream out, String name, UUID owner, Set<UUID> members, long balance) throws IOException {
+        out.writeBoolean(true);
+        out.writeUTF(name);
+        out.writeLong(owner.getMostSignificantBits());
+        out.writeLong(owner.getLeastSignificantBits());
+        out.writeLong(balance);
+        out.writeInt(members.size());
+        for (UUID member : members) {
+            out.writeLong(member.getMostSignificantBits());
+            out.writeLong(member.getLeastSignificantBits());
+        }
+    }
+
+    @Override
+    public void close() {
+        saveAll();
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+            channel.close();
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to close the account store", ex);
+        }
+    }
+
+    /**
+     * Read the account's balance out of its record. If it doesn't have one yet a new record is appended when
+     * {@code create} is set, otherwise there is no account and {@code null} is returned.
+     */
+    private synchronized EconomyData load(UUID uniqueId, boolean create) {
+        EconomyData data = accounts.get(uniqueId);
+        if (data != null) {
+            return data;
+        }
+
+        long start = System.nanoTime();
+        int record = find(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits());
+        if (record < 0) {
+            if (!create) {
+                return null;
+            }
+            try {
+                record = append(uniqueId, new long[currencies]);
+            } catch (IOException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to create an account for {0}: {1}", new Object[]{
+                    uniqueId,
+                    ex
+                });
+                return null;
+            }
+        }
+        int offset = offset(record);
+        long[] balances = new long[currencies];
+        for (int currency = 0; currency < currencies; currency++) {
+            balances[currency] = buffer.getLong(offset + balanceOffset(currency));
+        }
+        data = accounts.putIfAbsent(uniqueId, balances, -1L, false);
+        loadLatency.recordSince(start);
+        return data;
+    }
+
+    /**
+     * Write the first {@code balances.length} currencies, leaving any after them as they are.
+     *
+     * @return {@code false} if the account has no record and one couldn't be created
+     */
+    private synchronized boolean write(UUID uniqueId, long[] balances) {
+        int record = find(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits());
+        try {
+            if (record < 0) {
+                append(uniqueId, balances);
+            } else {
+                int offset = offset(record);
+                for (int currency = 0; currency < Math.min(currencies, balances.length); currency++) {
+                    buffer.putLong(offset + balanceOffset(currency), balances[currency]);
+                }
+            }
+            return true;
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to save EconomyData for {0}: {1}", new Object[]{
+                uniqueId,
+                ex
+            });
+            return false;
+        }
+    }
+
+    /**
+     * The record is written before the header's count is bumped, so a crash part way through an append loses the
+     * record rather than leaving a half-written one behind.
+     */
+    private int append(UUID uniqueId, long[] balances) throws IOException {
+        if (count == capacity) {
+            if (capacity == maximumCapacity) {
+                throw new IOException("The account store is full");
+            }
+            map((int) Math.min(maximumCapacity, capacity * 2L));
+        }
+
+        int record = count;
+        int offset = offset(record);
+        buffer.putLong(offset, uniqueId.getMostSignificantBits());
+        buffer.putLong(offset + 8, uniqueId.getLeastSignificantBits());
+        buffer.putLong(offset + 24, 0L);
+        for (int currency = 0; currency < currencies; currency++) {
+            buffer.putLong(offset + balanceOffset(currency), currency < balances.length ? balances[currency] : 0L);
+        }
+        buffer.putInt(COUNT_OFFSET, ++count);
+        index(uniqueId.getMostSignificantBits(), uniqueId.getLeastSignificantBits(), record);
+        return record;
+    }
+
+    private synchronized void open() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            map(INITIAL_CAPACITY);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT);
+            buffer.putInt(COUNT_OFFSET, 0);
+            buffer.putInt(12, recordSize);
+            writeNames(buffer, currencyNames);
+            buffer.force();
+        } else {
+            map((int) Math.max(INITIAL_CAPACITY, Math.min(maximumCapacity, (size - HEADER_SIZE) / recordSize)));
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT || buffer.getInt(12) != recordSize) {
+                throw new IOException("The account store is not in a format this version understands");
+            }
+            if (!readNames(buffer).equals(currencyNames)) {
+                throw new IOException("The account store was written for the currencies " + readNames(buffer) + " but " + currencyNames + " are configured");
+            }
+        }
+
+        count = buffer.getInt(COUNT_OFFSET);
+        if (count < 0 || count > capacity) {
+            throw new IOException("The account store claims to hold " + count + " accounts but only has room for " + capacity);
+        }
+
+        int slots = Integer.highestOneBit(Math.max(INITIAL_CAPACITY, count) * 4 - 1);
+        keys = new long[slots * 2];
+        records = new int[slots];
+        for (int record = 0; record < count; record++) {
+            int offset = offset(record);
+            index(buffer.getLong(offset), buffer.getLong(offset + 8), record);
+        }
+    }
+
+    /**
+     * Map enough of the file for {@code capacity} records, growing the file if needed. Earlier mappings stay valid and
+     * share the same pages, so a reader still holding one doesn't need to be told.
+     */
+    private void map(int capacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, HEADER_SIZE + (long) capacity * recordSize);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Write everything left in the journal by a previous run into the store, the journal is released once the
+     * store has been forced to disk.
+     */
+    private void replay() throws IOException {
+        Journal.Replay replay = journal.replay();
+        if (replay.getRecords().size() > 0) {
+            plugin.getLogger().log(Level.INFO, "Replaying {0} balances from the journal", new Object[]{
+                replay.getRecords().size()
+            });
+
+            for (Map.Entry<UUID, Journal.Record> entry : replay.getRecords().entrySet()) {
+                if (!write(entry.getKey(), entry.getValue().getBalances())) {
+                    throw new IOException("Failed to replay the journal");
+                }
+            }
+            buffer.force();
+        }
+        journal.release(replay.getCheckpoint());
+    }
+
+    private long checkpoint() {
+        if (journal == null) {
+            return -1L;
+        }
+
+        try {
+            return journal.checkpoint();
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to checkpoint the journal", ex);
+            return -1L;
+        }
+    }
+
+    private int find(long most, long least) {
+        int mask = records.length - 1;
+        for (int slot = hash(most, least) & mask; records[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot * 2] == most && keys[slot * 2 + 1] == least) {
+                return records[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    private void index(long most, long least, int record) {
+        if (count * 2 > records.length) {
+            long[] oldKeys = keys;
+            int[] oldRecords = records;
+            keys = new long[oldKeys.length * 2];
+            records = new int[oldRecords.length * 2];
+            for (int slot = 0; slot < oldRecords.length; slot++) {
+                if (oldRecords[slot] != 0) {
+                    index(oldKeys[slot * 2], oldKeys[slot * 2 + 1], oldRecords[slot] - 1);
+                }
+            }
+        }
+
+        int mask = records.length - 1;
+        int slot = hash(most, least) & mask;
+        while (records[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot * 2] = most;
+        keys[slot * 2 + 1] = least;
+        records[slot] = record + 1;
+    }
+
+    private int offset(int record) {
+        return HEADER_SIZE + record * recordSize;
+    }
+
+    /**
+     * @return where the balance in {@code currency} lives within a record
+     */
+    private static int balanceOffset(int currency) {
+        return currency == Currency.DEFAULT ? BALANCE_OFFSET : RECORD_SIZE + (currency - 1) * 8;
+    }
+
+    private static List<String> readNames(ByteBuffer header) throws IOException {
+        ByteBuffer names = header.duplicate();
+        names.position(NAMES_OFFSET);
+        return CurrencyNames.read(names);
+    }
+
+    private static void writeNames(ByteBuffer header, List<String> currencies) {
+        ByteBuffer names = header.duplicate();
+        names.position(NAMES_OFFSET);
+        CurrencyNames.write(names, currencies);
+    }
+
+    /**
+     * Widen every record to {@code recordSize} if currencies have been added since the store was last opened. The
+     * wider copy replaces the store in one step, so a crash part way through leaves the old store as it was. The names
+     * in the header say which currency each balance belongs to, a store whose currencies aren't the first of {@code
+     * currencies} in the same order is refused rather than having one currency's balances read as another's.
+     */
+    private static void migrate(File store, int recordSize, List<String> currencies, Logger logger) throws IOException {
+        if (!store.isFile() || store.length() < HEADER_SIZE) {
+            return;
+        }
+
+        File temporary = new File(store.getPath() + ".tmp");
+        try (FileChannel input = FileChannel.open(store.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer source = input.map(FileChannel.MapMode.READ_ONLY, 0L, input.size());
+            int stored = source.getInt(12);
+            if (source.getInt(0) != MAGIC || source.getInt(4) != FORMAT) {
+                return;
+            }
+
+            List<String> names = readNames(source);
+            if (!CurrencyNames.isPrefix(names, currencies)) {
+                throw new IOException("The account store was written for the currencies " + names + " but " + currencies + " are configured, currencies can only be added to the end of the list");
+            }
+            if (stored == recordSize) {
+                return;
+            }
+
+            int count = source.getInt(COUNT_OFFSET);
+            if (stored < RECORD_SIZE || stored > recordSize || (stored - RECORD_SIZE) % 8 != 0) {
+                throw new IOException("The account store holds more currencies than are configured, currencies can't be removed");
+            }
+
+            if (count < 0 || HEADER_SIZE + (long) count * stored > input.size()) {
+                throw new IOException("The account store claims to hold " + count + " accounts but is too short");
+            }
+
+            logger.log(Level.INFO, "Widening {0} accounts to hold {1} currencies", new Object[]{
+                count,
+                (recordSize - RECORD_SIZE) / 8 + 1
+            });
+            try (FileChannel output = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer target = ByteBuffer.allocateDirect(recordSize * 1024);
+                ByteBuffer header = source.duplicate();
+                header.limit(HEADER_SIZE);
+                target.put(header);
+                target.putInt(12, recordSize);
+                writeNames(target, currencies);
+                for (int record = 0; record < count; record++) {
+                    if (target.remaining() < recordSize) {
+                        target.flip();
+                        while (target.hasRemaining()) {
+                            output.write(target);
+                        }
+                        target.clear();
+                    }
+
+                    ByteBuffer slice = source.duplicate();
+                    slice.position(HEADER_SIZE + record * stored);
+                    slice.limit(HEADER_SIZE + record * stored + stored);
+                    target.put(slice);
+                    for (int padding = stored; padding < recordSize; padding += 8) {
+                        target.putLong(0L);
+                    }
+                }
+
+                target.flip();
+                while (target.hasRemaining()) {
+                    output.write(target);
+                }
+                output.force(true);
+            }
+        }
+        Files.move(temporary.toPath(), store.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int hash(long most, long least) {
+        long hash = (most ^ least) * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
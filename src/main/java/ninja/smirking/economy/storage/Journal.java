@@ -0,0 +1,383 @@
+package ninja.smirking.economy.storage;
+
+import ninja.smirking.economy.EconomyData;
+
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of balance changes which covers the gap between a transaction happening and the DAO flushing it.
+ * <p>
+ * Appending only copies a record into a memory buffer, a single writer thread hands the buffer to the file and calls
+ * {@code fsync} once per window, so every change made within that window shares one disk flush. The log is split into
+ * numbered segments: {@link #checkpoint()} closes the current segment before a flush begins and once the flush has
+ * been acknowledged {@link #release(long)} deletes it along with everything before it.
+ * <p>
+ * Each record holds the absolute balance read under the append lock, so the last record for an account is never older
+ * than the last change made to it and replaying a segment twice is harmless. Alongside it goes the balance last
+ * persisted and the version of the stored row it was read at, which is what a DAO adding changes to its rows rather
+ * than overwriting them needs to replay the record as the same change. A record holds the balance in every currency,
+ * each segment starts with the names of the currencies it was written with and is refused if they don't match the
+ * start of the configured ones.
+ *
+ * @author Connor Spencer Harries
+ */
+final class Journal implements AutoCloseable {
+    private static final String SUFFIX = ".journal";
+    private static final int MAGIC = 0x454A5244;
+    private static final int INITIAL_CAPACITY = 128 * 1024;
+
+    private final Object appendLock = new Object();
+    private final Object writeLock = new Object();
+    private final CRC32 crc = new CRC32();
+    private final File directory;
+    private final Logger logger;
+    private final Thread writer;
+    private final int recordSize;
+    private final List<String> currencies;
+    private final long window;
+
+    private volatile boolean running = true;
+    private ByteBuffer pending;
+    private ByteBuffer writing;
+    private FileChannel channel;
+    private long segment;
+
+    /**
+     * @param currencies the name of each currency an account holds a balance in, in order of id
+     */
+    Journal(File directory, List<String> currencies, long window, TimeUnit unit, Logger logger) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        this.pending = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+        this.writing = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+        this.window = unit.toNanos(window);
+        this.recordSize = recordSize(currencies.size());
+        this.currencies = currencies;
+        this.directory = directory;
+        this.logger = logger;
+
+        long[] segments = segments();
+        this.segment = segments.length == 0 ? 0L : segments[segments.length - 1] + 1L;
+        this.channel = open(segment);
+        this.writer = new Thread(this::run, "Economy Journal Writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    void append(EconomyData data) {
+        UUID uniqueId = data.getUniqueId();
+        synchronized (appendLock) {
+            if (pending.remaining() < recordSize) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(pending.capacity() * 2);
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+
+            int start = pending.position();
+            pending.putLong(uniqueId.getMostSignificantBits());
+            pending.putLong(uniqueId.getLeastSignificantBits());
+            pending.putLong(data.getPersistedVersion());
+            for (long balance : data.getBalances()) {
+                pending.putLong(balance);
+            }
+            for (long persisted : data.getPersistedBalances()) {
+                pending.putLong(persisted);
+            }
+            pending.putInt(checksum(crc, pending, start, recordSize));
+        }
+    }
+
+    /**
+     * Force everything appended so far to disk and start a new segment.
+     *
+     * @return the last segment that the caller may {@link #release(long)} once its flush has been acknowledged
+     */
+    long checkpoint() throws IOException {
+        synchronized (writeLock) {
+            sync();
+            channel.close();
+            channel = open(++segment);
+            return segment - 1L;
+        }
+    }
+
+    /**
+     * Force everything appended so far to disk without starting a new segment.
+     */
+    void force() throws IOException {
+        synchronized (writeLock) {
+            sync();
+        }
+    }
+
+    /**
+     * Delete every segment up to and including {@code checkpoint}.
+     */
+    void release(long checkpoint) {
+        for (long id : segments()) {
+            if (id <= checkpoint && !file(id).delete()) {
+                logger.log(Level.WARNING, "Failed to delete journal segment {0}", new Object[]{
+                    file(id)
+                });
+            }
+        }
+    }
+
+    /**
+     * Read back every intact record in every closed segment. A torn record at the end of a segment marks the end of
+     * what was made durable and everything after it in that segment is ignored.
+     *
+     * @return the last record for each account along with the last segment that was read
+     */
+    Replay replay() throws IOException {
+        Map<UUID, Record> records = Maps.newHashMap();
+        long last = -1L;
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        CRC32 crc = new CRC32();
+        for (long id : segments()) {
+            if (id >= segment) {
+                continue;
+            }
+
+            try (FileChannel input = FileChannel.open(file(id).toPath(), StandardOpenOption.READ)) {
+                magic.clear();
+                int read;
+                do {
+                    read = input.read(magic);
+                } while (read > 0 && magic.hasRemaining());
+
+                if (magic.position() == 0) {
+                    last = id;
+                    continue;
+                }
+                if (magic.hasRemaining() || magic.getInt(0) != MAGIC) {
+                    throw new IOException("Journal segment " + file(id) + " has a corrupt header");
+                }
+
+                List<String> names = CurrencyNames.read(input);
+                if (!CurrencyNames.isPrefix(names, currencies)) {
+                    throw new IOException("Journal segment " + file(id) + " was written for the currencies " + names + " but " + currencies + " are configured, currencies can only be added to the end of the list");
+                }
+
+                int count = names.size();
+                int size = recordSize(count);
+                ByteBuffer record = ByteBuffer.allocate(size);
+                while (input.read(record) > 0) {
+                    if (record.hasRemaining()) {
+                        continue;
+                    }
+
+                    record.flip();
+                    if (record.getInt(size - 4) != checksum(crc, record, 0, size)) {
+                        logger.log(Level.WARNING, "Journal segment {0} is corrupt after {1} bytes", new Object[]{
+                            file(id),
+                            input.position() - size
+                        });
+                        break;
+                    }
+
+                    long[] balances = new long[count];
+                    long[] persisted = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        balances[i] = record.getLong(24 + i * 8);
+                        persisted[i] = record.getLong(24 + (count + i) * 8);
+                    }
+                    records.put(new UUID(record.getLong(0), record.getLong(8)), new Record(balances, persisted, record.getLong(16)));
+                    record.clear();
+                }
+            }
+            last = id;
+        }
+        return new Replay(records, last);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.NANOSECONDS.toMillis(window) + 1000L);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (writeLock) {
+            sync();
+            channel.close();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            LockSupport.parkNanos(this, window);
+            synchronized (writeLock) {
+                try {
+                    sync();
+                } catch (IOException ex) {
+                    logger.log(Level.SEVERE, "Failed to write to the journal", ex);
+                }
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        synchronized (appendLock) {
+            if (writing.position() == 0) {
+                if (pending.position() == 0) {
+                    return;
+                }
+
+                ByteBuffer swap = writing;
+                writing = pending;
+                pending = swap;
+            } else {
+                /*
+                 * Left over from a failed write, anything appended since has to go after it to keep records in order.
+                 */
+                pending.flip();
+                if (writing.remaining() < pending.remaining()) {
+                    ByteBuffer larger = ByteBuffer.allocateDirect(writing.position() + pending.remaining());
+                    writing.flip();
+                    larger.put(writing);
+                    writing = larger;
+                }
+                writing.put(pending);
+                pending.clear();
+            }
+        }
+
+        writing.flip();
+        try {
+            while (writing.hasRemaining()) {
+                channel.write(writing);
+            }
+            channel.force(false);
+        } finally {
+            writing.compact();
+        }
+    }
+
+    private long[] segments() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return new long[0];
+        }
+
+        long[] ids = new long[files.length];
+        int count = 0;
+        for (File file : files) {
+            try {
+                ids[count++] = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            } catch (NumberFormatException ex) {
+                count--;
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private File file(long id) {
+        return new File(directory, String.format("%016d%s", id, SUFFIX));
+    }
+
+    private FileChannel open(long id) throws IOException {
+        FileChannel channel = FileChannel.open(file(id).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            if (channel.size() == 0L) {
+                ByteBuffer header = ByteBuffer.allocate(4 + CurrencyNames.size(currencies));
+                header.putInt(MAGIC);
+                CurrencyNames.write(header, currencies);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return channel;
+    }
+
+    /**
+     * @return the size of a record holding {@code currencies} balances: the UUID, the persisted version, the balances,
+     * the persisted balances and a checksum
+     */
+    private static int recordSize(int currencies) {
+        return 24 + currencies * 16 + 4;
+    }
+
+    private static int checksum(CRC32 crc, ByteBuffer buffer, int start, int size) {
+        crc.reset();
+        for (int i = start; i < start + size - 4; i++) {
+            crc.update(buffer.get(i));
+        }
+        return (int) crc.getValue();
+    }
+
+    static final class Replay {
+        private final Map<UUID, Record> records;
+        private final long checkpoint;
+
+        private Replay(Map<UUID, Record> records, long checkpoint) {
+            this.records = records;
+            this.checkpoint = checkpoint;
+        }
+
+        Map<UUID, Record> getRecords() {
+            return records;
+        }
+
+        long getCheckpoint() {
+            return checkpoint;
+        }
+    }
+
+    static final class Record {
+        private final long[] balances;
+        private final long[] persisted;
+        private final long persistedVersion;
+
+        private Record(long[] balances, long[] persisted, long persistedVersion) {
+            this.persistedVersion = persistedVersion;
+            this.balances = balances;
+            this.persisted = persisted;
+        }
+
+        /**
+         * @return the balances by currency id, as many as there were currencies when the record was written
+         */
+        long[] getBalances() {
+            return balances;
+        }
+
+        /**
+         * @return the persisted balances by currency id
+         */
+        long[] getPersisted() {
+            return persisted;
+        }
+
+        long getPersistedVersion() {
+            return persistedVersion;
+        }
+    }
+}
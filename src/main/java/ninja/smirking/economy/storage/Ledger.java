@@ -0,0 +1,321 @@
+package ninja.smirking.economy.storage;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * Append-only record of every transaction: who paid, who was paid, how much, which plugin asked for it and when.
+ * <p>
+ * Recording a transaction claims a sequence number and copies the fields into a pre-allocated ring of primitive
+ * arrays without taking a lock, the only allocation is the class context used to work out the calling plugin. A
+ * single writer thread drains whatever has been published since it last woke up, encodes it into one buffer and
+ * hands it to the file with one write. If the ring fills up callers wait for the writer rather than losing
+ * transactions.
+ * <p>
+ * The file is a stream of records each starting with a type byte:
+ * <ul>
+ * <li>{@code SESSION}: the time the ledger was opened, source ids from any earlier session no longer apply</li>
+ * <li>{@code SOURCE}: an id followed by the length-prefixed UTF-8 name of the plugin it stands for</li>
+ * <li>{@code TRANSACTION}: time, payer, payee, amount in minor units and source id</li>
+ * </ul>
+ * Money that comes from or goes to nowhere in particular, a plain deposit or withdrawal, uses {@link #SERVER}.
+ *
+ * @author Connor Spencer Harries
+ */
+public final class Ledger implements AutoCloseable {
+    public static final UUID SERVER = new UUID(0L, 0L);
+
+    private static final byte SESSION = 0;
+    private static final byte SOURCE = 1;
+    private static final byte TRANSACTION = 2;
+    private static final int TRANSACTION_SIZE = 1 + 8 + 16 + 16 + 8 + 4;
+    private static final Callers CALLERS = Callers.create();
+
+    private final Map<ClassLoader, Integer> loaders;
+    private final Map<String, Integer> sourceIds;
+    private final List<String> sources;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed;
+    private final FileChannel channel;
+    private final Logger logger;
+    private final Thread writer;
+    private final long window;
+    private final int mask;
+
+    private final long[] timestamps;
+    private final long[] payerMost;
+    private final long[] payerLeast;
+    private final long[] payeeMost;
+    private final long[] payeeLeast;
+    private final long[] amounts;
+    private final int[] sourceOf;
+
+    private volatile boolean running = true;
+    private volatile long consumed;
+    private ByteBuffer buffer;
+    private int sourcesWritten;
+
+    /**
+     * @param capacity rounded up to a power of two
+     * @param ownName  the name transactions are attributed to when no other plugin is on the stack
+     */
+    public Ledger(File directory, String ownName, int capacity, long window, TimeUnit unit, Logger logger) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.timestamps = new long[size];
+        this.payerMost = new long[size];
+        this.payerLeast = new long[size];
+        this.payeeMost = new long[size];
+        this.payeeLeast = new long[size];
+        this.amounts = new long[size];
+        this.sourceOf = new int[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1L);
+        }
+        this.mask = size - 1;
+        this.claimed = new AtomicLong();
+        this.loaders = new MapMaker().weakKeys().makeMap();
+        this.sourceIds = Maps.newConcurrentMap();
+        this.sources = Lists.newCopyOnWriteArrayList();
+        this.buffer = ByteBuffer.allocateDirect(TRANSACTION_SIZE * Math.min(size, 4096));
+        this.window = unit.toNanos(window);
+        this.logger = logger;
+        intern(ownName);
+
+        this.channel = FileChannel.open(new File(directory, "ledger.dat").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        buffer.put(SESSION).putLong(System.currentTimeMillis());
+        this.writer = new Thread(this::run, "Economy Ledger Writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Record a transaction on behalf of whichever plugin is calling, amount being in minor units.
+     */
+    public void record(UUID payer, UUID payee, long amount) {
+        record(payer, payee, amount, caller());
+    }
+
+    /**
+     * Record a transaction on behalf of {@code source}, from {@link #caller()} or {@link #source(String)}. Cheaper than
+     * working out the caller from the stack and the only way to attribute a transaction made away from the thread the
+     * plugin asked for it on.
+     */
+    public void record(UUID payer, UUID payee, long amount, int source) {
+        long sequence = claimed.getAndIncrement();
+        while (sequence - consumed > mask) {
+            if (!running) {
+                return;
+            }
+            LockSupport.parkNanos(this, 1000L);
+        }
+
+        int index = (int) sequence & mask;
+        timestamps[index] = System.currentTimeMillis();
+        payerMost[index] = payer.getMostSignificantBits();
+        payerLeast[index] = payer.getLeastSignificantBits();
+        payeeMost[index] = payee.getMostSignificantBits();
+        payeeLeast[index] = payee.getLeastSignificantBits();
+        amounts[index] = amount;
+        sourceOf[index] = source;
+        published.lazySet(index, sequence);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.NANOSECONDS.toMillis(window) + 1000L);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void run() {
+        boolean stopping = false;
+        while (!stopping) {
+            stopping = !running;
+            try {
+                if (drain() == 0 && !stopping) {
+                    LockSupport.parkNanos(this, window);
+                }
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Failed to write to the ledger", ex);
+                LockSupport.parkNanos(this, window);
+            }
+        }
+    }
+
+    /**
+     * Encode and write every transaction that has been published in order since the last drain.
+     *
+     * @return the number of transactions written
+     */
+    private int drain() throws IOException {
+        long next = consumed;
+        int count = 0;
+        for (; published.get((int) next & mask) == next; next++, count++) {
+            int index = (int) next & mask;
+            if (sourcesWritten < sources.size() && sourceOf[index] >= sourcesWritten) {
+                defineSources();
+            }
+
+            ensure(TRANSACTION_SIZE);
+            buffer.put(TRANSACTION)
+                .putLong(timestamps[index])
+                .putLong(payerMost[index])
+                .putLong(payerLeast[index])
+                .putLong(payeeMost[index])
+                .putLong(payeeLeast[index])
+                .putLong(amounts[index])
+                .putInt(sourceOf[index]);
+            if (!buffer.hasRemaining()) {
+                write();
+            }
+        }
+
+        /*
+         * Only give the slots back once they have been copied out, a producer waiting on a full ring may reuse them
+         * straight away.
+         */
+        consumed = next;
+        if (buffer.position() > 0) {
+            write();
+            channel.force(false);
+        }
+        return count;
+    }
+
+    private void defineSources() throws IOException {
+        for (; sourcesWritten < sources.size(); sourcesWritten++) {
+            byte[] name = sources.get(sourcesWritten).getBytes(StandardCharsets.UTF_8);
+            ensure(1 + 4 + 2 + name.length);
+            buffer.put(SOURCE).putInt(sourcesWritten).putShort((short) name.length).put(name);
+        }
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            write();
+            if (buffer.capacity() < bytes) {
+                buffer = ByteBuffer.allocateDirect(bytes);
+            }
+        }
+    }
+
+    private void write() throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Find the first class on the stack that belongs to another plugin. The answer is cached per class loader, so
+     * after the first transaction from a plugin this is a walk over the class context and a map lookup.
+     *
+     * @return the source id of the calling plugin, or this plugin's own if there is none or the stack can't be read
+     */
+    public int caller() {
+        if (CALLERS == null) {
+            return 0;
+        }
+
+        ClassLoader own = Ledger.class.getClassLoader();
+        ClassLoader system = ClassLoader.getSystemClassLoader();
+        for (Class<?> type : CALLERS.classes()) {
+            ClassLoader loader = type.getClassLoader();
+            if (loader == null || loader == own || loader == system) {
+                continue;
+            }
+
+            Integer id = loaders.get(loader);
+            if (id == null) {
+                id = intern(name(type));
+                loaders.put(loader, id);
+            }
+            return id;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the source id standing for {@code name}, for callers that know who they are acting for
+     */
+    public int source(String name) {
+        Integer id = sourceIds.get(name);
+        return id == null ? intern(name) : id;
+    }
+
+    private synchronized int intern(String name) {
+        Integer id = sourceIds.get(name);
+        if (id == null) {
+            id = sources.size();
+            sources.add(name);
+            sourceIds.put(name, id);
+        }
+        return id;
+    }
+
+    private static String name(Class<?> type) {
+        try {
+            JavaPlugin plugin = JavaPlugin.getProvidingPlugin(type);
+            if (plugin != null) {
+                return plugin.getName();
+            }
+        } catch (IllegalArgumentException | IllegalStateException ex) {
+            // Not loaded by a plugin
+        }
+        return type.getName();
+    }
+
+    /**
+     * {@link SecurityManager#getClassContext()} hands back the classes on the stack without building a stack trace,
+     * which keeps a Vault transaction well under a microsecond where walking a {@link Throwable}'s stack trace costs
+     * several. Nothing is installed as the security manager, the class is only used for that one method. It is
+     * deprecated for removal on newer JDKs, if it ever can't be created transactions are attributed to this plugin.
+     */
+    @SuppressWarnings("removal")
+    private static final class Callers extends SecurityManager {
+        private static Callers create() {
+            try {
+                return new Callers();
+            } catch (RuntimeException | LinkageError ex) {
+                return null;
+            }
+        }
+
+        private Class<?>[] classes() {
+            return getClassContext();
+        }
+    }
+}
@@ -1,39 +1,82 @@
 package ninja.smirking.economy.storage;
 
+import ninja.smirking.economy.AccountTable;
+import ninja.smirking.economy.BalanceListener;
+import ninja.smirking.economy.Bank;
 import ninja.smirking.economy.EconomyData;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
 
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
 
 /**
- * Not really a DAO but didn't really want to name the interface something else for a single implementation.
- * 
+ * Keeps accounts in memory only, nothing survives the server stopping. Meant for tests and benchmarks, or a server
+ * that really doesn't want its balances kept.
+ * <p>
+ * Nothing is ever evicted, there is nowhere to reload an evicted balance from.
+ *
  * @author Connor Spencer Harries
  */
-public class MemoryEconomyDataDao implements EconomyDataDao {
-    private final Cache<UUID, EconomyData> cache;
+public class MemoryEconomyDataDao implements AsyncEconomyDataDao {
+    private final AccountTable accounts;
 
     public MemoryEconomyDataDao() {
-        this.cache = CacheBuilder.newBuilder().maximumSize(500).build();
+        this(1);
+    }
+
+    /**
+     * @param currencies how many balances each account holds
+     */
+    public MemoryEconomyDataDao(int currencies) {
+        this.accounts = new AccountTable(null, this::get, 0, currencies);
     }
 
     @Override
     public boolean isLoaded(UUID uniqueId) {
-        return cache.getIfPresent(uniqueId) != null;
+        return accounts.contains(uniqueId);
     }
 
     @Override
     public EconomyData get(UUID uniqueId) {
-        EconomyData data = cache.getIfPresent(uniqueId);
+        EconomyData data = accounts.get(uniqueId);
         if (data == null) {
-            data = new EconomyData(uniqueId, 0.0D);
-            cache.put(uniqueId, data);
+            data = accounts.putIfAbsent(uniqueId, 0L, false);
         }
         return data;
     }
 
+    @Override
+    public boolean exists(UUID uniqueId) {
+        return accounts.contains(uniqueId);
+    }
+
+    @Override
+    public EconomyData getExisting(UUID uniqueId) {
+        return accounts.get(uniqueId);
+    }
+
+    @Override
+    public CompletableFuture<EconomyData> getAsync(UUID uniqueId) {
+        return CompletableFuture.completedFuture(get(uniqueId));
+    }
+
+    @Override
+    public CompletableFuture<EconomyData> modifyAsync(UUID uniqueId, Consumer<EconomyData> modifier) {
+        EconomyData data = get(uniqueId);
+        modifier.accept(data);
+        return CompletableFuture.completedFuture(data);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAsync(EconomyData data) {
+        return CompletableFuture.completedFuture(null);
+    }
+
     @Override
     public void save(EconomyData data) {
         // NOP
@@ -45,7 +88,71 @@ public class MemoryEconomyDataDao implements EconomyDataDao {
     }
 
     @Override
-    public void close() {
-        cache.invalidateAll();
+    public void addListener(BalanceListener listener) {
+        accounts.addListener(listener);
+    }
+
+    @Override
+    public void forEachBalance(ObjLongConsumer<UUID> consumer) {
+        accounts.forEach(data -> consumer.accept(data.getUniqueId(), data.getBalance()));
+    }
+
+    /**
+     * Every account is resident, so this is an ordinary change to each of them and {@code consumer} is never called.
+     */
+    @Override
+    public long applyToAll(BulkOperation operation, ObjLongConsumer<UUID> consumer) {
+        List<EconomyData> resident = Lists.newArrayListWithCapacity(accounts.size());
+        accounts.forEach(resident::add);
+
+        long changed = 0L;
+        for (EconomyData data : resident) {
+            long balance;
+            long updated;
+            do {
+                balance = data.getBalance();
+                updated = operation.apply(balance);
+            } while (updated != balance && !data.compareAndSet(balance, updated));
+
+            if (updated != balance) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public void applyExternal(UUID uniqueId, int currency, long change) {
+        accounts.applyExternal(uniqueId, currency, change);
+    }
+
+    @Override
+    public void invalidate(UUID uniqueId) {
+        // NOP
+    }
+
+    @Override
+    public void saveName(String name, UUID uniqueId) {
+        // NOP
+    }
+
+    @Override
+    public void forEachName(BiConsumer<String, UUID> consumer) {
+        // NOP
+    }
+
+    @Override
+    public boolean saveBank(Bank bank) {
+        return true;
+    }
+
+    @Override
+    public boolean deleteBank(String name) {
+        return true;
+    }
+
+    @Override
+    public void forEachBank(Consumer<Bank> consumer) {
+        // NOP
     }
 }
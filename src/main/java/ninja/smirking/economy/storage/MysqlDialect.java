@@ -0,0 +1,67 @@
+package ninja.smirking.economy.storage;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import com.zaxxer.hikari.HikariConfig;
+
+/**
+ * MySQL and MariaDB. With {@code rewriteBatchedStatements} Connector/J sends a batch of inserts as one multi-row
+ * {@code INSERT}, which is the cheapest way to get a flush into InnoDB.
+ *
+ * @author Connor Spencer Harries
+ */
+final class MysqlDialect implements SqlDialect {
+    static final SqlDialect INSTANCE = new MysqlDialect();
+
+    private MysqlDialect() {
+
+    }
+
+    @Override
+    public String url(String hostname, String database, File dataFolder) {
+        return String.format("jdbc:mysql://%s/%s", hostname, database);
+    }
+
+    @Override
+    public void configure(HikariConfig config) {
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        config.addDataSourceProperty("prepStmtCacheSize", "250");
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("rewriteBatchedStatements", "true");
+    }
+
+    @Override
+    public String tableOptions() {
+        return " ENGINE=InnoDB";
+    }
+
+    @Override
+    public String upsert(String table, String key, List<String> columns, String assignments) {
+        return "INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES(" + String.join(", ", Collections.nCopies(columns.size(), "?")) + ") ON DUPLICATE KEY UPDATE " + assignments;
+    }
+
+    @Override
+    public String existing(String table, String column) {
+        return column;
+    }
+
+    @Override
+    public String incoming(String column) {
+        return "VALUES(" + column + ")";
+    }
+
+    /**
+     * {@code /} gives a {@code DECIMAL} in MySQL.
+     */
+    @Override
+    public String divide(String dividend, String divisor) {
+        return "(" + dividend + " DIV " + divisor + ")";
+    }
+
+    @Override
+    public String toString() {
+        return "MySQL";
+    }
+}
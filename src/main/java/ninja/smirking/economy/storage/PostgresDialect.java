@@ -0,0 +1,56 @@
+package ninja.smirking.economy.storage;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import com.zaxxer.hikari.HikariConfig;
+
+/**
+ * PostgreSQL 9.5 or later. With {@code reWriteBatchedInserts} the driver folds a batch of inserts into multi-row
+ * {@code VALUES}, {@code ON CONFLICT} included.
+ *
+ * @author Connor Spencer Harries
+ */
+final class PostgresDialect implements SqlDialect {
+    static final SqlDialect INSTANCE = new PostgresDialect();
+
+    private PostgresDialect() {
+
+    }
+
+    @Override
+    public String url(String hostname, String database, File dataFolder) {
+        return String.format("jdbc:postgresql://%s/%s", hostname, database);
+    }
+
+    @Override
+    public void configure(HikariConfig config) {
+        config.addDataSourceProperty("reWriteBatchedInserts", "true");
+    }
+
+    @Override
+    public String binaryType() {
+        return "BYTEA";
+    }
+
+    @Override
+    public String upsert(String table, String key, List<String> columns, String assignments) {
+        return "INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES(" + String.join(", ", Collections.nCopies(columns.size(), "?")) + ") ON CONFLICT (" + key + ") DO UPDATE SET " + assignments;
+    }
+
+    @Override
+    public String existing(String table, String column) {
+        return table + "." + column;
+    }
+
+    @Override
+    public String incoming(String column) {
+        return "EXCLUDED." + column;
+    }
+
+    @Override
+    public String toString() {
+        return "PostgreSQL";
+    }
+}
@@ -0,0 +1,177 @@
+package ninja.smirking.economy.storage;
+
+import ninja.smirking.economy.AccountTable;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The accounts resident when the server shut down, so the next start can put them straight back in the table instead
+ * of loading them one login at a time. Each record is a UUID, the row version last persisted, how often the account was
+ * being used and the balance last persisted in each currency. The names of the currencies follow the header, a
+ * snapshot written with different currencies or with the same ones in another order is not loaded.
+ * <p>
+ * Only clean accounts are written, a dirty one either made it into storage during the final flush or is still in the
+ * journal. A snapshot is deleted once it has been read and its header is cleared before any of it is loaded, so it is
+ * never loaded twice and a crash before the next clean shutdown leaves nothing behind that could be older than storage.
+ *
+ * @author Connor Spencer Harries
+ */
+final class Snapshot {
+    private static final int MAGIC = 0x45534E50;
+    private static final int FORMAT = 3;
+    private static final int HEADER_SIZE = 16;
+    private static final int COUNT_OFFSET = 8;
+    private static final int BALANCES_OFFSET = 32;
+
+    private Snapshot() {
+
+    }
+
+    /**
+     * @param names the name of each currency in {@code accounts}, in order of id
+     * @return the number of accounts written
+     */
+    static int write(File file, AccountTable accounts, List<String> names) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        int recordSize = recordSize(accounts.getCurrencies());
+        int start = HEADER_SIZE + CurrencyNames.size(names);
+        int[] count = new int[1];
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(start + recordSize * 1024);
+            buffer.position(start);
+            IOException[] failure = new IOException[1];
+            accounts.forEach(data -> {
+                if (failure[0] != null || data.isDirty()) {
+                    return;
+                }
+
+                try {
+                    if (buffer.remaining() < recordSize) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                } catch (IOException ex) {
+                    failure[0] = ex;
+                    return;
+                }
+
+                UUID uniqueId = data.getUniqueId();
+                buffer.putLong(uniqueId.getMostSignificantBits());
+                buffer.putLong(uniqueId.getLeastSignificantBits());
+                buffer.putLong(data.getPersistedVersion());
+                buffer.putInt(accounts.frequency(uniqueId));
+                buffer.putInt(0);
+                for (long persisted : data.getPersistedBalances()) {
+                    buffer.putLong(persisted);
+                }
+                count[0]++;
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(start);
+            header.putInt(MAGIC).putInt(FORMAT).putInt(count[0]).putInt(recordSize);
+            CurrencyNames.write(header, names);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /**
+     * Put every account in the snapshot into {@code accounts} as clean, leaving alone any that are already resident,
+     * and delete the snapshot. One written by another version or with different currencies is deleted without being
+     * loaded.
+     *
+     * @param names the name of each currency in {@code accounts}, in order of id
+     * @return the accounts that were loaded, in the order they were written
+     */
+    static List<UUID> load(File file, AccountTable accounts, List<String> names) throws IOException {
+        if (!file.isFile()) {
+            return Collections.emptyList();
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) > 0) {
+                // Keep reading until the header is full or the file ends
+            }
+            if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+                return Collections.emptyList();
+            }
+
+            /*
+             * Cleared before anything is put in the table, so a crash part way through can't load it a second time.
+             */
+            ByteBuffer cleared = ByteBuffer.allocate(4);
+            while (cleared.hasRemaining()) {
+                channel.write(cleared, cleared.position());
+            }
+            channel.force(false);
+
+            int count = header.getInt(COUNT_OFFSET);
+            int currencies = accounts.getCurrencies();
+            int recordSize = recordSize(currencies);
+            if (header.getInt(4) != FORMAT || header.getInt(12) != recordSize || !CurrencyNames.read(channel).equals(names) || count < 0 || channel.position() + (long) count * recordSize > channel.size()) {
+                return Collections.emptyList();
+            }
+
+            List<UUID> loaded = Lists.newArrayListWithCapacity(count);
+            ByteBuffer buffer = ByteBuffer.allocate(recordSize * 1024);
+            for (int i = 0; i < count; ) {
+                buffer.clear().limit(Math.min(count - i, 1024) * recordSize);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("The snapshot ended part way through a record");
+                    }
+                }
+
+                for (int offset = 0; offset < buffer.limit(); offset += recordSize, i++) {
+                    UUID uniqueId = new UUID(buffer.getLong(offset), buffer.getLong(offset + 8));
+                    if (accounts.contains(uniqueId)) {
+                        continue;
+                    }
+
+                    long[] persisted = new long[currencies];
+                    for (int currency = 0; currency < currencies; currency++) {
+                        persisted[currency] = buffer.getLong(offset + BALANCES_OFFSET + currency * 8);
+                    }
+                    accounts.putIfAbsent(uniqueId, persisted, buffer.getLong(offset + 16), false);
+                    accounts.addFrequency(uniqueId, buffer.getInt(offset + 24));
+                    loaded.add(uniqueId);
+                }
+            }
+            return loaded;
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private static int recordSize(int currencies) {
+        return BALANCES_OFFSET + currencies * 8;
+    }
+}
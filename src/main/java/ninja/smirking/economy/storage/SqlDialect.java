@@ -0,0 +1,108 @@
+package ninja.smirking.economy.storage;
+
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+
+import com.zaxxer.hikari.HikariConfig;
+
+/**
+ * Everything {@link SqlEconomyDataDao} needs to know about the database it is talking to: how to reach it, how to
+ * declare its tables and how to write a batch of rows with the fewest round trips. The rest of the SQL is plain enough
+ * that every supported database understands it as written.
+ *
+ * @author Connor Spencer Harries
+ */
+public interface SqlDialect {
+    /**
+     * Pick the dialect for {@code url} if one is configured, otherwise for the {@code storage} setting.
+     *
+     * @throws IllegalArgumentException if neither names a database that is supported
+     */
+    static SqlDialect of(String storage, String url) {
+        if (url != null) {
+            if (url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:")) {
+                return MysqlDialect.INSTANCE;
+            } else if (url.startsWith("jdbc:postgresql:")) {
+                return PostgresDialect.INSTANCE;
+            } else if (url.startsWith("jdbc:h2:")) {
+                return H2Dialect.INSTANCE;
+            }
+        }
+
+        switch (storage.toLowerCase(Locale.ROOT)) {
+            case "mysql":
+                return MysqlDialect.INSTANCE;
+            case "postgresql":
+                return PostgresDialect.INSTANCE;
+            case "h2":
+                return H2Dialect.INSTANCE;
+            default:
+                throw new IllegalArgumentException("There is no SQL dialect for " + (url == null ? storage : url));
+        }
+    }
+
+    /**
+     * @return the URL used when {@code jdbc-url} isn't set, embedded databases keep their files in {@code dataFolder}
+     */
+    String url(String hostname, String database, File dataFolder);
+
+    /**
+     * Set whatever driver properties make batches and prepared statements fastest.
+     */
+    default void configure(HikariConfig config) {
+
+    }
+
+    /**
+     * @return the column type holding a UUID as 16 raw bytes
+     */
+    default String binaryType() {
+        return "BINARY(16)";
+    }
+
+    /**
+     * @return anything that should follow the column list in {@code CREATE TABLE}
+     */
+    default String tableOptions() {
+        return "";
+    }
+
+    /**
+     * A single-row insert that runs {@code assignments} instead when a row with the same {@code key} already exists.
+     * The columns are bound in order. Assignments refer to the stored row through {@link #existing(String, String)}
+     * and to the row being inserted through {@link #incoming(String)}.
+     */
+    String upsert(String table, String key, List<String> columns, String assignments);
+
+    /**
+     * @return {@code column} of the row already stored, inside the assignments of an {@link #upsert}
+     */
+    String existing(String table, String column);
+
+    /**
+     * @return {@code column} of the row being inserted, inside the assignments of an {@link #upsert}
+     */
+    String incoming(String column);
+
+    /**
+     * @return the clause that locks the rows a {@code SELECT} reads until the transaction ends
+     */
+    default String lockRows() {
+        return " FOR UPDATE";
+    }
+
+    /**
+     * @return integer division of two {@code BIGINT} expressions, rounding towards zero
+     */
+    default String divide(String dividend, String divisor) {
+        return "(" + dividend + " / " + divisor + ")";
+    }
+
+    /**
+     * @return the most keys bound into one {@code IN (...)} list, a power of two
+     */
+    default int maxLookupKeys() {
+        return 4096;
+    }
+}
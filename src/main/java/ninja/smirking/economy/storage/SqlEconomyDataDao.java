@@ -0,0 +1,1655 @@
+package ninja.smirking.economy.storage;
+
+import ninja.smirking.economy.AccountTable;
+import ninja.smirking.economy.BalanceListener;
+import ninja.smirking.economy.Bank;
+import ninja.smirking.economy.Currency;
+import ninja.smirking.economy.EconomyData;
+import ninja.smirking.economy.EconomyPlugin;
+import ninja.smirking.economy.event.OnlinePlayers;
+import ninja.smirking.economy.metrics.Histogram;
+import ninja.smirking.economy.metrics.Metrics;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Loads are single-flight: whoever registers the first future for a UUID performs the load and everybody else asking
+ * for the same UUID in the meantime waits on that future. Asynchronous loads are not run straight away, they are
+ * collected for a short window and then fetched together with {@code WHERE uniqueId IN (...)}.
+ * <p>
+ * Balances are persisted in one of two ways. By default a flush overwrites the stored balance with the one held in
+ * memory, which is only safe while this is the only server using the table. With {@code persistence: delta} a flush
+ * adds whatever changed locally since the last flush instead, reads the row back in the same transaction and folds
+ * anything other servers added in the meantime into the cached balance, so several servers can share the table
+ * without locking rows between flushes. With {@code version-column} on, each row also carries a version number and the
+ * change is first tried as an update conditional on the version last seen, only rows somebody else has touched need
+ * reading back.
+ * <p>
+ * A Bloom filter of every stored UUID answers {@link #exists(UUID)} for players who have never had an account. Servers
+ * sharing the table need the balance bus for it to hear about accounts created elsewhere, otherwise turn it off with
+ * {@code existence-filter: false}.
+ * <p>
+ * On a clean shutdown the resident accounts are written to a snapshot, which the next start loads straight back into
+ * the cache before checking it against the database in the background.
+ * <p>
+ * Each currency has its own balance column in the account's row, {@code balance} for the default and {@code
+ * balance_<name>} for the others, so every balance an account holds is read with one lookup and written with one
+ * statement. Bulk operations, scans and the balance bus only deal in the default currency.
+ * <p>
+ * The handful of statements that differ between databases come from a {@link SqlDialect}, picked from the {@code
+ * jdbc-url} if there is one and the {@code storage} setting otherwise.
+ *
+ * @author Connor Spencer Harries
+ */
+public class SqlEconomyDataDao implements AsyncEconomyDataDao {
+    private static final String EXISTS_STATEMENT = "SELECT 1 FROM economy WHERE uniqueId = ?";
+    private static final String COUNT_STATEMENT = "SELECT COUNT(*) FROM economy";
+    private static final String SCAN_STATEMENT = "SELECT uniqueId, balance FROM economy WHERE uniqueId > ? ORDER BY uniqueId LIMIT ?";
+    private static final String NAME_SCAN_STATEMENT = "SELECT name, uniqueId FROM economy_names WHERE name > ? ORDER BY name LIMIT ?";
+    private static final String BANK_DELETE_STATEMENT = "DELETE FROM economy_banks WHERE name = ?";
+    private static final String BANK_MEMBERS_DELETE_STATEMENT = "DELETE FROM economy_bank_members WHERE bank = ?";
+    private static final String BANK_MEMBER_INSERT_STATEMENT = "INSERT INTO economy_bank_members (bank, uniqueId) VALUES(?, ?)";
+    private static final String BANK_SCAN_STATEMENT = "SELECT name, owner, balance FROM economy_banks";
+    private static final String BANK_MEMBERS_SCAN_STATEMENT = "SELECT bank, uniqueId FROM economy_bank_members";
+    private static final int SCAN_PAGE_SIZE = 1000;
+    private static final int BATCH_SIZE = 150;
+    private static final int BULK_CHUNK_SIZE = 5000;
+    private static final int VALIDATE_BATCH_SIZE = 512;
+    private static final int RUNNING = 0;
+    private static final int COMMITTING = 1;
+    private static final int COMMITTED = 2;
+    private static final int ABANDONED = 3;
+
+    private final ConcurrentMap<UUID, CompletableFuture<EconomyData>> loading;
+    private final ReadWriteLock loadLock = new ReentrantReadWriteLock();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean prefetching;
+    private final AccountFilter filter;
+    private final AccountTable accounts;
+    private final Queue<EconomyData> dirty;
+    private final HikariDataSource source;
+    private final ThreadPoolExecutor executor;
+    private final Histogram flushDuration;
+    private final BalanceListener listener;
+    private final Queue<UUID> prefetch;
+    private final LongAdder flushFailures;
+    private final LongAdder filtered;
+    private final Histogram loadLatency;
+    private final LongAdder loadFailures;
+    private final EconomyPlugin plugin;
+    private final LongAdder flushedRows;
+    private final Journal journal;
+    private final File snapshot;
+    private final LongAdder misses;
+    private final LongAdder hits;
+    private final SqlDialect dialect;
+    private final List<String> balanceColumns;
+    private final List<String> currencies;
+    private final String upsertStatement;
+    private final String deltaStatement;
+    private final String conditionalDeltaStatement;
+    private final String nameUpsertStatement;
+    private final String bankUpsertStatement;
+    private final String bulkScanStatement;
+    private final boolean versioned;
+    private final boolean strict;
+    private final boolean delta;
+    private final long prefetchWindow;
+    private final int maximumSize;
+    private final long idleTime;
+    private final int prefetchBatchSize;
+    private final int shutdownThreads;
+    private final long shutdownDeadline;
+
+    private volatile boolean filterLoaded;
+
+    public SqlEconomyDataDao(EconomyPlugin plugin) throws Exception {
+        String hostname = plugin.getConfig().getString("hostname", "127.0.0.1");
+        String username = plugin.getConfig().getString("username", "root");
+        String database = plugin.getConfig().getString("database", username);
+        String password = plugin.getConfig().getString("password", "");
+        int threads = Math.max(1, plugin.getConfig().getInt("io-threads", 4));
+
+        /*
+         * An explicit URL decides the dialect by itself, otherwise the storage setting picks one and it supplies the
+         * URL. The benchmarks point this at an in-memory H2 database.
+         */
+        String url = plugin.getConfig().getString("jdbc-url");
+        this.dialect = SqlDialect.of(plugin.getConfig().getString("storage", "mysql"), url);
+        if (url == null) {
+            url = dialect.url(hostname, database, plugin.getDataFolder());
+        }
+
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(url);
+        dialect.configure(config);
+        config.setPassword(password);
+        config.setUsername(username);
+
+        this.source = new HikariDataSource(config);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, plugin.getConfig().getInt("io-queue-size", 1024))), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, String.format("Economy I/O Thread #%d", threadNumber.getAndIncrement()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Economy Prefetch Thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.strict = plugin.getConfig().getBoolean("strict", false);
+        this.delta = "delta".equalsIgnoreCase(plugin.getConfig().getString("persistence", "absolute"));
+        this.versioned = plugin.getConfig().getBoolean("version-column", false);
+        this.balanceColumns = balanceColumns(plugin.getCurrencies().getAll());
+        this.currencies = CurrencyNames.of(plugin.getCurrencies().getAll());
+        String bump = versioned ? ", version = " + dialect.existing("economy", "version") + " + 1" : "";
+        List<String> columns = Lists.newArrayList("uniqueId");
+        columns.addAll(balanceColumns);
+        StringBuilder overwrite = new StringBuilder();
+        StringBuilder add = new StringBuilder();
+        StringBuilder conditional = new StringBuilder("UPDATE economy SET ");
+        for (String column : balanceColumns) {
+            String separator = overwrite.length() == 0 ? "" : ", ";
+            overwrite.append(separator).append(column).append(" = ").append(dialect.incoming(column));
+            add.append(separator).append(column).append(" = ").append(dialect.existing("economy", column)).append(" + ").append(dialect.incoming(column));
+            conditional.append(column).append(" = ").append(column).append(" + ?, ");
+        }
+        this.upsertStatement = dialect.upsert("economy", "uniqueId", columns, overwrite + bump);
+        this.deltaStatement = dialect.upsert("economy", "uniqueId", columns, add + bump);
+        this.conditionalDeltaStatement = conditional.append("version = version + 1 WHERE uniqueId = ? AND version = ?").toString();
+        this.nameUpsertStatement = dialect.upsert("economy_names", "name", Arrays.asList("name", "uniqueId"), "uniqueId = " + dialect.incoming("uniqueId"));
+        this.bankUpsertStatement = dialect.upsert("economy_banks", "name", Arrays.asList("name", "owner", "balance"), "owner = " + dialect.incoming("owner") + ", balance = " + dialect.incoming("balance"));
+        this.bulkScanStatement = "SELECT uniqueId, balance FROM economy WHERE uniqueId > ? ORDER BY uniqueId LIMIT ?" + dialect.lockRows();
+        this.prefetchWindow = Math.max(0L, plugin.getConfig().getLong("prefetch-window", 10L));
+        this.prefetchBatchSize = Math.max(1, plugin.getConfig().getInt("prefetch-batch-size", 100));
+        this.shutdownThreads = Math.max(1, plugin.getConfig().getInt("shutdown-flush-threads", 4));
+        this.shutdownDeadline = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, plugin.getConfig().getLong("shutdown-flush-deadline", 20000L)));
+        this.prefetching = new AtomicBoolean();
+        this.prefetch = Queues.newConcurrentLinkedQueue();
+        this.loading = Maps.newConcurrentMap();
+        this.dirty = Queues.newConcurrentLinkedQueue();
+        this.plugin = plugin;
+        this.listener = new BalanceListener() {
+            @Override
+            public void onBalanceChange(EconomyData data, long previous, long current) {
+                onBalanceChange(data, Currency.DEFAULT, previous, current);
+            }
+
+            @Override
+            public void onBalanceChange(EconomyData data, int currency, long previous, long current) {
+                if (journal != null) {
+                    journal.append(data);
+                }
+            }
+
+            @Override
+            public void onDirty(EconomyData data) {
+                dirty.offer(data);
+            }
+        };
+        this.maximumSize = Math.max(1, plugin.getConfig().getInt("cache-maximum-size", 10000));
+        this.idleTime = Math.max(0L, plugin.getConfig().getLong("cache-idle-time", 1800L));
+        this.accounts = new AccountTable(listener, this::getBlocking, maximumSize, balanceColumns.size());
+
+        Metrics metrics = plugin.getMetrics();
+        this.hits = metrics.counter("cache.hits");
+        this.misses = metrics.counter("cache.misses");
+        this.loadLatency = metrics.histogram("load.latency");
+        this.loadFailures = metrics.counter("load.failures");
+        this.flushDuration = metrics.histogram("flush.duration");
+        this.flushedRows = metrics.counter("flush.rows");
+        this.flushFailures = metrics.counter("flush.failures");
+        this.filtered = metrics.counter("exists.filtered");
+        this.snapshot = plugin.getConfig().getBoolean("snapshot", true) ? new File(plugin.getDataFolder(), "snapshot.dat") : null;
+        metrics.gauge("cache.size", accounts::size);
+        metrics.gauge("cache.dirty", dirty::size);
+        metrics.gauge("io.queue", () -> executor.getQueue().size());
+        metrics.gauge("io.active", executor::getActiveCount);
+
+        long rows;
+        try (Connection connection = source.getConnection()) {
+            SqlSchema.migrate(connection, dialect, versioned, balanceColumns.subList(1, balanceColumns.size()), plugin.getLogger());
+            try (PreparedStatement statement = connection.prepareStatement(COUNT_STATEMENT); ResultSet set = statement.executeQuery()) {
+                rows = set.next() ? set.getLong(1) : 0L;
+            }
+        }
+
+        /*
+         * Sized for twice the current number of rows so that new players can join for a good while before false
+         * positives start to climb. It only stands in for the database once it holds every existing row, until then
+         * exists() asks the database.
+         */
+        if (plugin.getConfig().getBoolean("existence-filter", true)) {
+            this.filter = new AccountFilter(rows * 2L);
+            executor.execute(this::loadFilter);
+        } else {
+            this.filter = null;
+        }
+
+        if (plugin.getConfig().getBoolean("journal", true)) {
+            this.journal = new Journal(new File(plugin.getDataFolder(), "journal"), currencies, plugin.getConfig().getLong("journal-fsync-window", 50L), TimeUnit.MILLISECONDS, plugin.getLogger());
+        } else {
+            this.journal = null;
+        }
+        replay();
+
+        if (snapshot != null) {
+            warm();
+        }
+
+        new BukkitRunnable() {
+            private final OnlinePlayers online = plugin.getOnlinePlayers();
+            private final LongAdder evictions = plugin.getMetrics().counter("cache.evictions");
+
+            @Override
+            public void run() {
+                if (accounts.size() < 1 && dirty.isEmpty()) {
+                    return;
+                }
+
+                saveAll();
+
+                /*
+                 * Dirty data is left alone until a later flush has persisted it, otherwise a reload in between would
+                 * read a stale balance back out of the database.
+                 */
+                evictions.add(accounts.evict(maximumSize, idleTime, EconomyPlugin.SAVE_INTERVAL / 20L, TimeUnit.SECONDS, online::contains));
+            }
+        }.runTaskTimerAsynchronously(plugin, EconomyPlugin.SAVE_INTERVAL / 2, EconomyPlugin.SAVE_INTERVAL);
+    }
+
+    @Override
+    public boolean isLoaded(UUID uniqueId) {
+        return accounts.contains(uniqueId);
+    }
+
+    @Override
+    public EconomyData get(UUID uniqueId) {
+        EconomyData data = accounts.get(uniqueId);
+        if (data != null) {
+            hits.increment();
+            return data;
+        }
+        misses.increment();
+
+        /*
+         * In strict mode the server thread is never allowed to wait on the database, the load is queued up instead and
+         * callers will have to treat the account as not loaded for now.
+         */
+        if (strict && plugin.getServer().isPrimaryThread()) {
+            getAsync(uniqueId);
+            return null;
+        }
+        return getBlocking(uniqueId);
+    }
+
+    /**
+     * Load {@code uniqueId} on the calling thread, or wait for whoever is already loading it. This is also how views
+     * of evicted accounts find their way back into the table.
+     */
+    private EconomyData getBlocking(UUID uniqueId) {
+        EconomyData data = accounts.get(uniqueId);
+        if (data != null) {
+            return data;
+        }
+
+        CompletableFuture<EconomyData> future = new CompletableFuture<>();
+        CompletableFuture<EconomyData> existing = loading.putIfAbsent(uniqueId, future);
+        if (existing == null) {
+            data = accounts.get(uniqueId);
+            if (data != null) {
+                loading.remove(uniqueId, future);
+                future.complete(data);
+                return data;
+            }
+            load(Collections.singletonList(uniqueId));
+            existing = future;
+        }
+
+        try {
+            return existing.join();
+        } catch (CompletionException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * A UUID the filter has never seen has no row, so the answer costs no I/O. Anything else is looked up in the
+     * database without being loaded. In strict mode the server thread takes the filter's word for it instead of
+     * waiting on the database.
+     */
+    @Override
+    public boolean exists(UUID uniqueId) {
+        if (accounts.contains(uniqueId) || loading.containsKey(uniqueId)) {
+            return true;
+        }
+
+        if (filterLoaded && !filter.mightContain(uniqueId)) {
+            filtered.increment();
+            return false;
+        }
+
+        if (strict && plugin.getServer().isPrimaryThread()) {
+            return true;
+        }
+
+        try (Connection connection = source.getConnection(); PreparedStatement statement = connection.prepareStatement(EXISTS_STATEMENT)) {
+            UniqueIds.bind(statement, 1, uniqueId, 0);
+            try (ResultSet set = statement.executeQuery()) {
+                return set.next();
+            }
+        } catch (SQLException cause) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to check whether {0} has an account: {1}", new Object[]{
+                uniqueId,
+                cause
+            });
+            return false;
+        }
+    }
+
+    /**
+     * A UUID the filter has never seen has no row and costs no I/O, anything else is loaded with a single query that
+     * leaves a missing row missing. In strict mode the server thread never waits, the account is loaded in the
+     * background for next time instead.
+     */
+    @Override
+    public EconomyData getExisting(UUID uniqueId) {
+        EconomyData data = accounts.get(uniqueId);
+        if (data != null) {
+            hits.increment();
+            return data;
+        }
+
+        if (filterLoaded && !filter.mightContain(uniqueId)) {
+            filtered.increment();
+            return null;
+        }
+        misses.increment();
+
+        if (strict && plugin.getServer().isPrimaryThread()) {
+            submit(() -> loadExisting(uniqueId));
+            throw new IllegalStateException("The account for " + uniqueId + " is not loaded");
+        }
+
+        /*
+         * A load already in flight came from get() and will create the account anyway.
+         */
+        CompletableFuture<EconomyData> existing = loading.get(uniqueId);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException ex) {
+                throw new IllegalStateException("Could not load the account for " + uniqueId, ex.getCause());
+            }
+        }
+        return loadExisting(uniqueId);
+    }
+
+    @Override
+    public CompletableFuture<EconomyData> getAsync(UUID uniqueId) {
+        EconomyData data = accounts.get(uniqueId);
+        if (data != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(data);
+        }
+        misses.increment();
+
+        CompletableFuture<EconomyData> future = new CompletableFuture<>();
+        CompletableFuture<EconomyData> existing = loading.putIfAbsent(uniqueId, future);
+        if (existing != null) {
+            return existing;
+        }
+
+        /*
+         * The load that was in flight when the cache was checked may have finished before our future went in.
+         */
+        data = accounts.get(uniqueId);
+        if (data != null) {
+            loading.remove(uniqueId, future);
+            future.complete(data);
+            return future;
+        }
+
+        prefetch.offer(uniqueId);
+        if (prefetching.compareAndSet(false, true)) {
+            try {
+                scheduler.schedule(this::drainPrefetch, prefetchWindow, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                prefetching.set(false);
+                fail(Collections.singletonList(uniqueId), ex);
+            }
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<EconomyData> modifyAsync(UUID uniqueId, Consumer<EconomyData> modifier) {
+        Preconditions.checkNotNull(modifier, "modifier should not be null");
+        return getAsync(uniqueId).thenApply(data -> {
+            if (data != null) {
+                modifier.accept(data);
+            }
+            return data;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAsync(EconomyData data) {
+        Preconditions.checkNotNull(data, "data should not be null");
+        return submit(() -> {
+            save(data);
+            return null;
+        });
+    }
+
+    @Override
+    public void save(EconomyData data) {
+        Preconditions.checkNotNull(data, "data should not be null");
+        saveBatch(Collections.singletonList(data));
+    }
+
+    @Override
+    public void saveAll() {
+        long checkpoint = checkpoint();
+        List<EconomyData> pending = Lists.newArrayList();
+        for (EconomyData data = dirty.poll(); data != null; data = dirty.poll()) {
+            pending.add(data);
+        }
+
+        if (saveBatch(pending)) {
+            release(checkpoint);
+        }
+    }
+
+    @Override
+    public void addListener(BalanceListener listener) {
+        accounts.addListener(listener);
+    }
+
+    /**
+     * Pages through the table by primary key, so no single query holds on to a large result set or a long-lived
+     * cursor. Each page takes its own connection and hands it back before the next, so even a pool of one never has
+     * loads waiting behind a scan for longer than one page.
+     */
+    @Override
+    public void forEachBalance(ObjLongConsumer<UUID> consumer) {
+        scan(consumer);
+    }
+
+    /**
+     * @return {@code false} if the scan failed part way through
+     */
+    private boolean scan(ObjLongConsumer<UUID> consumer) {
+        byte[] last = new byte[UniqueIds.BYTES];
+        UUID[] uniqueIds = new UUID[SCAN_PAGE_SIZE];
+        long[] balances = new long[SCAN_PAGE_SIZE];
+        try {
+            int rows;
+            do {
+                rows = 0;
+                try (Connection connection = source.getConnection(); PreparedStatement statement = connection.prepareStatement(SCAN_STATEMENT)) {
+                    statement.setBytes(1, last);
+                    statement.setInt(2, SCAN_PAGE_SIZE);
+                    try (ResultSet set = statement.executeQuery()) {
+                        while (set.next()) {
+                            last = set.getBytes(1);
+                            uniqueIds[rows] = UniqueIds.read(last);
+                            balances[rows++] = set.getLong(2);
+                        }
+                    }
+                }
+
+                for (int i = 0; i < rows; i++) {
+                    consumer.accept(uniqueIds[i], balances[i]);
+                }
+            } while (rows == SCAN_PAGE_SIZE);
+            return true;
+        } catch (SQLException cause) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to read every balance: {0}", new Object[]{
+                cause
+            });
+            return false;
+        }
+    }
+
+    /**
+     * Accounts created while this runs are added as they are loaded, so once the scan finishes the filter has seen
+     * every row. If it fails the filter is never used and exists() keeps asking the database.
+     */
+    private void loadFilter() {
+        long start = System.nanoTime();
+        if (scan((uniqueId, balance) -> filter.add(uniqueId))) {
+            filterLoaded = true;
+            plugin.getLogger().log(Level.INFO, "Loaded the account filter in {0}ms", new Object[]{
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            });
+        }
+    }
+
+    /**
+     * Names are stored in lower case so they match whatever the database's collation, some compare them
+     * case-insensitively by default but others compare them exactly.
+     */
+    @Override
+    public void saveName(String name, UUID uniqueId) {
+        try (Connection connection = source.getConnection(); PreparedStatement statement = connection.prepareStatement(nameUpsertStatement)) {
+            statement.setString(1, name.toLowerCase(Locale.ROOT));
+            UniqueIds.bind(statement, 2, uniqueId, 0);
+            statement.executeUpdate();
+        } catch (SQLException cause) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to save the name {0} for {1}: {2}", new Object[]{
+                name,
+                uniqueId,
+                cause
+            });
+        }
+    }
+
+    /**
+     * Pages by name with a connection per page, like {@link #forEachBalance(ObjLongConsumer)}.
+     */
+    @Override
+    public void forEachName(BiConsumer<String, UUID> consumer) {
+        String last = "";
+        List<String> names = Lists.newArrayListWithCapacity(SCAN_PAGE_SIZE);
+        List<UUID> uniqueIds = Lists.newArrayListWithCapacity(SCAN_PAGE_SIZE);
+        try {
+            do {
+                names.clear();
+                uniqueIds.clear();
+                try (Connection connection = source.getConnection(); PreparedStatement statement = connection.prepareStatement(NAME_SCAN_STATEMENT)) {
+                    statement.setString(1, last);
+                    statement.setInt(2, SCAN_PAGE_SIZE);
+                    try (ResultSet set = statement.executeQuery()) {
+                        while (set.next()) {
+                            last = set.getString(1);
+                            names.add(last);
+                            uniqueIds.add(UniqueIds.read(set.getBytes(2)));
+                        }
+                    }
+                }
+
+                for (int i = 0; i < names.size(); i++) {
+                    consumer.accept(names.get(i), uniqueIds.get(i));
+                }
+            } while (names.size() == SCAN_PAGE_SIZE);
+        } catch (SQLException cause) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to read every name: {0}", new Object[]{
+                cause
+            });
+        }
+    }
+
+    /**
+     * The row and the member list are replaced in one transaction, so the bank is never stored half written.
+     */
+    @Override
+    public boolean saveBank(Bank bank) {
+        Set<UUID> members = bank.getMembers();
+        long balance = bank.getBalance();
+        try (Connection connection = source.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                try (PreparedStatement statement = connection.prepareStatement(bankUpsertStatement)) {
+                    statement.setString(1, bank.getName());
+                    UniqueIds.bind(statement, 2, bank.getOwner(), 0);
+                    statement.setLong(3, balance);
+                    statement.executeUpdate();
+                }
+
+                try (PreparedStatement statement = connection.prepareStatement(BANK_MEMBERS_DELETE_STATEMENT)) {
+                    statement.setString(1, bank.getName());
+                    statement.executeUpdate();
+                }
+
+                if (!members.isEmpty()) {
+                    try (PreparedStatement statement = connection.prepareStatement(BANK_MEMBER_INSERT_STATEMENT)) {
+                        int row = 0;
+                        for (UUID member : members) {
+                            statement.setString(1, bank.getName());
+                            UniqueIds.bind(statement, 2, member, row++);
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                }
+                connection.commit();
+                return true;
+            } catch (SQLException ex) {
+                try {
+                    connection.rollback();
+                } catch (SQLException suppressed) {
+                    ex.addSuppressed(suppressed);
+                }
+                throw ex;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException cause) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to save the bank {0}: {1}", new Object[]{
+                bank,
+                cause
+            });
+            return false;
+        }
+    }
+
+    @Override
+    public boolean deleteBank(String name) {
+        try (Connection connection = source.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                for (String delete : new String[]{BANK_MEMBERS_DELETE_STATEMENT, BANK_DELETE_STATEMENT}) {
+                    try (PreparedStatement statement = connection.prepareStatement(delete)) {
+                        statement.setString(1, name);
+                        statement.executeUpdate();
+                    }
+                }
+                connection.commit();
+                return true;
+            } catch (SQLException ex) {
+                try {
+                    connection.rollback();
+                } catch (SQLException suppressed) {
+                    ex.addSuppressed(suppressed);
+                }
+                throw ex;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException cause) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to delete the bank {0}: {1}", new Object[]{
+                name,
+                cause
+            });
+            return false;
+        }
+    }
+
+    @Override
+    public void forEachBank(Consumer<Bank> consumer) {
+        Map<String, List<UUID>> members = Maps.newHashMap();
+        List<Bank> banks = Lists.newArrayList();
+        try (Connection connection = source.getConnection()) {
+            try (PreparedStatement statement = connection.prepareStatement(BANK_MEMBERS_SCAN_STATEMENT); ResultSet set = statement.executeQuery()) {
+                while (set.next()) {
+                    members.computeIfAbsent(set.getString(1), bank -> Lists.newArrayList()).add(UniqueIds.read(set.getBytes(2)));
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement(BANK_SCAN_STATEMENT); ResultSet set = statement.executeQuery()) {
+                while (set.next()) {
+                    String name = set.getString(1);
+                    banks.add(new Bank(name, UniqueIds.read(set.getBytes(2)), members.getOrDefault(name, Collections.emptyList()), set.getLong(3)));
+                }
+            }
+        } catch (SQLException cause) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to read every bank: {0}", new Object[]{
+                cause
+            });
+            return;
+        }
+        banks.forEach(consumer);
+    }
+
+    /**
+     * Runs one {@code UPDATE} per chunk of up to {@value #BULK_CHUNK_SIZE} rows, the chunk being bounded by primary key
+     * so each statement only ever touches a short range of the index. The chunk's rows are read and locked first, in
+     * the same transaction, which says exactly what the update changed without a second read.
+     * <p>
+     * Each chunk holds the flush lock, so a flush can't measure or overwrite a change against a balance the chunk is
+     * moving, and the load lock, so no account in the chunk can be read from the database before the update and put in
+     * the table after it. Resident accounts then have the change folded in once the chunk has committed. Other servers
+     * sharing the table only see the change once they next read the row.
+     */
+    @Override
+    public long applyToAll(BulkOperation operation, ObjLongConsumer<UUID> consumer) {
+        String update = "UPDATE economy SET balance = " + operation.assignment("balance", dialect) + (versioned ? ", version = version + 1" : "") + " WHERE uniqueId > ? AND uniqueId <= ? AND " + operation.condition("balance");
+        List<UUID> uniqueIds = Lists.newArrayListWithCapacity(BULK_CHUNK_SIZE);
+        long[] balances = new long[BULK_CHUNK_SIZE];
+        long[] updated = new long[BULK_CHUNK_SIZE];
+        byte[] last = new byte[UniqueIds.BYTES];
+        long changed = 0L;
+        do {
+            uniqueIds.clear();
+            synchronized (flushLock) {
+                loadLock.writeLock().lock();
+                try {
+                    try (Connection connection = source.getConnection()) {
+                        last = applyChunk(connection, operation, update, last, uniqueIds, balances, updated);
+                    } catch (SQLException cause) {
+                        plugin.getLogger().log(Level.SEVERE, "Failed to apply {0} to every account, {1} were changed before it failed: {2}", new Object[]{
+                            operation,
+                            changed,
+                            cause
+                        });
+                        break;
+                    }
+
+                    for (int i = 0; i < uniqueIds.size(); i++) {
+                        if (updated[i] == balances[i]) {
+                            continue;
+                        }
+
+                        if (!accounts.applyExternal(uniqueIds.get(i), updated[i] - balances[i])) {
+                            consumer.accept(uniqueIds.get(i), updated[i]);
+                        }
+                        changed++;
+                    }
+                } finally {
+                    loadLock.writeLock().unlock();
+                }
+            }
+        } while (uniqueIds.size() == BULK_CHUNK_SIZE);
+        return changed;
+    }
+
+    /**
+     * Read the next chunk after {@code last}, work out what each balance becomes and update the chunk, all in one
+     * transaction.
+     *
+     * @return the last key in the chunk
+     */
+    private byte[] applyChunk(Connection connection, BulkOperation operation, String update, byte[] last, List<UUID> uniqueIds, long[] balances, long[] updated) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            byte[] first = last;
+            try (PreparedStatement statement = connection.prepareStatement(bulkScanStatement)) {
+                statement.setBytes(1, first);
+                statement.setInt(2, BULK_CHUNK_SIZE);
+                try (ResultSet set = statement.executeQuery()) {
+                    while (set.next()) {
+                        last = set.getBytes(1);
+                        balances[uniqueIds.size()] = set.getLong(2);
+                        uniqueIds.add(UniqueIds.read(last));
+                    }
+                }
+            }
+
+            /*
+             * Worked out before anything is written, a balance that would overflow fails the chunk rather than leaving
+             * the table and the cache disagreeing.
+             */
+            for (int i = 0; i < uniqueIds.size(); i++) {
+                try {
+                    updated[i] = operation.apply(balances[i]);
+                } catch (ArithmeticException ex) {
+                    throw new SQLException("The balance of " + uniqueIds.get(i) + " would overflow", ex);
+                }
+            }
+
+            if (uniqueIds.size() > 0) {
+                try (PreparedStatement statement = connection.prepareStatement(update)) {
+                    statement.setBytes(1, first);
+                    statement.setBytes(2, last);
+                    statement.executeUpdate();
+                }
+            }
+            connection.commit();
+            return last;
+        } catch (SQLException ex) {
+            uniqueIds.clear();
+            try {
+                connection.rollback();
+            } catch (SQLException suppressed) {
+                ex.addSuppressed(suppressed);
+            }
+            throw ex;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Waits for any flush in progress, which is measuring changes against the persisted balance this moves. The
+     * account may have been created on another server, so the filter is told about it either way.
+     */
+    @Override
+    public void applyExternal(UUID uniqueId, int currency, long change) {
+        if (filter != null) {
+            filter.add(uniqueId);
+        }
+        synchronized (flushLock) {
+            accounts.applyExternal(uniqueId, currency, change);
+        }
+    }
+
+    @Override
+    public void invalidate(UUID uniqueId) {
+        accounts.evict(uniqueId);
+    }
+
+    @Override
+    public void close() {
+        long deadline = System.nanoTime() + shutdownDeadline;
+        scheduler.shutdown();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5L, TimeUnit.SECONDS)) {
+                plugin.getLogger().log(Level.WARNING, "Gave up waiting for {0} pending I/O tasks", new Object[]{
+                    executor.shutdownNow().size()
+                });
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        saveBefore(deadline);
+        if (snapshot != null) {
+            try {
+                int written = Snapshot.write(snapshot, accounts, currencies);
+                plugin.getLogger().log(Level.INFO, "Wrote {0} accounts to the snapshot", new Object[]{
+                    written
+                });
+            } catch (IOException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to write the snapshot", ex);
+            }
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to close the journal", ex);
+            }
+        }
+        ClassLoader original = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(HikariDataSource.class.getClassLoader());
+            source.close();
+        } finally {
+            Thread.currentThread().setContextClassLoader(original);
+        }
+    }
+
+    /**
+     * Flush every dirty account across several pooled connections at once. The dirty set is split into one partition
+     * per connection and each partition is written through a single statement in a single transaction, so a partition
+     * is either all in the database or none of it is. Anything not committed by {@code deadline} is spilled to the
+     * recovery file instead, which the next start writes back before serving anything.
+     *
+     * @param deadline a value from {@link System#nanoTime()}
+     */
+    private void saveBefore(long deadline) {
+        synchronized (flushLock) {
+            long start = System.nanoTime();
+            long checkpoint = checkpoint();
+            List<EconomyData> pending = Lists.newArrayList();
+            for (EconomyData data = dirty.poll(); data != null; data = dirty.poll()) {
+                pending.add(data);
+            }
+
+            if (pending.isEmpty()) {
+                release(checkpoint);
+                return;
+            }
+
+            int partitions = Math.min(shutdownThreads, (pending.size() + BATCH_SIZE - 1) / BATCH_SIZE);
+            List<List<EconomyData>> slices = Lists.partition(pending, (pending.size() + partitions - 1) / partitions);
+            AtomicIntegerArray states = new AtomicIntegerArray(slices.size());
+            AtomicInteger threadNumber = new AtomicInteger(1);
+            ExecutorService flushers = Executors.newFixedThreadPool(slices.size(), r -> {
+                Thread thread = new Thread(r, String.format("Economy Shutdown Flush Thread #%d", threadNumber.getAndIncrement()));
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            List<Callable<Void>> tasks = Lists.newArrayListWithCapacity(slices.size());
+            for (int i = 0; i < slices.size(); i++) {
+                int partition = i;
+                tasks.add(() -> {
+                    writePartition(slices.get(partition), states, partition, deadline);
+                    return null;
+                });
+            }
+
+            try {
+                flushers.invokeAll(tasks, Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                flushers.shutdownNow();
+
+                /*
+                 * A partition caught committing when the deadline passed is given the chance to finish, in delta mode
+                 * spilling one that did make it would add its changes a second time on the next start.
+                 */
+                flushers.awaitTermination(5L, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                flushers.shutdownNow();
+            }
+
+            int uncertain = 0;
+            int saved = 0;
+            List<EconomyData> leftovers = Lists.newArrayList();
+            for (int i = 0; i < slices.size(); i++) {
+                if (states.compareAndSet(i, RUNNING, ABANDONED) || states.get(i) != COMMITTED) {
+                    uncertain += states.get(i) == COMMITTING ? slices.get(i).size() : 0;
+                    leftovers.addAll(slices.get(i));
+                } else {
+                    saved += slices.get(i).size();
+                }
+            }
+            for (EconomyData data = dirty.poll(); data != null; data = dirty.poll()) {
+                leftovers.add(data);
+            }
+            flushDuration.recordSince(start);
+            flushedRows.add(saved);
+
+            if (leftovers.isEmpty()) {
+                release(checkpoint);
+                return;
+            }
+
+            if (uncertain > 0 && delta) {
+                plugin.getLogger().log(Level.SEVERE, "Gave up waiting to hear whether {0} accounts were saved, spilling them anyway so their changes may be applied twice", new Object[]{
+                    uncertain
+                });
+            }
+            flushFailures.increment();
+            spill(leftovers);
+        }
+    }
+
+    private void writePartition(List<EconomyData> partition, AtomicIntegerArray states, int index, long deadline) {
+        int size = partition.size();
+        long[] versions = new long[size];
+        long[][] balances = new long[size][];
+        try (Connection connection = source.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(delta ? deltaStatement : upsertStatement)) {
+                for (int from = 0; from < size; from += BATCH_SIZE) {
+                    int to = Math.min(size, from + BATCH_SIZE);
+                    statement.setQueryTimeout((int) Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(deadline - System.nanoTime())));
+                    for (int i = from; i < to; i++) {
+                        EconomyData data = partition.get(i);
+                        versions[i] = data.getVersion();
+                        balances[i] = data.getBalances();
+                        UniqueIds.bind(statement, 1, data.getUniqueId(), i - from);
+                        bindBalances(statement, 2, balances[i], delta ? data.getPersistedBalances() : null);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+
+                if (!states.compareAndSet(index, RUNNING, COMMITTING)) {
+                    connection.rollback();
+                    return;
+                }
+                connection.commit();
+                states.set(index, COMMITTED);
+            } catch (SQLException ex) {
+                try {
+                    connection.rollback();
+                } catch (SQLException suppressed) {
+                    ex.addSuppressed(suppressed);
+                }
+                throw ex;
+            }
+        } catch (SQLException cause) {
+            states.compareAndSet(index, RUNNING, ABANDONED);
+            plugin.getLogger().log(Level.SEVERE, "Failed to save a partition of {0} accounts during shutdown: {1}", new Object[]{
+                size,
+                cause
+            });
+            return;
+        }
+
+        for (int i = 0; i < size; i++) {
+            EconomyData data = partition.get(i);
+            data.reconcile(balances[i], balances[i], -1L);
+            rebase(data);
+            if (!data.markClean(versions[i])) {
+                dirty.offer(data);
+            }
+        }
+    }
+
+    /**
+     * Write {@code leftovers} to the recovery file in the same format as the journal, each record carrying the balance
+     * last persisted so that it can be replayed as a change in delta mode.
+     */
+    private void spill(List<EconomyData> leftovers) {
+        try (Journal recovery = new Journal(new File(plugin.getDataFolder(), "recovery"), currencies, 50L, TimeUnit.MILLISECONDS, plugin.getLogger())) {
+            leftovers.forEach(recovery::append);
+            plugin.getLogger().log(Level.WARNING, "Spilled {0} balances that could not be saved in time to the recovery file", new Object[]{
+                leftovers.size()
+            });
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to spill " + leftovers.size() + " balances to the recovery file", ex);
+        }
+    }
+
+    /**
+     * Put the accounts from the last clean shutdown back in the table and check them against the database in the
+     * background. They are served straight away, anything another server or a manual edit changed while this one was
+     * down is folded in once its batch has been checked.
+     */
+    private void warm() {
+        long start = System.nanoTime();
+        List<UUID> warmed;
+        try {
+            warmed = Snapshot.load(snapshot, accounts, currencies);
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.WARNING, "Failed to load the snapshot, the cache will start cold", ex);
+            return;
+        }
+
+        if (warmed.isEmpty()) {
+            return;
+        }
+
+        if (filter != null) {
+            warmed.forEach(filter::add);
+        }
+        plugin.getLogger().log(Level.INFO, "Warmed the cache with {0} accounts in {1}ms", new Object[]{
+            warmed.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        });
+
+        try {
+            executor.execute(() -> validate(warmed));
+        } catch (RejectedExecutionException ex) {
+            warmed.forEach(accounts::evict);
+        }
+    }
+
+    /**
+     * Each batch holds the flush lock and the load lock while it is read and folded in, so a flush or a reload of the
+     * same account can't land in between and have the row's balance counted twice. Anything that can't be checked is
+     * evicted, if it is still clean, so that it is read from the database next time.
+     */
+    private void validate(List<UUID> warmed) {
+        for (int from = 0; from < warmed.size(); from += VALIDATE_BATCH_SIZE) {
+            List<UUID> batch = warmed.subList(from, Math.min(warmed.size(), from + VALIDATE_BATCH_SIZE));
+            synchronized (flushLock) {
+                loadLock.writeLock().lock();
+                try (Connection connection = source.getConnection()) {
+                    Map<UUID, Row> rows = select(connection, batch);
+                    for (UUID uniqueId : batch) {
+                        Row row = rows.get(uniqueId);
+                        if (row == null) {
+                            accounts.evict(uniqueId);
+                        } else {
+                            accounts.reconcile(uniqueId, row.balances, row.version);
+                        }
+                    }
+                } catch (SQLException cause) {
+                    plugin.getLogger().log(Level.WARNING, "Failed to validate the snapshot, evicting what is left of it: {0}", new Object[]{
+                        cause
+                    });
+                    warmed.subList(from, warmed.size()).forEach(accounts::evict);
+                    return;
+                } finally {
+                    loadLock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    private void drainPrefetch() {
+        prefetching.set(false);
+        List<UUID> batch = Lists.newArrayListWithCapacity(prefetchBatchSize);
+        for (UUID uniqueId = prefetch.poll(); uniqueId != null; uniqueId = prefetch.poll()) {
+            batch.add(uniqueId);
+            if (batch.size() == prefetchBatchSize) {
+                submitLoad(batch);
+                batch = Lists.newArrayListWithCapacity(prefetchBatchSize);
+            }
+        }
+
+        if (batch.size() > 0) {
+            submitLoad(batch);
+        }
+    }
+
+    private void submitLoad(List<UUID> batch) {
+        try {
+            executor.execute(() -> load(batch));
+        } catch (RejectedExecutionException ex) {
+            fail(batch, ex);
+        }
+    }
+
+    /**
+     * Fetch every UUID in {@code batch} with a single query and complete the futures registered for them. Accounts
+     * without a row are created with a zero balance.
+     * <p>
+     * Rows are read and put in the table under the load lock, so a bulk operation can never change a row in between
+     * and leave the table holding the balance from before it.
+     */
+    private void load(List<UUID> batch) {
+        long start = System.nanoTime();
+        EconomyData[] loaded = new EconomyData[batch.size()];
+        loadLock.readLock().lock();
+        try {
+            Map<UUID, Row> rows;
+            try (Connection connection = source.getConnection()) {
+                rows = select(connection, batch);
+            } catch (SQLException cause) {
+                StringWriter stringWriter = new StringWriter();
+                PrintWriter writer = new PrintWriter(stringWriter);
+                cause.printStackTrace(writer);
+                plugin.getLogger().log(Level.SEVERE, "Failed to load EconomyData for {0}: {1}", new Object[]{
+                    batch,
+                    stringWriter.toString()
+                });
+                loadFailures.increment();
+                fail(batch, cause);
+                return;
+            }
+            loadLatency.recordSince(start);
+
+            for (int i = 0; i < batch.size(); i++) {
+                UUID uniqueId = batch.get(i);
+                Row row = rows.get(uniqueId);
+                if (filter != null) {
+                    filter.add(uniqueId);
+                }
+                loaded[i] = row == null ? accounts.putIfAbsent(uniqueId, 0L, true) : accounts.putIfAbsent(uniqueId, row.balances, row.version, false);
+            }
+        } finally {
+            loadLock.readLock().unlock();
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            CompletableFuture<EconomyData> future = loading.remove(batch.get(i));
+            if (future != null) {
+                future.complete(loaded[i]);
+            }
+        }
+    }
+
+    /**
+     * Fetch the row for {@code uniqueId} under the load lock, like {@link #load(List)}, but without creating one if
+     * it's missing so that looking up a player who has never had an account leaves nothing behind.
+     *
+     * @return {@code null} if there is no row
+     * @throws IllegalStateException if the row could not be read
+     */
+    private EconomyData loadExisting(UUID uniqueId) {
+        long start = System.nanoTime();
+        loadLock.readLock().lock();
+        try {
+            Row row;
+            try (Connection connection = source.getConnection()) {
+                row = select(connection, Collections.singletonList(uniqueId)).get(uniqueId);
+            } catch (SQLException cause) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to load EconomyData for {0}: {1}", new Object[]{
+                    uniqueId,
+                    cause
+                });
+                loadFailures.increment();
+                throw new IllegalStateException("Could not load the account for " + uniqueId, cause);
+            }
+            loadLatency.recordSince(start);
+            return row == null ? null : accounts.putIfAbsent(uniqueId, row.balances, row.version, false);
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read the rows for every UUID in {@code batch} with as few queries as the dialect allows, UUIDs without a row are
+     * left out.
+     */
+    private Map<UUID, Row> select(Connection connection, List<UUID> batch) throws SQLException {
+        Map<UUID, Row> rows = Maps.newHashMapWithExpectedSize(batch.size());
+        for (List<UUID> keys : Lists.partition(batch, dialect.maxLookupKeys())) {
+            int size = Integer.highestOneBit(keys.size() * 2 - 1);
+            StringBuilder query = new StringBuilder("SELECT uniqueId");
+            for (String column : balanceColumns) {
+                query.append(", ").append(column);
+            }
+            query.append(versioned ? ", version" : "").append(" FROM economy WHERE uniqueId IN (?");
+            for (int i = 1; i < size; i++) {
+                query.append(", ?");
+            }
+            query.append(')');
+
+            /*
+             * The parameter count is rounded up to a power of two, repeating the last UUID, so that the statement
+             * cache only ever has to hold a handful of variants.
+             */
+            try (PreparedStatement statement = connection.prepareStatement(query.toString())) {
+                for (int i = 0; i < size; i++) {
+                    UniqueIds.bind(statement, i + 1, keys.get(Math.min(i, keys.size() - 1)), i);
+                }
+                try (ResultSet set = statement.executeQuery()) {
+                    while (set.next()) {
+                        long[] balances = new long[balanceColumns.size()];
+                        for (int currency = 0; currency < balances.length; currency++) {
+                            balances[currency] = set.getLong(currency + 2);
+                        }
+                        rows.put(UniqueIds.read(set.getBytes(1)), new Row(balances, versioned ? set.getLong(balances.length + 2) : -1L));
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    private void fail(List<UUID> batch, Throwable cause) {
+        for (UUID uniqueId : batch) {
+            CompletableFuture<EconomyData> future = loading.remove(uniqueId);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, executor);
+        } catch (RejectedExecutionException ex) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+            return future;
+        }
+    }
+
+    /**
+     * Write anything left in the journal by a previous run, and anything the last shutdown spilled to the recovery
+     * file, to the database before the cache starts serving reads. An account in both is written once from the
+     * recovery file, which was written after anything in the journal, so a change is never applied from each of them.
+     * Neither is released until those balances are in the database.
+     */
+    private void replay() throws IOException {
+        File directory = new File(plugin.getDataFolder(), "recovery");
+        Journal recovery = directory.isDirectory() ? new Journal(directory, currencies, 50L, TimeUnit.MILLISECONDS, plugin.getLogger()) : null;
+        try {
+            Journal.Replay journalled = journal == null ? null : journal.replay();
+            Journal.Replay recovered = recovery == null ? null : recovery.replay();
+            Map<UUID, Journal.Record> records = Maps.newHashMap();
+            if (journalled != null && journalled.getRecords().size() > 0) {
+                plugin.getLogger().log(Level.INFO, "Replaying {0} balances from the journal", new Object[]{
+                    journalled.getRecords().size()
+                });
+                records.putAll(journalled.getRecords());
+            }
+            if (recovered != null && recovered.getRecords().size() > 0) {
+                plugin.getLogger().log(Level.INFO, "Recovering {0} balances the last shutdown could not save in time", new Object[]{
+                    recovered.getRecords().size()
+                });
+                records.putAll(recovered.getRecords());
+            }
+
+            if (!restore(records)) {
+                throw new IOException("Could not write the journal's balances to the database");
+            }
+            if (journalled != null) {
+                release(journalled.getCheckpoint());
+            }
+            if (recovered != null) {
+                recovery.release(recovered.getCheckpoint());
+            }
+        } finally {
+            if (recovery != null) {
+                recovery.close();
+            }
+        }
+    }
+
+    /**
+     * Put each journalled account in the table and write it to the database. In delta mode a record carries the
+     * balance last persisted and the version of the row it was read at, so it goes through the same conditional and
+     * delta updates as any other flush and only what changed here is added to the row. Otherwise the row is
+     * overwritten.
+     *
+     * @return {@code true} if every record was written
+     */
+    private boolean restore(Map<UUID, Journal.Record> records) {
+        List<EconomyData> balances = Lists.newArrayList();
+        List<EconomyData> deltas = Lists.newArrayList();
+        records.forEach((uniqueId, record) -> {
+            if (delta) {
+                deltas.add(accounts.putIfAbsent(uniqueId, record.getBalances(), record.getPersisted(), record.getPersistedVersion(), false));
+            } else {
+                balances.add(accounts.putIfAbsent(uniqueId, record.getBalances(), -1L, false));
+            }
+        });
+        return saveBatch(balances, false) && saveBatch(deltas, true);
+    }
+
+    /**
+     * Journal the balance a flush has just persisted for {@code data}. Without it the last record for an account could
+     * still carry the balance persisted before the flush, and replaying it would add the flushed change a second time.
+     * A crash after the flush commits but before this record is synced still has that effect, the window is kept to
+     * a single sync by forcing the journal before any segment is released.
+     */
+    private void rebase(EconomyData data) {
+        if (delta && journal != null) {
+            journal.append(data);
+        }
+    }
+
+    /**
+     * @return the journal checkpoint to release once the flush that follows has been acknowledged, or {@code -1}
+     */
+    private long checkpoint() {
+        if (journal == null) {
+            return -1L;
+        }
+
+        try {
+            return journal.checkpoint();
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to checkpoint the journal", ex);
+            return -1L;
+        }
+    }
+
+    private void release(long checkpoint) {
+        if (journal != null && checkpoint >= 0L) {
+            if (delta) {
+                try {
+                    journal.force();
+                } catch (IOException ex) {
+                    plugin.getLogger().log(Level.SEVERE, "Failed to sync the journal, keeping the flushed segments", ex);
+                    return;
+                }
+            }
+            journal.release(checkpoint);
+        }
+    }
+
+    private boolean saveBatch(List<EconomyData> queue) {
+        return saveBatch(queue, delta);
+    }
+
+    /**
+     * Write {@code queue} in chunks, each entry is only marked clean if it did not change whilst its chunk was being
+     * written. Anything that was not written because of a failure goes back on the dirty queue for the next flush.
+     * Flushes are serialised so that the balance last persisted for an account is only ever moved by one of them.
+     *
+     * @param delta whether to add each account's change since it was last persisted instead of overwriting the
+     *              stored balance
+     */
+    private boolean saveBatch(List<EconomyData> queue, boolean delta) {
+        if (queue.size() < 1) {
+            return true;
+        }
+
+        synchronized (flushLock) {
+            int saved = 0;
+            long start = System.nanoTime();
+            try (Connection connection = source.getConnection()) {
+                for (List<EconomyData> chunk : Lists.partition(queue, BATCH_SIZE)) {
+                    if (delta) {
+                        writeDeltas(connection, chunk);
+                    } else {
+                        writeBalances(connection, chunk);
+                    }
+                    saved += chunk.size();
+                }
+                return true;
+            } catch (SQLException cause) {
+                flushFailures.increment();
+                dirty.addAll(queue.subList(saved, queue.size()));
+                plugin.getLogger().log(Level.SEVERE, "Failed to save all EconomyData: {0}", new Object[]{
+                    cause
+                });
+                return false;
+            } finally {
+                flushDuration.recordSince(start);
+                flushedRows.add(saved);
+            }
+        }
+    }
+
+    /**
+     * Overwrite each account's row with its balance. The chunk is one transaction, which the network databases batch
+     * into a single multi-row insert and the embedded ones commit with a single sync.
+     */
+    private void writeBalances(Connection connection, List<EconomyData> chunk) throws SQLException {
+        long[] versions = new long[chunk.size()];
+        long[][] balances = new long[chunk.size()][];
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement statement = connection.prepareStatement(upsertStatement)) {
+            for (int i = 0; i < chunk.size(); i++) {
+                EconomyData data = chunk.get(i);
+                versions[i] = data.getVersion();
+                balances[i] = data.getBalances();
+                UniqueIds.bind(statement, 1, data.getUniqueId(), i);
+                bindBalances(statement, 2, balances[i], null);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            connection.commit();
+        } catch (SQLException ex) {
+            try {
+                connection.rollback();
+            } catch (SQLException suppressed) {
+                ex.addSuppressed(suppressed);
+            }
+            throw ex;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        for (int i = 0; i < chunk.size(); i++) {
+            EconomyData data = chunk.get(i);
+
+            /*
+             * The persisted balance is kept in step in both modes, delta flushes measure from it and snapshot
+             * validation compares against it.
+             */
+            data.reconcile(balances[i], balances[i], -1L);
+            rebase(data);
+            if (!data.markClean(versions[i])) {
+                dirty.offer(data);
+            }
+        }
+    }
+
+    /**
+     * Add each account's change since it was last persisted to its row and work out what the row holds afterwards.
+     * The chunk is one transaction, so if anything fails none of its changes have been applied and the whole chunk can
+     * safely be written again by a later flush.
+     */
+    private void writeDeltas(Connection connection, List<EconomyData> chunk) throws SQLException {
+        int size = chunk.size();
+        long[] versions = new long[size];
+        long[][] balances = new long[size][];
+        long[][] bases = new long[size][];
+        long[][] persisted = new long[size][];
+        long[] persistedVersions = new long[size];
+        boolean[] applied = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            EconomyData data = chunk.get(i);
+            bases[i] = data.getPersistedBalances();
+            persistedVersions[i] = data.getPersistedVersion();
+            versions[i] = data.getVersion();
+            balances[i] = data.getBalances();
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            int remaining = size;
+            if (versioned) {
+                remaining -= writeConditional(connection, chunk, balances, bases, persistedVersions, applied);
+                for (int i = 0; i < size; i++) {
+                    if (applied[i]) {
+                        persisted[i] = balances[i];
+                    }
+                }
+            }
+
+            if (remaining > 0) {
+                List<UUID> conflicted = Lists.newArrayListWithCapacity(remaining);
+                try (PreparedStatement statement = connection.prepareStatement(deltaStatement)) {
+                    for (int i = 0; i < size; i++) {
+                        if (!applied[i]) {
+                            UniqueIds.bind(statement, 1, chunk.get(i).getUniqueId(), conflicted.size());
+                            bindBalances(statement, 2, balances[i], bases[i]);
+                            statement.addBatch();
+                            conflicted.add(chunk.get(i).getUniqueId());
+                        }
+                    }
+                    statement.executeBatch();
+                }
+
+                Map<UUID, Row> rows = select(connection, conflicted);
+                for (int i = 0; i < size; i++) {
+                    if (!applied[i]) {
+                        Row row = rows.get(chunk.get(i).getUniqueId());
+                        if (row == null) {
+                            throw new SQLException("The row for " + chunk.get(i).getUniqueId() + " vanished whilst it was being written");
+                        }
+                        persisted[i] = row.balances;
+                        persistedVersions[i] = row.version;
+                    }
+                }
+            }
+            connection.commit();
+        } catch (SQLException ex) {
+            try {
+                connection.rollback();
+            } catch (SQLException suppressed) {
+                ex.addSuppressed(suppressed);
+            }
+            throw ex;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        for (int i = 0; i < size; i++) {
+            EconomyData data = chunk.get(i);
+            data.reconcile(balances[i], persisted[i], persistedVersions[i]);
+            rebase(data);
+            if (!data.markClean(versions[i])) {
+                dirty.offer(data);
+            }
+        }
+    }
+
+    /**
+     * Bind every currency's balance, or its change since {@code bases} if there are any, starting at parameter {@code
+     * index}.
+     */
+    private static void bindBalances(PreparedStatement statement, int index, long[] balances, long[] bases) throws SQLException {
+        for (int currency = 0; currency < balances.length; currency++) {
+            statement.setLong(index + currency, bases == null ? balances[currency] : balances[currency] - bases[currency]);
+        }
+    }
+
+    /**
+     * @return the balance column of each currency, in order of id
+     */
+    private static List<String> balanceColumns(List<Currency> currencies) {
+        List<String> columns = Lists.newArrayListWithCapacity(currencies.size());
+        for (Currency currency : currencies) {
+            columns.add(currency.isDefault() ? "balance" : "balance_" + currency.getName());
+        }
+        return columns;
+    }
+
+    /**
+     * Apply the changes to every row whose version is known and is still the one last seen, marking them in {@code
+     * applied} and bumping their entry in {@code persistedVersions}.
+     *
+     * @return the number of changes applied
+     */
+    private int writeConditional(Connection connection, List<EconomyData> chunk, long[][] balances, long[][] bases, long[] persistedVersions, boolean[] applied) throws SQLException {
+        int[] indices = new int[chunk.size()];
+        int count = 0;
+        int columns = balanceColumns.size();
+        try (PreparedStatement statement = connection.prepareStatement(conditionalDeltaStatement)) {
+            for (int i = 0; i < chunk.size(); i++) {
+                if (persistedVersions[i] >= 0L) {
+                    bindBalances(statement, 1, balances[i], bases[i]);
+                    UniqueIds.bind(statement, columns + 1, chunk.get(i).getUniqueId(), count);
+                    statement.setLong(columns + 2, persistedVersions[i]);
+                    statement.addBatch();
+                    indices[count++] = i;
+                }
+            }
+
+            if (count == 0) {
+                return 0;
+            }
+
+            /*
+             * Anything but an exact count leaves no way to tell whether a change was applied, and guessing wrong either
+             * loses it or applies it twice. Rolling back and trying again on the next flush is always safe.
+             */
+            int[] results = statement.executeBatch();
+            int matched = 0;
+            for (int j = 0; j < count; j++) {
+                if (results[j] == 1) {
+                    applied[indices[j]] = true;
+                    persistedVersions[indices[j]]++;
+                    matched++;
+                } else if (results[j] != 0) {
+                    throw new SQLException("The driver did not report whether the change to " + chunk.get(indices[j]).getUniqueId() + " was applied");
+                }
+            }
+            return matched;
+        }
+    }
+
+    private static final class Row {
+        private final long[] balances;
+        private final long version;
+
+        private Row(long[] balances, long version) {
+            this.balances = balances;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package ninja.smirking.economy.storage;
+
+import ninja.smirking.economy.Banks;
+import ninja.smirking.economy.Money;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the economy, economy_names, economy_banks and economy_bank_members tables and brings tables created by
+ * older versions up to date. Data is copied across in small chunks so that no single statement holds locks on a large
+ * part of the table. Only MySQL ever held the older layouts, so the migrations off them are written for MySQL alone.
+ *
+ * @author Connor Spencer Harries
+ */
+final class SqlSchema {
+    private static final int CHUNK_SIZE = 10000;
+
+    private SqlSchema() {
+
+    }
+
+    /**
+     * @param versioned whether rows should carry a version number for optimistic delta writes
+     * @param columns   the balance column of every currency other than the default, each is added if it is missing
+     */
+    static void migrate(Connection connection, SqlDialect dialect, boolean versioned, List<String> columns, Logger logger) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS economy " + definition(dialect));
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS economy_names (" +
+                "name VARCHAR(16) PRIMARY KEY NOT NULL," +
+                "uniqueId " + dialect.binaryType() + " NOT NULL" +
+                ")" + dialect.tableOptions());
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS economy_banks (" +
+                "name VARCHAR(" + Banks.MAXIMUM_NAME_LENGTH + ") PRIMARY KEY NOT NULL," +
+                "owner " + dialect.binaryType() + " NOT NULL," +
+                "balance BIGINT NOT NULL DEFAULT 0" +
+                ")" + dialect.tableOptions());
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS economy_bank_members (" +
+                "bank VARCHAR(" + Banks.MAXIMUM_NAME_LENGTH + ") NOT NULL," +
+                "uniqueId " + dialect.binaryType() + " NOT NULL," +
+                "PRIMARY KEY (bank, uniqueId)" +
+                ")" + dialect.tableOptions());
+        }
+
+        if ("DOUBLE".equalsIgnoreCase(columnType(connection, "economy", "balance"))) {
+            migrateBalanceToMinorUnits(connection, logger);
+        }
+
+        if ("CHAR".equalsIgnoreCase(columnType(connection, "economy", "uniqueId"))) {
+            migrateToBinaryKeys(connection, dialect, logger);
+        }
+
+        if (versioned && columnType(connection, "economy", "version") == null) {
+            logger.log(Level.INFO, "Adding economy.version for optimistic delta writes");
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("ALTER TABLE economy ADD COLUMN version BIGINT NOT NULL DEFAULT 0");
+            }
+        }
+
+        for (String column : columns) {
+            if (columnType(connection, "economy", column) == null) {
+                logger.log(Level.INFO, "Adding economy.{0} for a new currency", new Object[]{
+                    column
+                });
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("ALTER TABLE economy ADD COLUMN " + column + " BIGINT NOT NULL DEFAULT 0");
+                }
+            }
+        }
+    }
+
+    /**
+     * Balances used to be stored as {@code DOUBLE}, they are now a {@code BIGINT} number of minor units. The new column
+     * is back-filled by primary key range and only swapped in once every row has been copied, so an interrupted
+     * migration simply picks up where it left off on the next start.
+     */
+    private static void migrateBalanceToMinorUnits(Connection connection, Logger logger) throws SQLException {
+        logger.log(Level.INFO, "Migrating economy.balance from DOUBLE to BIGINT minor units");
+        try (Statement statement = connection.createStatement()) {
+            if (columnType(connection, "economy", "balance_minor") == null) {
+                statement.executeUpdate("ALTER TABLE economy ADD COLUMN balance_minor BIGINT NULL");
+            }
+
+            long maximum = maximumId(statement);
+            try (PreparedStatement update = connection.prepareStatement("UPDATE economy SET balance_minor = ROUND(balance * " + Money.SCALE + ") WHERE id > ? AND id <= ? AND balance_minor IS NULL")) {
+                for (long lower = 0L; lower < maximum; lower += CHUNK_SIZE) {
+                    update.setLong(1, lower);
+                    update.setLong(2, lower + CHUNK_SIZE);
+                    update.executeUpdate();
+                }
+            }
+
+            statement.executeUpdate("ALTER TABLE economy DROP COLUMN balance, CHANGE COLUMN balance_minor balance BIGINT NOT NULL DEFAULT 0");
+        }
+        logger.log(Level.INFO, "Finished migrating economy.balance");
+    }
+
+    /**
+     * The original table keyed on a {@code CHAR(36)} next to a surrogate {@code INT} id. Rows are copied into a table
+     * keyed on {@code BINARY(16)} by id range, the two tables are then swapped in a single atomic rename and the old
+     * one is left behind as {@code economy_legacy} for the server owner to drop. Copying is an upsert so an
+     * interrupted migration simply starts again on the next start.
+     */
+    private static void migrateToBinaryKeys(Connection connection, SqlDialect dialect, Logger logger) throws SQLException {
+        logger.log(Level.INFO, "Migrating economy to BINARY(16) keys");
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS economy_binary " + definition(dialect));
+
+            long maximum = maximumId(statement);
+            try (PreparedStatement copy = connection.prepareStatement("INSERT INTO economy_binary (uniqueId, balance) SELECT UNHEX(REPLACE(uniqueId, '-', '')), balance FROM economy WHERE id > ? AND id <= ? ON DUPLICATE KEY UPDATE balance = VALUES(balance)")) {
+                for (long lower = 0L; lower < maximum; lower += CHUNK_SIZE) {
+                    copy.setLong(1, lower);
+                    copy.setLong(2, lower + CHUNK_SIZE);
+                    copy.executeUpdate();
+                }
+            }
+
+            statement.executeUpdate("RENAME TABLE economy TO economy_legacy, economy_binary TO economy");
+        }
+        logger.log(Level.INFO, "Finished migrating economy, the old table has been kept as economy_legacy");
+    }
+
+    private static String definition(SqlDialect dialect) {
+        return "(" +
+            "uniqueId " + dialect.binaryType() + " PRIMARY KEY NOT NULL," +
+            "balance BIGINT NOT NULL DEFAULT 0" +
+            ")" + dialect.tableOptions();
+    }
+
+    private static long maximumId(Statement statement) throws SQLException {
+        try (ResultSet set = statement.executeQuery("SELECT COALESCE(MAX(id), 0) FROM economy")) {
+            return set.next() ? set.getLong(1) : 0L;
+        }
+    }
+
+    /**
+     * Identifiers are looked up in whatever case the database folded them to when the table was created.
+     */
+    private static String columnType(Connection connection, String table, String column) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        if (metaData.storesUpperCaseIdentifiers()) {
+            table = table.toUpperCase(Locale.ROOT);
+            column = column.toUpperCase(Locale.ROOT);
+        } else if (metaData.storesLowerCaseIdentifiers()) {
+            table = table.toLowerCase(Locale.ROOT);
+            column = column.toLowerCase(Locale.ROOT);
+        }
+
+        try (ResultSet set = metaData.getColumns(connection.getCatalog(), null, table, column)) {
+            return set.next() ? set.getString("TYPE_NAME") : null;
+        }
+    }
+}
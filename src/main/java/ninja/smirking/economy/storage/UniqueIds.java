@@ -0,0 +1,65 @@
+package ninja.smirking.economy.storage;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * Converts between {@link UUID} and the 16 byte big-endian form stored in {@code BINARY(16)} columns.
+ * <p>
+ * Drivers are allowed to hold on to a bound array until the statement (or batch) is executed, so each thread keeps
+ * one buffer per batch row and reuses them across flushes instead of building a string or array for every bind.
+ *
+ * @author Connor Spencer Harries
+ */
+final class UniqueIds {
+    static final int BYTES = 16;
+
+    private static final ThreadLocal<byte[][]> BUFFERS = ThreadLocal.withInitial(() -> new byte[1][BYTES]);
+
+    private UniqueIds() {
+
+    }
+
+    /**
+     * Bind {@code uniqueId} to {@code index} using the calling thread's buffer for batch row {@code row}.
+     */
+    static void bind(PreparedStatement statement, int index, UUID uniqueId, int row) throws SQLException {
+        statement.setBytes(index, write(uniqueId, buffer(row)));
+    }
+
+    static byte[] write(UUID uniqueId, byte[] out) {
+        long most = uniqueId.getMostSignificantBits();
+        long least = uniqueId.getLeastSignificantBits();
+        for (int i = 7; i >= 0; i--) {
+            out[i] = (byte) most;
+            out[i + 8] = (byte) least;
+            most >>>= 8;
+            least >>>= 8;
+        }
+        return out;
+    }
+
+    static UUID read(byte[] in) {
+        long most = 0L;
+        long least = 0L;
+        for (int i = 0; i < 8; i++) {
+            most = (most << 8) | (in[i] & 0xFF);
+            least = (least << 8) | (in[i + 8] & 0xFF);
+        }
+        return new UUID(most, least);
+    }
+
+    private static byte[] buffer(int row) {
+        byte[][] buffers = BUFFERS.get();
+        if (row >= buffers.length) {
+            byte[][] larger = new byte[Math.max(row + 1, buffers.length * 2)][];
+            System.arraycopy(buffers, 0, larger, 0, buffers.length);
+            for (int i = buffers.length; i < larger.length; i++) {
+                larger[i] = new byte[BYTES];
+            }
+            BUFFERS.set(buffers = larger);
+        }
+        return buffers[row];
+    }
+}
@@ -1,33 +1,54 @@
 package ninja.smirking.economy.vault;
 
+import ninja.smirking.economy.Bank;
+import ninja.smirking.economy.Banks;
 import ninja.smirking.economy.EconomyData;
 import ninja.smirking.economy.EconomyPlugin;
+import ninja.smirking.economy.Money;
+import ninja.smirking.economy.metrics.Metrics;
+import ninja.smirking.economy.storage.Ledger;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Doubles;
 
-import java.text.DecimalFormat;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
 
 import net.milkbowl.vault.economy.Economy;
 import net.milkbowl.vault.economy.EconomyResponse;
 import org.bukkit.OfflinePlayer;
-import org.bukkit.entity.Player;
 
 /**
  * @author Connor Spencer Harries
  */
 public class EconomyImpl implements Economy {
-    private static final DecimalFormat FORMATTER = new DecimalFormat("#.00");
-
-    static {
-        FORMATTER.setMinimumFractionDigits(2);
-        FORMATTER.setMinimumIntegerDigits(2);
-    }
-
+    private final LongAdder createPlayerAccountCalls;
+    private final LongAdder bankWithdrawCalls;
+    private final LongAdder bankDepositCalls;
+    private final LongAdder withdrawPlayerCalls;
+    private final LongAdder depositPlayerCalls;
+    private final LongAdder hasAccountCalls;
+    private final LongAdder getBalanceCalls;
+    private final LongAdder formatCalls;
     private final EconomyPlugin plugin;
+    private final LongAdder hasCalls;
 
     public EconomyImpl(EconomyPlugin plugin) {
         this.plugin = plugin;
+
+        /*
+         * Every overload ends up in a private UUID variant, so that is where calls are counted.
+         */
+        Metrics metrics = plugin.getMetrics();
+        this.createPlayerAccountCalls = metrics.counter("vault.createPlayerAccount");
+        this.withdrawPlayerCalls = metrics.counter("vault.withdrawPlayer");
+        this.depositPlayerCalls = metrics.counter("vault.depositPlayer");
+        this.bankWithdrawCalls = metrics.counter("vault.bankWithdraw");
+        this.bankDepositCalls = metrics.counter("vault.bankDeposit");
+        this.hasAccountCalls = metrics.counter("vault.hasAccount");
+        this.getBalanceCalls = metrics.counter("vault.getBalance");
+        this.formatCalls = metrics.counter("vault.format");
+        this.hasCalls = metrics.counter("vault.has");
     }
 
     @Override
@@ -42,38 +63,42 @@ public class EconomyImpl implements Economy {
 
     @Override
     public boolean hasBankSupport() {
-        return false;
+        return true;
     }
 
     @Override
     public int fractionalDigits() {
-        return FORMATTER.getMinimumFractionDigits();
+        return Money.FRACTIONAL_DIGITS;
     }
 
     @Override
     public String format(double v) {
-        return FORMATTER.format(v);
+        formatCalls.increment();
+        return Money.format(Money.toMinor(v));
     }
 
+    /**
+     * Vault only knows about one currency, every balance it sees is in the default one.
+     */
     @Override
     public String currencyNamePlural() {
-        return "dollars";
+        return plugin.getCurrencies().getDefault().getPlural();
     }
 
     @Override
     public String currencyNameSingular() {
-        return "dollar";
+        return plugin.getCurrencies().getDefault().getSingular();
     }
 
     @Override
     public boolean hasAccount(String s) {
-        Player player = plugin.getServer().getPlayerExact(s);
-        return player != null && hasAccount(player);
+        UUID uniqueId = plugin.getNames().get(s);
+        return uniqueId != null && hasAccount(uniqueId);
     }
 
     @Override
     public boolean hasAccount(OfflinePlayer offlinePlayer) {
-        return plugin.getDataManager().get(offlinePlayer.getUniqueId()) != null;
+        return hasAccount(offlinePlayer.getUniqueId());
     }
 
     @Override
@@ -88,16 +113,16 @@ public class EconomyImpl implements Economy {
 
     @Override
     public double getBalance(String s) {
-        Player player = plugin.getServer().getPlayerExact(s);
-        if (player == null) {
+        UUID uniqueId = plugin.getNames().get(s);
+        if (uniqueId == null) {
             return 0.0D;
         }
-        return getBalance(player);
+        return getBalance(uniqueId);
     }
 
     @Override
     public double getBalance(OfflinePlayer offlinePlayer) {
-        return plugin.getDataManager().get(offlinePlayer.getUniqueId()).getBalance();
+        return getBalance(offlinePlayer.getUniqueId());
     }
 
     @Override
@@ -112,13 +137,13 @@ public class EconomyImpl implements Economy {
 
     @Override
     public boolean has(String s, double v) {
-        Player player = plugin.getServer().getPlayerExact(s);
-        return player != null && has(player, v);
+        UUID uniqueId = plugin.getNames().get(s);
+        return uniqueId != null && has(uniqueId, v);
     }
 
     @Override
     public boolean has(OfflinePlayer offlinePlayer, double v) {
-        return Double.compare(plugin.getDataManager().get(offlinePlayer.getUniqueId()).getBalance(), v) >= 0;
+        return has(offlinePlayer.getUniqueId(), v);
     }
 
     @Override
@@ -133,21 +158,16 @@ public class EconomyImpl implements Economy {
 
     @Override
     public EconomyResponse withdrawPlayer(String s, double v) {
-        Player player = plugin.getServer().getPlayerExact(s);
-        if (player == null) {
-            return new EconomyResponse(0.0D, 0.0D, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "player is offline");
+        UUID uniqueId = plugin.getNames().get(s);
+        if (uniqueId == null) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "player has never logged in");
         }
-        return withdrawPlayer(player, v);
+        return withdrawPlayer(uniqueId, v);
     }
 
     @Override
     public EconomyResponse withdrawPlayer(OfflinePlayer offlinePlayer, double v) {
-        EconomyData data = plugin.getDataManager().get(offlinePlayer.getUniqueId());
-        if (has(offlinePlayer, v)) {
-            data.setBalance(data.getBalance() - v);
-            return new EconomyResponse(v, data.getBalance(), EconomyResponse.ResponseType.SUCCESS, "");
-        }
-        return new EconomyResponse(v, data.getBalance(), EconomyResponse.ResponseType.FAILURE, "player does not have enough");
+        return withdrawPlayer(offlinePlayer.getUniqueId(), v);
     }
 
     @Override
@@ -162,18 +182,16 @@ public class EconomyImpl implements Economy {
 
     @Override
     public EconomyResponse depositPlayer(String s, double v) {
-        Player player = plugin.getServer().getPlayerExact(s);
-        if (player == null) {
-            return new EconomyResponse(0.0D, 0.0D, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "player is offline");
+        UUID uniqueId = plugin.getNames().get(s);
+        if (uniqueId == null) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "player has never logged in");
         }
-        return depositPlayer(player, v);
+        return depositPlayer(uniqueId, v);
     }
 
     @Override
     public EconomyResponse depositPlayer(OfflinePlayer offlinePlayer, double v) {
-        EconomyData data = plugin.getDataManager().get(offlinePlayer.getUniqueId());
-        data.setBalance(data.getBalance() + v);
-        return new EconomyResponse(v, data.getBalance(), EconomyResponse.ResponseType.SUCCESS, "");
+        return depositPlayer(offlinePlayer.getUniqueId(), v);
     }
 
     @Override
@@ -188,76 +206,133 @@ public class EconomyImpl implements Economy {
 
     @Override
     public EconomyResponse createBank(String s, String s1) {
-        return new EconomyResponse(0, 0, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "banks are not supported");
+        UUID owner = plugin.getNames().get(s1);
+        if (owner == null) {
+            return new EconomyResponse(0.0D, 0.0D, EconomyResponse.ResponseType.FAILURE, "player has never logged in");
+        }
+        return createBank(s, owner);
     }
 
     @Override
     public EconomyResponse createBank(String s, OfflinePlayer offlinePlayer) {
-        return new EconomyResponse(0, 0, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "banks are not supported");
+        return createBank(s, offlinePlayer.getUniqueId());
     }
 
     @Override
     public EconomyResponse deleteBank(String s) {
-        return new EconomyResponse(0, 0, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "banks are not supported");
+        Bank bank = plugin.getBanks().delete(s);
+        if (bank == null) {
+            return new EconomyResponse(0.0D, 0.0D, EconomyResponse.ResponseType.FAILURE, "bank does not exist");
+        }
+        return new EconomyResponse(0.0D, Money.toMajor(bank.getBalance()), EconomyResponse.ResponseType.SUCCESS, "");
     }
 
     @Override
     public EconomyResponse bankBalance(String s) {
-        return new EconomyResponse(0, 0, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "banks are not supported");
+        Bank bank = plugin.getBanks().get(s);
+        if (bank == null) {
+            return new EconomyResponse(0.0D, 0.0D, EconomyResponse.ResponseType.FAILURE, "bank does not exist");
+        }
+        return new EconomyResponse(0.0D, Money.toMajor(bank.getBalance()), EconomyResponse.ResponseType.SUCCESS, "");
     }
 
     @Override
     public EconomyResponse bankHas(String s, double v) {
-        return new EconomyResponse(0, 0, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "banks are not supported");
+        if (!Doubles.isFinite(v)) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "amount isn't a number");
+        }
+        Bank bank = plugin.getBanks().get(s);
+        if (bank == null) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "bank does not exist");
+        }
+        long balance = bank.getBalance();
+        if (balance < Money.toMinor(v)) {
+            return new EconomyResponse(v, Money.toMajor(balance), EconomyResponse.ResponseType.FAILURE, "bank does not have enough");
+        }
+        return new EconomyResponse(v, Money.toMajor(balance), EconomyResponse.ResponseType.SUCCESS, "");
     }
 
     @Override
     public EconomyResponse bankWithdraw(String s, double v) {
-        return new EconomyResponse(0, 0, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "banks are not supported");
+        bankWithdrawCalls.increment();
+        if (!Doubles.isFinite(v)) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "cannot withdraw an amount that isn't a number");
+        }
+        if (v < 0.0D) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "cannot withdraw a negative amount");
+        }
+        Bank bank = plugin.getBanks().get(s);
+        if (bank == null) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "bank does not exist");
+        }
+        long amount = Money.toMinor(v);
+        if (bank.tryWithdraw(amount)) {
+            record(bank.getUniqueId(), Ledger.SERVER, amount);
+            return new EconomyResponse(v, Money.toMajor(bank.getBalance()), EconomyResponse.ResponseType.SUCCESS, "");
+        }
+        return new EconomyResponse(v, Money.toMajor(bank.getBalance()), EconomyResponse.ResponseType.FAILURE, "bank does not have enough");
     }
 
     @Override
     public EconomyResponse bankDeposit(String s, double v) {
-        return new EconomyResponse(0, 0, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "banks are not supported");
+        bankDepositCalls.increment();
+        if (!Doubles.isFinite(v)) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "cannot deposit an amount that isn't a number");
+        }
+        if (v < 0.0D) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "cannot deposit a negative amount");
+        }
+        Bank bank = plugin.getBanks().get(s);
+        if (bank == null) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "bank does not exist");
+        }
+        long amount = Money.toMinor(v);
+        try {
+            bank.deposit(amount);
+        } catch (ArithmeticException ex) {
+            return new EconomyResponse(v, Money.toMajor(bank.getBalance()), EconomyResponse.ResponseType.FAILURE, "bank cannot hold that much");
+        }
+        record(Ledger.SERVER, bank.getUniqueId(), amount);
+        return new EconomyResponse(v, Money.toMajor(bank.getBalance()), EconomyResponse.ResponseType.SUCCESS, "");
     }
 
     @Override
     public EconomyResponse isBankOwner(String s, String s1) {
-        return new EconomyResponse(0, 0, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "banks are not supported");
+        return isBankOwner(s, plugin.getNames().get(s1));
     }
 
     @Override
     public EconomyResponse isBankOwner(String s, OfflinePlayer offlinePlayer) {
-        return new EconomyResponse(0, 0, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "banks are not supported");
+        return isBankOwner(s, offlinePlayer.getUniqueId());
     }
 
     @Override
     public EconomyResponse isBankMember(String s, String s1) {
-        return new EconomyResponse(0, 0, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "banks are not supported");
+        return isBankMember(s, plugin.getNames().get(s1));
     }
 
     @Override
     public EconomyResponse isBankMember(String s, OfflinePlayer offlinePlayer) {
-        return new EconomyResponse(0, 0, EconomyResponse.ResponseType.NOT_IMPLEMENTED, "banks are not supported");
+        return isBankMember(s, offlinePlayer.getUniqueId());
     }
 
     @Override
     public List<String> getBanks() {
-        return ImmutableList.of();
+        return plugin.getBanks().getNames();
     }
 
     @Override
     public boolean createPlayerAccount(String s) {
-        Player player = plugin.getServer().getPlayerExact(s);
-        if (player != null) {
-            return createPlayerAccount(player);
+        UUID uniqueId = plugin.getNames().get(s);
+        if (uniqueId != null) {
+            return createPlayerAccount(uniqueId);
         }
         return true;
     }
 
     @Override
     public boolean createPlayerAccount(OfflinePlayer offlinePlayer) {
-        return plugin.getDataManager().get(offlinePlayer.getUniqueId()) != null;
+        return createPlayerAccount(offlinePlayer.getUniqueId());
     }
 
     @Override
@@ -269,4 +344,131 @@ public class EconomyImpl implements Economy {
     public boolean createPlayerAccount(OfflinePlayer offlinePlayer, String s) {
         return createPlayerAccount(offlinePlayer);
     }
+
+    /*
+     * Only deposits and createPlayerAccount may create an account, everything else checks that one exists first so
+     * that probing for players who have never played doesn't leave empty accounts behind.
+     */
+    private boolean hasAccount(UUID uniqueId) {
+        hasAccountCalls.increment();
+        return plugin.getDataManager().exists(uniqueId);
+    }
+
+    private double getBalance(UUID uniqueId) {
+        getBalanceCalls.increment();
+        EconomyData data = getExisting(uniqueId);
+        return data == null ? 0.0D : Money.toMajor(data.getBalance());
+    }
+
+    private boolean has(UUID uniqueId, double v) {
+        hasCalls.increment();
+        if (!Doubles.isFinite(v)) {
+            return false;
+        }
+        EconomyData data = getExisting(uniqueId);
+        return data != null && data.getBalance() >= Money.toMinor(v);
+    }
+
+    /**
+     * Vault's getBalance and has can't report a failure, an account that couldn't be loaded reads as empty.
+     */
+    private EconomyData getExisting(UUID uniqueId) {
+        try {
+            return plugin.getDataManager().getExisting(uniqueId);
+        } catch (IllegalStateException ex) {
+            return null;
+        }
+    }
+
+    private EconomyResponse withdrawPlayer(UUID uniqueId, double v) {
+        withdrawPlayerCalls.increment();
+        if (!Doubles.isFinite(v)) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "cannot withdraw an amount that isn't a number");
+        }
+        if (v < 0.0D) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "cannot withdraw a negative amount");
+        }
+        EconomyData data;
+        try {
+            data = plugin.getDataManager().getExisting(uniqueId);
+        } catch (IllegalStateException ex) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "account is not loaded");
+        }
+        if (data == null) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "player does not have an account");
+        }
+        long amount = Money.toMinor(v);
+        if (data.tryWithdraw(amount)) {
+            record(data.getUniqueId(), Ledger.SERVER, amount);
+            return new EconomyResponse(v, Money.toMajor(data.getBalance()), EconomyResponse.ResponseType.SUCCESS, "");
+        }
+        return new EconomyResponse(v, Money.toMajor(data.getBalance()), EconomyResponse.ResponseType.FAILURE, "player does not have enough");
+    }
+
+    private EconomyResponse depositPlayer(UUID uniqueId, double v) {
+        depositPlayerCalls.increment();
+        if (!Doubles.isFinite(v)) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "cannot deposit an amount that isn't a number");
+        }
+        if (v < 0.0D) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "cannot deposit a negative amount");
+        }
+        EconomyData data = plugin.getDataManager().get(uniqueId);
+        if (data == null) {
+            return new EconomyResponse(v, 0.0D, EconomyResponse.ResponseType.FAILURE, "account is not loaded");
+        }
+        long amount = Money.toMinor(v);
+        long balance;
+        try {
+            balance = data.deposit(amount);
+        } catch (ArithmeticException ex) {
+            return new EconomyResponse(v, Money.toMajor(data.getBalance()), EconomyResponse.ResponseType.FAILURE, "player cannot hold that much");
+        }
+        record(Ledger.SERVER, data.getUniqueId(), amount);
+        return new EconomyResponse(v, Money.toMajor(balance), EconomyResponse.ResponseType.SUCCESS, "");
+    }
+
+    private boolean createPlayerAccount(UUID uniqueId) {
+        createPlayerAccountCalls.increment();
+        return plugin.getDataManager().get(uniqueId) != null;
+    }
+
+    private EconomyResponse createBank(String name, UUID owner) {
+        if (name.length() > Banks.MAXIMUM_NAME_LENGTH) {
+            return new EconomyResponse(0.0D, 0.0D, EconomyResponse.ResponseType.FAILURE, "bank name is too long");
+        }
+        if (plugin.getBanks().create(name, owner) == null) {
+            return new EconomyResponse(0.0D, 0.0D, EconomyResponse.ResponseType.FAILURE, "bank already exists");
+        }
+        return new EconomyResponse(0.0D, 0.0D, EconomyResponse.ResponseType.SUCCESS, "");
+    }
+
+    private EconomyResponse isBankOwner(String name, UUID uniqueId) {
+        Bank bank = plugin.getBanks().get(name);
+        if (bank == null) {
+            return new EconomyResponse(0.0D, 0.0D, EconomyResponse.ResponseType.FAILURE, "bank does not exist");
+        }
+        if (uniqueId == null || !bank.isOwner(uniqueId)) {
+            return new EconomyResponse(0.0D, Money.toMajor(bank.getBalance()), EconomyResponse.ResponseType.FAILURE, "player does not own the bank");
+        }
+        return new EconomyResponse(0.0D, Money.toMajor(bank.getBalance()), EconomyResponse.ResponseType.SUCCESS, "");
+    }
+
+    private EconomyResponse isBankMember(String name, UUID uniqueId) {
+        Bank bank = plugin.getBanks().get(name);
+        if (bank == null) {
+            return new EconomyResponse(0.0D, 0.0D, EconomyResponse.ResponseType.FAILURE, "bank does not exist");
+        }
+        if (uniqueId == null || !bank.isMember(uniqueId)) {
+            return new EconomyResponse(0.0D, Money.toMajor(bank.getBalance()), EconomyResponse.ResponseType.FAILURE, "player is not a member of the bank");
+        }
+        return new EconomyResponse(0.0D, Money.toMajor(bank.getBalance()), EconomyResponse.ResponseType.SUCCESS, "");
+    }
+
+    private void record(UUID payer, UUID payee, long amount) {
+        Ledger ledger = plugin.getLedger();
+        if (ledger != null) {
+            ledger.record(payer, payee, amount);
+        }
+    }
 }
@@ -0,0 +1,200 @@
+package ninja.smirking.economy;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that views survive their account being evicted and reloaded, that a freed slot handed to another account is
+ * never read or written through an old view, and that a change in flight is never lost to an eviction. The table's
+ * loader reads back whatever was last "saved" to a map standing in for storage.
+ *
+ * @author Connor Spencer Harries
+ */
+public class AccountTableTest {
+    private final Map<UUID, Long> stored = Maps.newConcurrentMap();
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AccountTable table = new AccountTable(null, this::load);
+
+    @Test
+    public void evictsOnlyCleanAccounts() {
+        UUID uniqueId = UUID.randomUUID();
+        EconomyData data = table.putIfAbsent(uniqueId, 100L, false);
+        data.deposit(50L);
+        Assert.assertFalse(table.evict(uniqueId));
+
+        save(data);
+        Assert.assertTrue(table.evict(uniqueId));
+        Assert.assertFalse(table.contains(uniqueId));
+    }
+
+    @Test
+    public void rebindsAfterEvictionAndReload() {
+        UUID uniqueId = UUID.randomUUID();
+        table.putIfAbsent(uniqueId, 100L, 7L, false);
+        EconomyData[] views = new EconomyData[6];
+        for (int i = 0; i < views.length; i++) {
+            views[i] = table.get(uniqueId);
+        }
+        Assert.assertTrue(table.evict(uniqueId));
+        for (int i = 0; i < 256; i++) {
+            table.putIfAbsent(UUID.randomUUID(), 0L, false);
+        }
+
+        /*
+         * Reloaded into another slot and changed since, every accessor should follow it there rather than read
+         * whichever account took the old slot. Each gets a view of its own so none of them is re-bound by another.
+         */
+        EconomyData reloaded = table.putIfAbsent(uniqueId, new long[]{200L}, 9L, false);
+        reloaded.setBalance(250L);
+        Assert.assertEquals(250L, views[0].getBalance());
+        Assert.assertEquals(200L, views[1].getPersistedBalance());
+        Assert.assertArrayEquals(new long[]{200L}, views[2].getPersistedBalances());
+        Assert.assertEquals(9L, views[3].getPersistedVersion());
+        Assert.assertTrue(views[4].isDirty());
+        Assert.assertTrue(views[5].markClean(reloaded.getVersion()));
+        Assert.assertFalse(reloaded.isDirty());
+        Assert.assertEquals(0, loads.get());
+    }
+
+    @Test
+    public void reloadsThroughTheLoaderOnceEvicted() {
+        UUID uniqueId = UUID.randomUUID();
+        EconomyData data = table.putIfAbsent(uniqueId, 100L, false);
+        data.deposit(25L);
+        save(data);
+        Assert.assertTrue(table.evict(uniqueId));
+
+        Assert.assertEquals(175L, data.deposit(50L));
+        Assert.assertEquals(1, loads.get());
+        Assert.assertTrue(table.contains(uniqueId));
+        Assert.assertEquals(175L, table.get(uniqueId).getBalance());
+    }
+
+    @Test
+    public void oldViewNeverTouchesAReusedSlot() {
+        UUID uniqueId = UUID.randomUUID();
+        EconomyData data = table.putIfAbsent(uniqueId, 42L, false);
+        save(data);
+        Assert.assertTrue(table.evict(uniqueId));
+
+        /*
+         * The freed slot goes to the next account inserted into its segment, with sixteen segments one of these is
+         * all but certain to land on it.
+         */
+        EconomyData[] others = new EconomyData[256];
+        for (int i = 0; i < others.length; i++) {
+            others[i] = table.putIfAbsent(UUID.randomUUID(), 1000L + i, true);
+        }
+
+        Assert.assertEquals(42L, data.getBalance());
+        Assert.assertFalse(data.isDirty());
+        data.deposit(8L);
+        Assert.assertEquals(50L, table.get(uniqueId).getBalance());
+        for (int i = 0; i < others.length; i++) {
+            Assert.assertEquals(1000L + i, others[i].getBalance());
+            Assert.assertTrue(others[i].isDirty());
+        }
+    }
+
+    @Test
+    public void staleMarkCleanLeavesTheSlotsNewOwnerDirty() {
+        UUID uniqueId = UUID.randomUUID();
+        EconomyData data = table.putIfAbsent(uniqueId, 42L, false);
+        long version = data.getVersion();
+        save(data);
+        Assert.assertTrue(table.evict(uniqueId));
+
+        EconomyData[] others = new EconomyData[256];
+        for (int i = 0; i < others.length; i++) {
+            others[i] = table.putIfAbsent(UUID.randomUUID(), 0L, true);
+        }
+
+        Assert.assertTrue(data.markClean(version));
+        Assert.assertFalse(table.get(uniqueId).isDirty());
+        for (EconomyData other : others) {
+            Assert.assertTrue(other.isDirty());
+        }
+    }
+
+    @Test
+    public void evictionRacingDepositsLosesNothing() throws Exception {
+        UUID uniqueId = UUID.randomUUID();
+        EconomyData data = table.putIfAbsent(uniqueId, 0L, false);
+        save(data);
+
+        int threads = 4;
+        int deposits = 50000;
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger evictions = new AtomicInteger();
+        Thread evictor = new Thread(() -> {
+            while (running.get()) {
+                EconomyData current = table.get(uniqueId);
+                if (current != null) {
+                    save(current);
+                    if (table.evict(uniqueId)) {
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+        });
+        evictor.start();
+
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            EconomyData view = table.putIfAbsent(uniqueId, stored.get(uniqueId), false);
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < deposits; j++) {
+                        view.deposit(1L);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        start.countDown();
+        Assert.assertTrue(done.await(60L, TimeUnit.SECONDS));
+        running.set(false);
+        evictor.join();
+
+        Assert.assertTrue(evictions.get() > 0);
+        Assert.assertEquals((long) threads * deposits, data.getBalance());
+    }
+
+    /**
+     * Write the balance to storage and mark the account clean if nothing changed whilst it was being written, the
+     * way the DAOs do.
+     */
+    private void save(EconomyData data) {
+        long version = data.getVersion();
+        stored.put(data.getUniqueId(), data.getBalance());
+        data.markClean(version);
+    }
+
+    /**
+     * Like the DAOs' loaders, an account that is already resident is handed back without reading storage.
+     */
+    private EconomyData load(UUID uniqueId) {
+        EconomyData data = table.get(uniqueId);
+        if (data != null) {
+            return data;
+        }
+        loads.incrementAndGet();
+        Long balance = stored.get(uniqueId);
+        return balance == null ? null : table.putIfAbsent(uniqueId, balance, false);
+    }
+}
@@ -0,0 +1,56 @@
+package ninja.smirking.economy;
+
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that a negative amount is refused rather than turning a withdrawal into a deposit or the other way round, and
+ * that a transfer the payee can't hold leaves both balances alone.
+ *
+ * @author Connor Spencer Harries
+ */
+public class EconomyDataTest {
+    private final AccountTable table = new AccountTable(null, uniqueId -> null);
+    private final EconomyData data = table.putIfAbsent(UUID.randomUUID(), 1000L, false);
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeWithdrawal() {
+        data.tryWithdraw(-500L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeDeposit() {
+        data.deposit(-500L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeTransfer() {
+        data.transferTo(table.putIfAbsent(UUID.randomUUID(), 0L, false), -500L);
+    }
+
+    @Test
+    public void refundsTransferThatWouldOverflow() {
+        EconomyData payee = table.putIfAbsent(UUID.randomUUID(), Long.MAX_VALUE, false);
+        try {
+            data.transferTo(payee, 500L);
+            Assert.fail("a transfer the payee can't hold should be refused");
+        } catch (ArithmeticException expected) {
+            Assert.assertEquals(1000L, data.getBalance());
+            Assert.assertEquals(Long.MAX_VALUE, payee.getBalance());
+        }
+    }
+
+    @Test
+    public void leavesBalanceAloneWhenRejected() {
+        try {
+            data.tryWithdraw(-500L);
+            Assert.fail("a negative withdrawal should be refused");
+        } catch (IllegalArgumentException expected) {
+            Assert.assertEquals(1000L, data.getBalance());
+        }
+        Assert.assertTrue(data.tryWithdraw(0L));
+        Assert.assertEquals(1500L, data.deposit(500L));
+    }
+}
@@ -0,0 +1,63 @@
+package ninja.smirking.economy;
+
+import java.text.DecimalFormat;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks the formatter and the rounding against the {@code DecimalFormat} they replaced, configured exactly as Vault's
+ * formatter used to be.
+ *
+ * @author Connor Spencer Harries
+ */
+public class MoneyTest {
+    private static final long[] AMOUNTS = {
+        0L, 1L, 5L, 9L, 10L, 50L, 99L, 100L, 101L, 500L, 999L, 1000L, 123456L, 100000000L, 12345678901L
+    };
+
+    private static DecimalFormat legacy() {
+        DecimalFormat legacy = new DecimalFormat("#.00");
+        legacy.setMinimumFractionDigits(2);
+        legacy.setMinimumIntegerDigits(2);
+        return legacy;
+    }
+
+    @Test
+    public void formatsLikeDecimalFormat() {
+        DecimalFormat legacy = legacy();
+        for (long amount : AMOUNTS) {
+            Assert.assertEquals(legacy.format(amount / 100.0D), Money.format(amount));
+            if (amount != 0L) {
+                Assert.assertEquals(legacy.format(-amount / 100.0D), Money.format(-amount));
+            }
+        }
+    }
+
+    @Test
+    public void padsTheWholePart() {
+        Assert.assertEquals("05.00", Money.format(500L));
+        Assert.assertEquals("00.50", Money.format(50L));
+        Assert.assertEquals("00.00", Money.format(0L));
+        Assert.assertEquals("-00.05", Money.format(-5L));
+        Assert.assertEquals("123.45", Money.format(12345L));
+    }
+
+    @Test
+    public void roundsHalfEven() {
+        DecimalFormat legacy = legacy();
+        for (double amount : new double[]{0.125D, 0.135D, 0.625D, 2.5D, 1.005D, 0.994D}) {
+            Assert.assertEquals(legacy.format(amount), Money.format(Money.toMinor(amount)));
+        }
+        Assert.assertEquals(12L, Money.toMinor(0.125D));
+        Assert.assertEquals(62L, Money.toMinor(0.625D));
+    }
+
+    @Test
+    public void convertsBothWays() {
+        for (long amount : AMOUNTS) {
+            Assert.assertEquals(amount, Money.toMinor(Money.toMajor(amount)));
+            Assert.assertEquals(-amount, Money.toMinor(Money.toMajor(-amount)));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ninja.smirking.economy;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that deposits from many threads all land, that withdrawals racing them never overdraw, and that a deposit
+ * which would overflow is refused however the room has been shared between the stripes.
+ *
+ * @author Connor Spencer Harries
+ */
+public class StripedBalanceTest {
+    @Test
+    public void concurrentDepositsAndWithdrawalsAddUp() throws Exception {
+        StripedBalance balance = new StripedBalance(1000L);
+        AtomicLong taken = new AtomicLong();
+        AtomicLong overdrawn = new AtomicLong();
+        int threads = 8;
+        int operations = 100000;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            boolean depositor = i % 2 == 0;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < operations; j++) {
+                        if (depositor) {
+                            balance.deposit(3L);
+                        } else if (balance.tryWithdraw(5L)) {
+                            taken.addAndGet(5L);
+                        }
+                        if (balance.get() < 0L) {
+                            overdrawn.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        start.countDown();
+        Assert.assertTrue(done.await(60L, TimeUnit.SECONDS));
+        Assert.assertEquals(0L, overdrawn.get());
+        Assert.assertEquals(1000L + 3L * operations * (threads / 2) - taken.get(), balance.get());
+    }
+
+    @Test
+    public void refusesDepositThatWouldOverflow() {
+        StripedBalance balance = new StripedBalance(Long.MAX_VALUE - 10L);
+        balance.deposit(10L);
+        try {
+            balance.deposit(1L);
+            Assert.fail("a deposit past Long.MAX_VALUE should be refused");
+        } catch (ArithmeticException expected) {
+            Assert.assertEquals(Long.MAX_VALUE, balance.get());
+        }
+
+        Assert.assertTrue(balance.tryWithdraw(100L));
+        balance.deposit(100L);
+        Assert.assertEquals(Long.MAX_VALUE, balance.get());
+    }
+
+    @Test
+    public void refusesOverflowSpreadOverStripes() throws Exception {
+        StripedBalance balance = new StripedBalance(0L);
+        long amount = Long.MAX_VALUE / 4L;
+        Thread[] threads = new Thread[6];
+        AtomicLong refused = new AtomicLong();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    balance.deposit(amount);
+                } catch (ArithmeticException ex) {
+                    refused.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(2L, refused.get());
+        Assert.assertEquals(amount * 4L, balance.get());
+    }
+}
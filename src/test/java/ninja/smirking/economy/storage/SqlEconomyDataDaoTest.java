@@ -0,0 +1,136 @@
+package ninja.smirking.economy.storage;
+
+import ninja.smirking.economy.EconomyData;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link SqlEconomyDataDao} against an in-memory H2 database. Each test gets a fresh database and opens as many DAOs
+ * on it as it needs, standing in for restarts or for several servers sharing the table.
+ *
+ * @author Connor Spencer Harries
+ */
+public class SqlEconomyDataDaoTest {
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private final List<SqlEconomyDataDao> daos = Lists.newArrayList();
+    private String url;
+
+    @Before
+    public void setUp() {
+        url = "jdbc:h2:mem:economy-test" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+    }
+
+    @After
+    public void tearDown() {
+        daos.forEach(SqlEconomyDataDao::close);
+    }
+
+    @Test
+    public void loadsStoredBalances() throws Exception {
+        UUID uniqueId = UUID.randomUUID();
+        SqlEconomyDataDao dao = open("absolute");
+        dao.get(uniqueId).setBalance(1234L);
+        dao.saveAll();
+
+        EconomyData data = open("absolute").get(uniqueId);
+        Assert.assertEquals(1234L, data.getBalance());
+        Assert.assertEquals(1234L, data.getPersistedBalance());
+        Assert.assertFalse(data.isDirty());
+    }
+
+    @Test
+    public void upsertOverwritesTheRow() throws Exception {
+        UUID uniqueId = UUID.randomUUID();
+        SqlEconomyDataDao dao = open("absolute");
+        EconomyData data = dao.get(uniqueId);
+        data.setBalance(100L);
+        dao.saveAll();
+        data.setBalance(250L);
+        dao.saveAll();
+
+        Assert.assertEquals(250L, open("absolute").get(uniqueId).getBalance());
+    }
+
+    @Test
+    public void lookingUpLeavesNoAccountBehind() throws Exception {
+        UUID uniqueId = UUID.randomUUID();
+        SqlEconomyDataDao dao = open("absolute");
+        Assert.assertNull(dao.getExisting(uniqueId));
+        Assert.assertFalse(dao.exists(uniqueId));
+        dao.saveAll();
+
+        SqlEconomyDataDao other = open("absolute");
+        Assert.assertFalse(other.exists(uniqueId));
+        other.get(uniqueId).setBalance(50L);
+        other.saveAll();
+        Assert.assertEquals(50L, open("absolute").getExisting(uniqueId).getBalance());
+    }
+
+    @Test
+    public void deltaWritesFromEveryServerAddUp() throws Exception {
+        UUID uniqueId = UUID.randomUUID();
+        SqlEconomyDataDao first = open("delta");
+        first.get(uniqueId).setBalance(1000L);
+        first.saveAll();
+
+        SqlEconomyDataDao second = open("delta");
+        first.get(uniqueId).deposit(100L);
+        Assert.assertTrue(second.get(uniqueId).tryWithdraw(300L));
+        first.saveAll();
+        second.saveAll();
+
+        /*
+         * Saving again with nothing changed must not apply either change twice.
+         */
+        first.get(uniqueId).setDirty(true);
+        first.saveAll();
+
+        Assert.assertEquals(800L, open("delta").get(uniqueId).getBalance());
+    }
+
+    @Test
+    public void applyToAllReachesCachedAndStoredAccounts() throws Exception {
+        UUID stored = UUID.randomUUID();
+        SqlEconomyDataDao other = open("absolute");
+        other.get(stored).setBalance(2000L);
+        other.saveAll();
+
+        UUID cached = UUID.randomUUID();
+        SqlEconomyDataDao dao = open("absolute");
+        EconomyData data = dao.get(cached);
+        data.setBalance(1000L);
+        dao.saveAll();
+
+        Map<UUID, Long> told = Maps.newHashMap();
+        Assert.assertEquals(2L, dao.applyToAll(BulkOperation.interest(100000L), told::put));
+        Assert.assertEquals(1100L, data.getBalance());
+        Assert.assertEquals(Long.valueOf(2200L), told.get(stored));
+        Assert.assertFalse(told.containsKey(cached));
+
+        SqlEconomyDataDao reopened = open("absolute");
+        Assert.assertEquals(1100L, reopened.get(cached).getBalance());
+        Assert.assertEquals(2200L, reopened.get(stored).getBalance());
+    }
+
+    private SqlEconomyDataDao open(String persistence) throws Exception {
+        TestPlugin plugin = new TestPlugin();
+        plugin.getConfig().set("jdbc-url", url);
+        plugin.getConfig().set("persistence", persistence);
+        plugin.getConfig().set("snapshot", false);
+        SqlEconomyDataDao dao = new SqlEconomyDataDao(plugin);
+        daos.add(dao);
+        return dao;
+    }
+}
@@ -0,0 +1,91 @@
+package ninja.smirking.economy.storage;
+
+import ninja.smirking.economy.EconomyPlugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * The plugin without a server, for constructing DAOs in tests. As with the benchmarks, Bukkit is handed a server whose
+ * scheduler accepts tasks and never runs them, so nothing is flushed or evicted unless a test asks for it.
+ *
+ * @author Connor Spencer Harries
+ */
+final class TestPlugin extends EconomyPlugin {
+    private static final Logger LOGGER = Logger.getLogger("Economy Test");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+        if (Bukkit.getServer() == null) {
+            Bukkit.setServer(proxy(Server.class));
+        }
+    }
+
+    TestPlugin() throws IOException {
+        this(Files.createTempDirectory("economy-test").toFile());
+    }
+
+    private TestPlugin(File dataFolder) {
+        super(new JavaPluginLoader(Bukkit.getServer()), new PluginDescriptionFile("Economy", "test", EconomyPlugin.class.getName()), dataFolder, new File(dataFolder, "Economy.jar"));
+    }
+
+    /**
+     * Anything that isn't the scheduler, a task or a logger gets the zero value of its return type.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type) {
+        return (T) Proxy.newProxyInstance(TestPlugin.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Class<?> returns = method.getReturnType();
+            if (returns == BukkitScheduler.class || returns == BukkitTask.class) {
+                return proxy(returns);
+            }
+            if (returns == Logger.class) {
+                return LOGGER;
+            }
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName();
+            }
+            if (returns == boolean.class) {
+                return false;
+            }
+            if (returns == int.class) {
+                return 0;
+            }
+            if (returns == long.class) {
+                return 0L;
+            }
+            if (returns == double.class) {
+                return 0.0D;
+            }
+            if (returns == float.class) {
+                return 0.0F;
+            }
+            if (returns == short.class) {
+                return (short) 0;
+            }
+            if (returns == byte.class) {
+                return (byte) 0;
+            }
+            if (returns == char.class) {
+                return (char) 0;
+            }
+            return null;
+        });
+    }
+}